@@ -9,8 +9,12 @@
 
 package com.atomikos.icatch;
 
+import java.util.Collections;
+import java.util.List;
 import java.util.Properties;
 import java.util.Stack;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 import com.atomikos.recovery.TxState;
 
@@ -48,10 +52,19 @@ public interface CompositeTransaction
 
     /**
      * @return Stack A stack of ancestors, bottom one is the root.
+     * A new copy for every call: prefer getAncestors if you don't need to modify it.
      */
 
      Stack<CompositeTransaction> getLineage();
 
+    /**
+     * @return The ancestors, shared and immutable.
+     */
+
+     default Lineage getAncestors() {
+         return Lineage.of ( getLineage() );
+     }
+
 
     /**
      * 
@@ -141,6 +154,37 @@ public interface CompositeTransaction
         throws SysException,
 	     java.lang.IllegalStateException;
 
+    /**
+     * Resources that support savepoints can register here, to allow
+     * lightweight nested transactions within this transaction.
+     * Registering the same participant again has no effect.
+     * Implementations that don't override this don't support savepoints.
+     *
+     * @param participant
+     * @throws UnsupportedOperationException If savepoints are not supported.
+     */
+
+     default void addSavepointParticipant ( SavepointParticipant participant ) {
+         throw new UnsupportedOperationException();
+     }
+
+    /**
+     * @return The savepoint participants, possibly empty.
+     */
+
+     default List<SavepointParticipant> getSavepointParticipants() {
+         return Collections.emptyList();
+     }
+
+    /**
+     * @return The number of participants added to this transaction so far,
+     * or 0 for implementations that don't keep track.
+     */
+
+     default int getParticipantCount() {
+         return 0;
+     }
+
      
     /**
      * Serial mode is an optimized way for lock inheritance:
@@ -212,6 +256,45 @@ public interface CompositeTransaction
 
 	 void rollback()
 		throws IllegalStateException, SysException;	
+
+	/**
+	 * Commits the composite transaction without waiting for the participants.
+	 * Synchronizations are still called on the calling thread.
+	 * 
+	 * @return A stage that completes when the outcome is decided, or completes 
+	 * exceptionally with the exceptions of commit() - heuristics included.
+	 * Implementations that don't override this just commit before returning.
+	 */
+
+	 default CompletionStage<Void> commitAsync() {
+		 CompletableFuture<Void> ret = new CompletableFuture<Void>();
+		 try {
+			 commit();
+			 ret.complete ( null );
+		 } catch ( Exception e ) {
+			 ret.completeExceptionally ( e );
+		 }
+		 return ret;
+	 }
+
+	/**
+	 * Rolls back the composite transaction without waiting for the participants.
+	 * 
+	 * @return A stage that completes when the rollback is done, or completes 
+	 * exceptionally with the exceptions of rollback().
+	 * Implementations that don't override this just roll back before returning.
+	 */
+
+	 default CompletionStage<Void> rollbackAsync() {
+		 CompletableFuture<Void> ret = new CompletableFuture<Void>();
+		 try {
+			 rollback();
+			 ret.complete ( null );
+		 } catch ( Exception e ) {
+			 ret.completeExceptionally ( e );
+		 }
+		 return ret;
+	 }
  
     
     /**
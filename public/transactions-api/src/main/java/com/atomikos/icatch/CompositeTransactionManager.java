@@ -95,6 +95,37 @@ public interface CompositeTransactionManager
 
 	 CompositeTransaction recreateCompositeTransaction(Propagation propagation);
 
+	/**
+	 * Captures the transaction context of the calling thread, for attaching
+	 * to other threads later. The calling thread remains associated.
+	 * 
+	 * @return The context, which is empty if there is no transaction.
+	 * @exception UnsupportedOperationException
+	 *                If the implementation does not support contexts.
+	 */
+
+	 default TransactionContext captureContext() {
+		 throw new UnsupportedOperationException ( getClass().getName() + " does not support transaction contexts" );
+	 }
+
+	/**
+	 * Replaces the transaction context of the calling thread in O(1).
+	 * Unlike resume, this does not require the calling thread to be free of
+	 * transactions, nor does it notify the transaction service: the transaction
+	 * is shared with the capturing thread rather than moved.
+	 * If the transaction has ended in the meantime then the calling thread 
+	 * will not have any transaction context.
+	 * 
+	 * @param context The context to attach, as obtained from {@link #captureContext()}.
+	 * @return The previous context of the calling thread.
+	 * @exception UnsupportedOperationException
+	 *                If the implementation does not support contexts.
+	 */
+
+	 default TransactionContext attachContext ( TransactionContext context ) {
+		 throw new UnsupportedOperationException ( getClass().getName() + " does not support transaction contexts" );
+	 }
+
 
 
 }
@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2000-2020 Atomikos <info@atomikos.com>
+ *
+ * LICENSE CONDITIONS
+ *
+ * See http://www.atomikos.com/Main/WhichLicenseApplies for details.
+ */
+
+package com.atomikos.icatch;
+
+import java.io.Serializable;
+import java.util.Stack;
+
+/**
+ * The ancestors of a transaction, as an immutable linked list from the parent
+ * up to the root. Instances are shared between a transaction and its 
+ * subtransactions: adding a level is O(1) and nothing is ever copied.
+ */
+
+public final class Lineage implements Serializable
+{
+
+	private static final long serialVersionUID = -6318542296581093254L;
+
+	/**
+	 * The lineage of a root transaction: no ancestors.
+	 */
+	public static final Lineage EMPTY = new Lineage ( null , null , 0 );
+
+	private final CompositeTransaction parent;
+
+	private final Lineage ancestors;
+
+	private final int depth;
+
+	private final CompositeTransaction root;
+
+	private Lineage ( CompositeTransaction parent , Lineage ancestors , int depth )
+	{
+		this.parent = parent;
+		this.ancestors = ancestors;
+		this.depth = depth;
+		this.root = ( depth > 1 ? ancestors.root : parent );
+	}
+
+	/**
+	 * Converts from the legacy representation.
+	 * 
+	 * @param stack A stack of ancestors, bottom one is the root. Can be null.
+	 * @return The equivalent lineage.
+	 */
+	public static Lineage of ( Stack<CompositeTransaction> stack )
+	{
+		Lineage ret = EMPTY;
+		if ( stack != null ) {
+			for ( CompositeTransaction ct : stack ) {
+				ret = ret.push ( ct );
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * @param ct The new parent.
+	 * @return The lineage for a child of ct, with this lineage as ct's ancestors.
+	 */
+	public Lineage push ( CompositeTransaction ct )
+	{
+		return new Lineage ( ct , this , depth + 1 );
+	}
+
+	/**
+	 * @return The direct parent, or null if empty.
+	 */
+	public CompositeTransaction getParent()
+	{
+		return parent;
+	}
+
+	/**
+	 * The opposite of push: unlike the ancestors of a transaction, 
+	 * the result no longer contains the parent.
+	 * 
+	 * @return The lineage without the parent, or EMPTY if already empty.
+	 */
+	public Lineage pop()
+	{
+		return ancestors == null ? EMPTY : ancestors;
+	}
+
+	/**
+	 * @return The root transaction, or null if empty.
+	 */
+	public CompositeTransaction getRoot()
+	{
+		return root;
+	}
+
+	public int size()
+	{
+		return depth;
+	}
+
+	public boolean isEmpty()
+	{
+		return depth == 0;
+	}
+
+	/**
+	 * Compatibility with the legacy representation.
+	 * 
+	 * @return A new stack of ancestors, bottom one is the root.
+	 */
+	public Stack<CompositeTransaction> toStack()
+	{
+		CompositeTransaction[] elements = new CompositeTransaction[depth];
+		Lineage next = this;
+		for ( int i = depth - 1 ; i >= 0 ; i-- ) {
+			elements[i] = next.parent;
+			next = next.ancestors;
+		}
+		Stack<CompositeTransaction> ret = new Stack<CompositeTransaction>();
+		for ( CompositeTransaction ct : elements ) {
+			ret.push ( ct );
+		}
+		return ret;
+	}
+
+	private Object readResolve()
+	{
+		return depth == 0 ? EMPTY : this;
+	}
+
+}
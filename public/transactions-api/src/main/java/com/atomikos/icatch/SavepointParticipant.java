@@ -0,0 +1,46 @@
+/**
+ * Copyright (C) 2000-2020 Atomikos <info@atomikos.com>
+ *
+ * LICENSE CONDITIONS
+ *
+ * See http://www.atomikos.com/Main/WhichLicenseApplies for details.
+ */
+
+package com.atomikos.icatch;
+
+
+/**
+ * A resource that can undo part of its work in a transaction by means of 
+ * savepoints. This allows lightweight nested transactions that don't need
+ * a subtransaction (with its own coordinator and resource branches).
+ */
+
+public interface SavepointParticipant
+{
+    /**
+     * Creates a savepoint for the work done so far.
+     *
+     * @return The savepoint.
+     * @exception SysException If savepoints are not supported or on failure.
+     */
+
+     Object setSavepoint() throws SysException;
+
+    /**
+     * Undoes all work done since the given savepoint was created.
+     *
+     * @param savepoint As returned by {@link #setSavepoint()}.
+     * @exception SysException On failure.
+     */
+
+     void rollbackToSavepoint ( Object savepoint ) throws SysException;
+
+    /**
+     * Releases the given savepoint, keeping the work done since it was created.
+     *
+     * @param savepoint As returned by {@link #setSavepoint()}.
+     * @exception SysException On failure.
+     */
+
+     void releaseSavepoint ( Object savepoint ) throws SysException;
+}
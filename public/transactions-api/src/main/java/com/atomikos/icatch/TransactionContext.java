@@ -0,0 +1,164 @@
+/**
+ * Copyright (C) 2000-2020 Atomikos <info@atomikos.com>
+ *
+ * LICENSE CONDITIONS
+ *
+ * See http://www.atomikos.com/Main/WhichLicenseApplies for details.
+ */
+
+package com.atomikos.icatch;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * A thread-independent handle to the transactions of a thread, as captured by
+ * {@link CompositeTransactionManager#captureContext()}. 
+ * <p>
+ * Attaching a context to another thread is O(1): the (local) transactions are
+ * shared rather than rebuilt, and unlike suspend/resume there is no need to 
+ * detach them from the capturing thread first. This makes it possible to
+ * hop across executor threads in asynchronous pipelines, for instance with
+ * <code>future.thenApplyAsync ( fn , context.wrap ( executor ) )</code>.
+ * <p>
+ * Instances are immutable and can be attached to any number of threads.
+ */
+
+public final class TransactionContext
+{
+
+	private final CompositeTransactionManager manager;
+
+	private final Lineage transactions;
+
+	/**
+	 * For use by CompositeTransactionManager implementations only.
+	 * 
+	 * @param manager The manager to attach to.
+	 * @param transactions The local transactions, the current one on top.
+	 */
+	public TransactionContext ( CompositeTransactionManager manager , Lineage transactions )
+	{
+		this.manager = manager;
+		this.transactions = transactions;
+	}
+
+	/**
+	 * @return The current transaction of this context, or null if none.
+	 */
+	public CompositeTransaction getCompositeTransaction()
+	{
+		return transactions.getParent();
+	}
+
+	/**
+	 * @return The local transactions, the current one on top.
+	 */
+	public Lineage getTransactions()
+	{
+		return transactions;
+	}
+
+	public boolean isEmpty()
+	{
+		return transactions.isEmpty();
+	}
+
+	/**
+	 * Makes this the context of the calling thread.
+	 * 
+	 * @return The previous context of the calling thread, to attach again when done.
+	 */
+	public TransactionContext attach()
+	{
+		return manager.attachContext ( this );
+	}
+
+	/**
+	 * @return A task that runs with this context, and restores the
+	 * context of the executing thread afterwards.
+	 */
+	public Runnable wrap ( Runnable task )
+	{
+		return () -> {
+			TransactionContext previous = attach();
+			try {
+				task.run();
+			} finally {
+				previous.attach();
+			}
+		};
+	}
+
+	/**
+	 * @see #wrap(Runnable)
+	 */
+	public <T> Callable<T> wrap ( Callable<T> task )
+	{
+		return () -> {
+			TransactionContext previous = attach();
+			try {
+				return task.call();
+			} finally {
+				previous.attach();
+			}
+		};
+	}
+
+	/**
+	 * @return An executor that runs all its tasks with this context.
+	 */
+	public Executor wrap ( Executor executor )
+	{
+		return task -> executor.execute ( wrap ( task ) );
+	}
+
+	/**
+	 * @see #wrap(Runnable)
+	 */
+	public <T> Supplier<T> wrapSupplier ( Supplier<T> supplier )
+	{
+		return () -> {
+			TransactionContext previous = attach();
+			try {
+				return supplier.get();
+			} finally {
+				previous.attach();
+			}
+		};
+	}
+
+	/**
+	 * @see #wrap(Runnable)
+	 */
+	public <T,R> Function<T,R> wrapFunction ( Function<T,R> function )
+	{
+		return t -> {
+			TransactionContext previous = attach();
+			try {
+				return function.apply ( t );
+			} finally {
+				previous.attach();
+			}
+		};
+	}
+
+	/**
+	 * @see #wrap(Runnable)
+	 */
+	public <T> Consumer<T> wrapConsumer ( Consumer<T> consumer )
+	{
+		return t -> {
+			TransactionContext previous = attach();
+			try {
+				consumer.accept ( t );
+			} finally {
+				previous.attach();
+			}
+		};
+	}
+
+}
@@ -22,6 +22,7 @@ public final class ConfigProperties {
 	public static final String ENABLE_LOGGING_PROPERTY_NAME = "com.atomikos.icatch.enable_logging";
 	public static final String MAX_TIMEOUT_PROPERTY_NAME = "com.atomikos.icatch.max_timeout";
 	public static final String MAX_ACTIVES_PROPERTY_NAME = "com.atomikos.icatch.max_actives";
+	public static final String MAX_ACTIVES_WAIT_TIME = "com.atomikos.icatch.max_actives_wait_time";
 	public static final String FORCE_SHUTDOWN_ON_VM_EXIT_PROPERTY_NAME = "com.atomikos.icatch.force_shutdown_on_vm_exit";
 	public static final String FILE_PATH_PROPERTY_NAME = "com.atomikos.icatch.file";
 	public static final String CHECKPOINT_INTERVAL = "com.atomikos.icatch.checkpoint_interval";
@@ -35,6 +36,19 @@ public final class ConfigProperties {
 	public static final String DEFAULT_MAX_WAIT_TIME_ON_SHUTDOWN = "com.atomikos.icatch.default_max_wait_time_on_shutdown";
     public static final String THROW_ON_HEURISTIC = "com.atomikos.icatch.throw_on_heuristic";
     public static final String JVM_ID_PROPERTY_NAME = "com.atomikos.icatch.jvm_id";
+    public static final String TIMEOUT_PRECISION = "com.atomikos.icatch.timeout_precision";
+    public static final String THREAD_POOL_CORE_SIZE = "com.atomikos.icatch.thread_pool_core_size";
+    public static final String THREAD_POOL_MAX_SIZE = "com.atomikos.icatch.thread_pool_max_size";
+    public static final String THREAD_POOL_QUEUE_CAPACITY = "com.atomikos.icatch.thread_pool_queue_capacity";
+    public static final String THREAD_POOL_REJECTION_POLICY = "com.atomikos.icatch.thread_pool_rejection_policy";
+    public static final String VIRTUAL_THREADS = "com.atomikos.icatch.virtual_threads";
+    public static final String EVENT_QUEUE_CAPACITY = "com.atomikos.icatch.event_queue_capacity";
+    public static final String EVENT_OVERFLOW_POLICY = "com.atomikos.icatch.event_overflow_policy";
+    public static final String LOG_MAX_BATCH_SIZE = "com.atomikos.icatch.log_max_batch_size";
+    public static final String LOG_MAX_BATCH_WAIT_MICROS = "com.atomikos.icatch.log_max_batch_wait_micros";
+    public static final String LOG_SEGMENT_SIZE = "com.atomikos.icatch.log_segment_size";
+    public static final String LOG_STRIPES = "com.atomikos.icatch.log_stripes";
+    public static final String LOG_LAZY_FLUSH_INTERVAL_MILLIS = "com.atomikos.icatch.log_lazy_flush_interval_millis";
 
 	
 	/**
@@ -267,5 +281,61 @@ public final class ConfigProperties {
 
     }
 
+    public long getTimeoutPrecision() {
+        return getAsLong(TIMEOUT_PRECISION);
+    }
+
+    public int getThreadPoolCoreSize() {
+        return getAsInt(THREAD_POOL_CORE_SIZE);
+    }
+
+    public int getThreadPoolMaxSize() {
+        return getAsInt(THREAD_POOL_MAX_SIZE);
+    }
+
+    public int getThreadPoolQueueCapacity() {
+        return getAsInt(THREAD_POOL_QUEUE_CAPACITY);
+    }
+
+    public String getThreadPoolRejectionPolicy() {
+        return getProperty(THREAD_POOL_REJECTION_POLICY);
+    }
+
+    public boolean getVirtualThreads() {
+        return getAsBoolean(VIRTUAL_THREADS);
+    }
+
+    public int getEventQueueCapacity() {
+        return getAsInt(EVENT_QUEUE_CAPACITY);
+    }
+
+    public String getEventOverflowPolicy() {
+        return getProperty(EVENT_OVERFLOW_POLICY);
+    }
+
+    public int getLogMaxBatchSize() {
+        return getAsInt(LOG_MAX_BATCH_SIZE);
+    }
+
+    public long getLogMaxBatchWaitMicros() {
+        return getAsLong(LOG_MAX_BATCH_WAIT_MICROS);
+    }
+
+    public long getLogSegmentSize() {
+        return getAsLong(LOG_SEGMENT_SIZE);
+    }
+
+    public int getLogStripes() {
+        return getAsInt(LOG_STRIPES);
+    }
+
+    public long getLogLazyFlushIntervalMillis() {
+        return getAsLong(LOG_LAZY_FLUSH_INTERVAL_MILLIS);
+    }
+
+    public long getMaxActivesWaitTime() {
+        return getAsLong(MAX_ACTIVES_WAIT_TIME);
+    }
+
 
 }
@@ -0,0 +1,68 @@
+/**
+ * Copyright (C) 2000-2020 Atomikos <info@atomikos.com>
+ *
+ * LICENSE CONDITIONS
+ *
+ * See http://www.atomikos.com/Main/WhichLicenseApplies for details.
+ */
+
+package com.atomikos.icatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Stack;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+public class LineageTestJUnit {
+
+    private CompositeTransaction root;
+    private CompositeTransaction child;
+
+    @Before
+    public void setUp() throws Exception {
+        root = Mockito.mock(CompositeTransaction.class);
+        child = Mockito.mock(CompositeTransaction.class);
+    }
+
+    @Test
+    public void testEmpty() {
+        assertTrue(Lineage.EMPTY.isEmpty());
+        assertNull(Lineage.EMPTY.getParent());
+        assertNull(Lineage.EMPTY.getRoot());
+        assertSame(Lineage.EMPTY, Lineage.EMPTY.pop());
+    }
+
+    @Test
+    public void testPushSharesAncestors() {
+        Lineage first = Lineage.EMPTY.push(root);
+        Lineage second = first.push(child);
+        assertEquals(2, second.size());
+        assertSame(child, second.getParent());
+        assertSame(root, second.getRoot());
+        assertSame(first, second.pop());
+        assertEquals(1, first.size());
+    }
+
+    @Test
+    public void testStackConversionPreservesOrder() {
+        Stack<CompositeTransaction> stack = new Stack<CompositeTransaction>();
+        stack.push(root);
+        stack.push(child);
+        Lineage lineage = Lineage.of(stack);
+        assertSame(child, lineage.getParent());
+        assertSame(root, lineage.getRoot());
+        assertEquals(stack, lineage.toStack());
+    }
+
+    @Test
+    public void testNullStackIsEmpty() {
+        assertSame(Lineage.EMPTY, Lineage.of(null));
+    }
+
+}
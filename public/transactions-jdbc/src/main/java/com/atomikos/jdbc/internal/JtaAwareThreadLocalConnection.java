@@ -15,7 +15,9 @@ import java.util.Stack;
 
 import com.atomikos.icatch.CompositeTransaction;
 import com.atomikos.icatch.CompositeTransactionManager;
+import com.atomikos.icatch.SavepointParticipant;
 import com.atomikos.icatch.SubTxAwareParticipant;
+import com.atomikos.icatch.SysException;
 import com.atomikos.icatch.config.Configuration;
 import com.atomikos.icatch.jta.TransactionManagerImp;
 import com.atomikos.jdbc.internal.JdbcNonXAConnectionHandleState.ParticipantRegistrationRequiredException;
@@ -41,6 +43,8 @@ public class JtaAwareThreadLocalConnection extends AbstractJdbcConnectionProxy i
     private final String resourceName;
     
     private final JdbcNonXAConnectionHandleState state;
+
+    private final ConnectionSavepoints savepoints = new ConnectionSavepoints(this);
     
     public JtaAwareThreadLocalConnection(AtomikosNonXAPooledConnection pooledConnection, String resourceName) {
         super(pooledConnection.getConnection());
@@ -217,6 +221,7 @@ public class JtaAwareThreadLocalConnection extends AbstractJdbcConnectionProxy i
         AtomikosNonXAParticipant participant = new AtomikosNonXAParticipant(this, resourceName);
         CompositeTransaction localRoot = findLocalRoot(ct);
         localRoot.addParticipant(participant);
+        localRoot.addSavepointParticipant(savepoints);
         if (localRoot != ct) {
             //first registration happens for a subtransaction => also deal with subtx rollback
             registerAsSubTxAwareParticipantFor(ct);
@@ -305,6 +310,55 @@ public class JtaAwareThreadLocalConnection extends AbstractJdbcConnectionProxy i
         }
     }
     
+    /**
+     * Allows lightweight nested transactions on this connection, without any subtransaction.
+     */
+    private static class ConnectionSavepoints implements SavepointParticipant {
+
+        private final JtaAwareThreadLocalConnection owner;
+
+        ConnectionSavepoints(JtaAwareThreadLocalConnection owner) {
+            this.owner = owner;
+        }
+
+        @Override
+        public Object setSavepoint() throws SysException {
+            try {
+                if (!owner.delegate.getMetaData().supportsSavepoints()) {
+                    throw new SysException("The underlying JDBC driver does not support savepoints");
+                }
+                return owner.delegate.setSavepoint();
+            } catch (SQLException e) {
+                throw new SysException("Failed to set savepoint", e);
+            }
+        }
+
+        @Override
+        public void rollbackToSavepoint(Object savepoint) throws SysException {
+            try {
+                owner.delegate.rollback((Savepoint) savepoint);
+            } catch (SQLException e) {
+                owner.pooledConnection.setErroneous();
+                throw new SysException("Failed to rollback to savepoint", e);
+            }
+        }
+
+        @Override
+        public void releaseSavepoint(Object savepoint) throws SysException {
+            try {
+                owner.delegate.releaseSavepoint((Savepoint) savepoint);
+            } catch (SQLException e) {
+                // some drivers don't support this: the savepoint will be released on commit anyway
+                LOGGER.logDebug("Failed to release savepoint - ignoring", e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "savepoints for " + owner;
+        }
+    }
+
     private static class ReadOnlyParticipant implements SubTxAwareParticipant {
         
         JtaAwareThreadLocalConnection owner;
@@ -30,6 +30,7 @@ import com.atomikos.icatch.jta.UserTransactionManager;
 import com.atomikos.jms.AtomikosConnectionFactoryBean;
 import com.atomikos.logging.Logger;
 import com.atomikos.logging.LoggerFactory;
+import com.atomikos.thread.TaskManager;
 
 /**
  *
@@ -309,8 +310,7 @@ class MessageConsumerSession
 		    if ( active ) {
 	        current = new ReceiverThread ();
 	        //FIXED 10082
-	        current.setDaemon ( daemonThreads );
-	        current.start ();
+	        current.start ( daemonThreads );
 	        if ( LOGGER.isTraceEnabled() ) LOGGER.logTrace ( "MessageConsumerSession: started new thread: " + current );
 		    }
 		    //if not active: ignore
@@ -364,15 +364,28 @@ class MessageConsumerSession
 	    notifyListenerOnClose = b;
 	}
 
-	  class ReceiverThread extends Thread
+	  class ReceiverThread implements Runnable
 	    {
 	        private Connection connection;
 	        private Session session;
+	        // virtual if so configured, so blocking receive calls don't tie up a platform thread
+	        private Thread thread;
 
 	        private ReceiverThread ()
 	        {
 	        }
 
+	        private void start ( boolean daemon )
+	        {
+	            thread = TaskManager.SINGLETON.newThread ( this, "Atomikos:MessageConsumerSession", daemon );
+	            thread.start ();
+	        }
+
+	        public String toString ()
+	        {
+	            return String.valueOf ( thread );
+	        }
+
 	        private synchronized MessageConsumer refreshJmsResources () throws JMSException
 	        {
 	            MessageConsumer ret = null;
@@ -427,11 +440,11 @@ class MessageConsumerSession
 
 							try {
 								LOGGER.logInfo ( "MessageConsumerSession: unsubscribing " + subscriberName + "...");
-								if ( Thread.currentThread() != this ) {
+								if ( Thread.currentThread() != thread ) {
 
 									//see case 62452 and 80464: wait for listener thread to exit so the subscriber is no longer in use
 									if ( LOGGER.isDebugEnabled() ) LOGGER.logDebug ( "MessageConsumerSession: waiting for listener thread to finish..." );
-									this.join();
+									thread.join();
 									if ( LOGGER.isTraceEnabled() ) LOGGER.logTrace ( "MessageConsumerSession: waiting done." );
 
 								}
@@ -491,7 +504,7 @@ class MessageConsumerSession
 
 	            LOGGER.logDebug ( "MessageConsumerSession: Starting JMS listener thread." );
 
-	            while ( Thread.currentThread () == current ) {
+	            while ( this == current ) {
 
 	            	   if ( LOGGER.isTraceEnabled() ) LOGGER.logTrace ( "MessageConsumerSession: JMS listener thread iterating..." );
 	                boolean refresh = false;
@@ -525,7 +538,7 @@ class MessageConsumerSession
 
 	                    try {
 
-	                        if ( msg != null && listener != null && Thread.currentThread () == current ) {
+	                        if ( msg != null && listener != null && this == current ) {
 	                        	processMessage(msg);
 	                        } else {
 	                            commit = false;
@@ -609,7 +622,7 @@ class MessageConsumerSession
 
 	                    }
 
-	                    if ( refresh && Thread.currentThread () == current) {
+	                    if ( refresh && this == current) {
 	                        // close resources here and let the actual refresh be done by the next iteration
 	                    	try {
 	                    		receiver.close();
@@ -15,10 +15,9 @@ import java.util.List;
 import com.atomikos.logging.Logger;
 import com.atomikos.logging.LoggerFactory;
 import com.atomikos.thread.InterruptedExceptionHelper;
-import com.atomikos.thread.TaskManager;
 import com.atomikos.timing.AlarmTimer;
 import com.atomikos.timing.AlarmTimerListener;
-import com.atomikos.timing.PooledAlarmTimer;
+import com.atomikos.timing.TimingService;
 
 
 public abstract class ConnectionPool<ConnectionType> implements XPooledConnectionEventListener<ConnectionType>
@@ -31,7 +30,7 @@ public abstract class ConnectionPool<ConnectionType> implements XPooledConnectio
 	private ConnectionFactory<ConnectionType> connectionFactory;
 	private ConnectionPoolProperties properties;
 	private boolean destroyed;
-	private PooledAlarmTimer maintenanceTimer;
+	private AlarmTimer maintenanceTimer;
 	private String name;
 
 
@@ -62,8 +61,7 @@ public abstract class ConnectionPool<ConnectionType> implements XPooledConnectio
 			if ( LOGGER.isTraceEnabled() ) LOGGER.logTrace ( this + ": using default maintenance interval..." );
 			maintenanceInterval = DEFAULT_MAINTENANCE_INTERVAL;
 		}
-		maintenanceTimer = new PooledAlarmTimer ( maintenanceInterval * 1000 );
-		maintenanceTimer.addAlarmTimerListener(new AlarmTimerListener() {
+		maintenanceTimer = TimingService.SINGLETON.startAlarmTimer ( maintenanceInterval * 1000L, new AlarmTimerListener() {
 			public void alarm(AlarmTimer timer) {
 				reapPool();
 				removeConnectionsThatExceededMaxLifetime();
@@ -71,7 +69,6 @@ public abstract class ConnectionPool<ConnectionType> implements XPooledConnectio
 				removeIdleConnectionsIfMinPoolSizeExceeded();
 			}
 		});
-		TaskManager.SINGLETON.executeTask ( maintenanceTimer );
 	}
 
 	private synchronized void addConnectionsIfMinPoolSizeNotReached() {
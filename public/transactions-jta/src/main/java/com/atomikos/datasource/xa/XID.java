@@ -9,6 +9,7 @@
 package com.atomikos.datasource.xa;
 
 import java.io.Serializable;
+import java.util.Arrays;
 
 import javax.transaction.xa.Xid;
 
@@ -27,6 +28,7 @@ public class XID implements Serializable, Xid
 	// -1 for null Xid, 0 for OSI CCR and positive for proprietary format...
 	
 	private String cachedToStringForPerformance;
+	private transient int cachedHashCode;
     private final int formatId;
     private final byte[] branchQualifier;
     private final byte[] globalTransactionId;
@@ -101,8 +103,10 @@ public class XID implements Serializable, Xid
     	if (this == obj)
 			return true;
 		if (obj instanceof XID) {
+			// same as comparing toString() but without rendering hex strings
 			XID xid = (XID) obj;
-			return toString().equals(xid.toString());
+			return Arrays.equals(globalTransactionId, xid.globalTransactionId) &&
+				   Arrays.equals(branchQualifier, xid.branchQualifier);
 		}
 		return false;
     }
@@ -150,7 +154,12 @@ public class XID implements Serializable, Xid
     @Override
 	public int hashCode ()
     {
-        return toString ().hashCode ();
+        int ret = this.cachedHashCode;
+        if ( ret == 0 ) {
+        	ret = 31 * Arrays.hashCode ( this.globalTransactionId ) + Arrays.hashCode ( this.branchQualifier );
+        	this.cachedHashCode = ret;
+        }
+        return ret;
     }
 
 	public String getUniqueResourceName() {
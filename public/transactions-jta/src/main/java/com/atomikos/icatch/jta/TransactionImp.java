@@ -12,6 +12,9 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
 
 import javax.transaction.Status;
 import javax.transaction.SystemException;
@@ -49,14 +52,6 @@ class TransactionImp implements Transaction {
 		throw ret;
 	}
 
-	private static void rethrowAsJtaHeuristicMixedException(String msg, Throwable cause)
-			throws javax.transaction.HeuristicMixedException {
-		javax.transaction.HeuristicMixedException ret = new javax.transaction.HeuristicMixedException(
-				msg);
-		ret.initCause(cause);
-		throw ret;
-	}
-
 	private static void rethrowAsJtaHeuristicRollbackException(String msg,
 			Throwable cause)
 			throws javax.transaction.HeuristicRollbackException {
@@ -166,23 +161,26 @@ class TransactionImp implements Transaction {
 			javax.transaction.SystemException, java.lang.SecurityException {
 		try {
 			this.compositeTransaction.commit();
-		} catch (HeurHazardException hh) {
-			rethrowAsJtaHeuristicMixedException(hh.getMessage(), hh);
-		} catch (HeurMixedException hm) {
-			rethrowAsJtaHeuristicMixedException(hm.getMessage(), hm);
-		} catch (SysException se) {
-			LOGGER.logError(se.getMessage(), se);
-			throw new ExtendedSystemException(se.getMessage(), se);
-		} catch (com.atomikos.icatch.RollbackException rb) {
-			// see case 29708: all statements have been closed
-			String msg = rb.getMessage();
-			Throwable cause = rb.getCause();
-			if (cause == null)
-				cause = rb;
-			rethrowAsJtaRollbackException(msg, cause);
+		} catch (HeurHazardException | HeurMixedException | SysException
+				| com.atomikos.icatch.RollbackException e) {
+			rethrowAsJtaException(e);
 		}
 	}
 
+	private static void rethrowAsJtaException(Exception e)
+			throws javax.transaction.RollbackException,
+			javax.transaction.HeuristicMixedException,
+			javax.transaction.SystemException {
+		Throwable jta = convertToJtaException(e);
+		if (jta instanceof javax.transaction.RollbackException)
+			throw (javax.transaction.RollbackException) jta;
+		if (jta instanceof javax.transaction.HeuristicMixedException)
+			throw (javax.transaction.HeuristicMixedException) jta;
+		if (jta instanceof javax.transaction.SystemException)
+			throw (javax.transaction.SystemException) jta;
+		throw new ExtendedSystemException(e.getMessage(), e);
+	}
+
 	/**
 	 * @see javax.transaction.Transaction.
 	 */
@@ -198,6 +196,64 @@ class TransactionImp implements Transaction {
 
 	}
 
+	/**
+	 * Asynchronous variant of {@link #commit()}: synchronizations run in the
+	 * calling thread, two-phase commit runs in the background.
+	 *
+	 * @return A stage that completes exceptionally with the same JTA exceptions
+	 *         as {@link #commit()} would throw.
+	 */
+
+	public CompletionStage<Void> commitAsync() {
+		return toJta(this.compositeTransaction.commitAsync());
+	}
+
+	/**
+	 * Asynchronous variant of {@link #rollback()}.
+	 *
+	 * @return A stage that completes exceptionally with a SystemException on
+	 *         failure.
+	 */
+
+	public CompletionStage<Void> rollbackAsync() {
+		return toJta(this.compositeTransaction.rollbackAsync());
+	}
+
+	private static CompletionStage<Void> toJta(CompletionStage<Void> stage) {
+		CompletableFuture<Void> ret = new CompletableFuture<Void>();
+		stage.whenComplete((result, error) -> {
+			if (error == null) {
+				ret.complete(null);
+			} else {
+				ret.completeExceptionally(convertToJtaException(error));
+			}
+		});
+		return ret;
+	}
+
+	private static Throwable convertToJtaException(Throwable error) {
+		if (error instanceof CompletionException && error.getCause() != null) {
+			error = error.getCause();
+		}
+		Exception ret = null;
+		if (error instanceof HeurHazardException
+				|| error instanceof HeurMixedException) {
+			ret = new javax.transaction.HeuristicMixedException(error.getMessage());
+			ret.initCause(error);
+		} else if (error instanceof SysException) {
+			LOGGER.logError(error.getMessage(), error);
+			ret = new ExtendedSystemException(error.getMessage(), error);
+		} else if (error instanceof com.atomikos.icatch.RollbackException) {
+			// see case 29708: all statements have been closed
+			Throwable cause = error.getCause();
+			if (cause == null)
+				cause = error;
+			ret = new javax.transaction.RollbackException(error.getMessage());
+			ret.initCause(cause);
+		}
+		return ret != null ? ret : error;
+	}
+
 	/**
 	 * @see javax.transaction.Transaction.
 	 */
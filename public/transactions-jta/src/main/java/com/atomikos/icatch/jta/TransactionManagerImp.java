@@ -10,6 +10,7 @@ package com.atomikos.icatch.jta;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletionStage;
 
 import javax.naming.NamingException;
 import javax.naming.Reference;
@@ -443,6 +444,33 @@ public class TransactionManagerImp implements TransactionManager,
         tx.rollback();
     }
 
+    /**
+     * Commits the current transaction without waiting for two-phase commit.
+     * The calling thread is no longer associated with the transaction on return.
+     *
+     * @see TransactionImp#commitAsync()
+     */
+
+    public CompletionStage<Void> commitAsync () throws IllegalStateException, SystemException
+    {
+        TransactionImp tx = (TransactionImp) getTransaction();
+        if ( tx == null ) raiseNoTransaction();
+        return tx.commitAsync();
+    }
+
+    /**
+     * Rolls back the current transaction without waiting for the participants.
+     *
+     * @see TransactionImp#rollbackAsync()
+     */
+
+    public CompletionStage<Void> rollbackAsync () throws IllegalStateException, SystemException
+    {
+        TransactionImp tx = (TransactionImp) getTransaction();
+        if ( tx == null ) raiseNoTransaction();
+        return tx.rollbackAsync();
+    }
+
     /**
      * @see javax.transaction.TransactionManager
      */
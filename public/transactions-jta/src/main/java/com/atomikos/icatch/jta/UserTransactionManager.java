@@ -9,6 +9,7 @@
 package com.atomikos.icatch.jta;
 
 import java.io.Serializable;
+import java.util.concurrent.CompletionStage;
 
 import javax.naming.NamingException;
 import javax.naming.Reference;
@@ -161,6 +162,16 @@ public class UserTransactionManager implements TransactionManager,
 
     }
 
+    /**
+     * @see TransactionManagerImp#commitAsync()
+     */
+    public CompletionStage<Void> commitAsync () throws IllegalStateException, SystemException
+    {
+    	if ( closed ) throw new SystemException ( "This UserTransactionManager instance was closed already - commit no longer allowed or possible." );
+        checkSetup ();
+        return tm.commitAsync ();
+    }
+
     /**
      * @see javax.transaction.TransactionManager#getStatus()
      */
@@ -200,6 +211,14 @@ public class UserTransactionManager implements TransactionManager,
 
     }
 
+    /**
+     * @see TransactionManagerImp#rollbackAsync()
+     */
+    public CompletionStage<Void> rollbackAsync () throws IllegalStateException, SystemException
+    {
+        return tm.rollbackAsync ();
+    }
+
     /**
      * @see javax.transaction.TransactionManager#setRollbackOnly()
      */
@@ -0,0 +1,109 @@
+/**
+ * Copyright (C) 2000-2020 Atomikos <info@atomikos.com>
+ *
+ * LICENSE CONDITIONS
+ *
+ * See http://www.atomikos.com/Main/WhichLicenseApplies for details.
+ */
+
+package com.atomikos.icatch.jta.template;
+
+import java.lang.reflect.UndeclaredThrowableException;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import javax.transaction.TransactionManager;
+
+import com.atomikos.icatch.CompositeTransaction;
+import com.atomikos.icatch.CompositeTransactionManager;
+import com.atomikos.icatch.Lineage;
+import com.atomikos.icatch.SavepointParticipant;
+import com.atomikos.icatch.SysException;
+import com.atomikos.icatch.config.Configuration;
+import com.atomikos.logging.Logger;
+import com.atomikos.logging.LoggerFactory;
+
+/**
+ * Nested semantics with a savepoint instead of a subtransaction, if the
+ * existing transaction has exactly one resource and that resource supports 
+ * savepoints. Otherwise this falls back to a (full) subtransaction.
+ * <p>
+ * The nested work runs in the existing transaction, so the timeout of this
+ * template does not apply. If the work fails after enlisting other resources
+ * then those can't be undone by the savepoint, so the existing transaction 
+ * is marked as rollback-only instead.
+ */
+
+class SavepointNestedTemplate extends NestedTemplate {
+
+    private static final Logger LOGGER = LoggerFactory.createLogger(SavepointNestedTemplate.class);
+
+    protected SavepointNestedTemplate(TransactionManager utm, int timeout) {
+        super(utm, timeout);
+    }
+
+    @Override
+    public <T> T execute(Callable<T> work) throws Exception {
+        CompositeTransaction ct = null;
+        if (utm.getTransaction() != null) {
+            ct = getCompositeTransaction();
+        }
+        if (ct == null || !isLocalRoot(ct) || ct.getParticipantCount() > 1) {
+            return super.execute(work);
+        }
+        List<SavepointParticipant> participants = ct.getSavepointParticipants();
+        if (participants.size() != 1) {
+            return super.execute(work);
+        }
+        SavepointParticipant participant = participants.get(0);
+        Object savepoint = null;
+        try {
+            savepoint = participant.setSavepoint();
+        } catch (SysException e) {
+            LOGGER.logDebug("Savepoint not possible - falling back to a subtransaction", e);
+            return super.execute(work);
+        }
+
+        int participantCount = ct.getParticipantCount();
+        T ret = null;
+        try {
+            ret = work.call();
+        } catch (Exception e) {
+            rollbackToSavepoint(ct, participant, savepoint, participantCount);
+            throw e;
+        } catch (Throwable e) {
+            rollbackToSavepoint(ct, participant, savepoint, participantCount);
+            throw new UndeclaredThrowableException(e);
+        }
+        participant.releaseSavepoint(savepoint);
+        return ret;
+    }
+
+    CompositeTransaction getCompositeTransaction() {
+        CompositeTransactionManager ctm = Configuration.getCompositeTransactionManager();
+        return ctm == null ? null : ctm.getCompositeTransaction();
+    }
+
+    private static boolean isLocalRoot(CompositeTransaction ct) {
+        Lineage ancestors = ct.getAncestors();
+        return ancestors.isEmpty() || !ancestors.getParent().isLocal();
+    }
+
+    private void rollbackToSavepoint(CompositeTransaction ct, SavepointParticipant participant, 
+            Object savepoint, int participantCount) throws Exception {
+        if (ct.getParticipantCount() > participantCount) {
+            LOGGER.logWarning("Nested work failed after enlisting other resources - marking transaction " 
+                    + ct.getTid() + " as rollback-only");
+            utm.setRollbackOnly();
+        } else {
+            try {
+                participant.rollbackToSavepoint(savepoint);
+            } catch (SysException e) {
+                LOGGER.logWarning("Rollback to savepoint failed - marking transaction " 
+                        + ct.getTid() + " as rollback-only", e);
+                utm.setRollbackOnly();
+            }
+        }
+    }
+
+}
@@ -78,6 +78,18 @@ public class TransactionTemplate {
         return new NestedTemplate(utm, timeout);
     }
 
+    /**
+     * @return An instance like {@link #nested()}, but using a savepoint instead of a subtransaction
+     * if the existing transaction only involves one resource, and that resource supports savepoints.
+     * 
+     * Any exception will lead to rollback to the savepoint - or rollbackOnly status of the existing
+     * transaction if other resources were used by the failed work.
+     * 
+     */
+    public TransactionTemplate nestedWithSavepoint() {
+        return new SavepointNestedTemplate(utm, timeout);
+    }
+
     protected void beginTransaction() throws Exception {
         utm.setTransactionTimeout(timeout);
         utm.begin();        
@@ -0,0 +1,181 @@
+/**
+ * Copyright (C) 2000-2020 Atomikos <info@atomikos.com>
+ *
+ * LICENSE CONDITIONS
+ *
+ * See http://www.atomikos.com/Main/WhichLicenseApplies for details.
+ */
+
+package com.atomikos.icatch.jta;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.transaction.HeuristicMixedException;
+import javax.transaction.RollbackException;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.SystemException;
+import javax.transaction.Transaction;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atomikos.icatch.CompositeTransaction;
+import com.atomikos.icatch.HeurHazardException;
+import com.atomikos.icatch.HeurMixedException;
+import com.atomikos.icatch.SysException;
+import com.atomikos.thread.TaskManager;
+
+public class TransactionImpTestJUnit {
+
+	private UserTransactionManager utm;
+
+	@Before
+	public void setUp() throws Exception {
+		utm = new UserTransactionManager();
+		utm.setForceShutdown(true);
+		utm.init();
+	}
+
+	@After
+	public void tearDown() {
+		utm.close();
+	}
+
+	@Test
+	public void testCommitAsyncCompletesAndEndsThreadAssociation() throws Exception {
+		utm.begin();
+		Transaction tx = utm.getTransaction();
+		CompletionStage<Void> stage = utm.commitAsync();
+		assertNull(utm.getTransaction());
+		stage.toCompletableFuture().get(5, TimeUnit.SECONDS);
+		assertEquals(Status.STATUS_COMMITTED, tx.getStatus());
+	}
+
+	@Test
+	public void testCommitAsyncNeverTerminatesOnTheCallingThread() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicReference<Thread> completedOn = new AtomicReference<Thread>();
+		TaskManager.SINGLETON.configure(1, 1, 0, TaskManager.RejectionPolicy.CALLER_RUNS);
+		try {
+			TaskManager.SINGLETON.executeTask(new Runnable() {
+				public void run() {
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+			utm.begin();
+			utm.getTransaction().registerSynchronization(new Synchronization() {
+				public void beforeCompletion() {
+				}
+
+				public void afterCompletion(int status) {
+					completedOn.set(Thread.currentThread());
+				}
+			});
+			CompletableFuture<Void> future = utm.commitAsync().toCompletableFuture();
+			Thread.sleep(200);
+			assertFalse(future.isDone());
+			assertNull(completedOn.get());
+			release.countDown();
+			future.get(5, TimeUnit.SECONDS);
+			assertNotSame(Thread.currentThread(), completedOn.get());
+		} finally {
+			release.countDown();
+			TaskManager.SINGLETON.configure(TaskManager.DEFAULT_CORE_POOL_SIZE, TaskManager.DEFAULT_MAX_POOL_SIZE,
+					TaskManager.DEFAULT_QUEUE_CAPACITY, TaskManager.RejectionPolicy.CALLER_RUNS);
+		}
+	}
+
+	@Test
+	public void testRollbackAsyncCompletesAndEndsThreadAssociation() throws Exception {
+		utm.begin();
+		CompletionStage<Void> stage = utm.rollbackAsync();
+		assertNull(utm.getTransaction());
+		stage.toCompletableFuture().get(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testCommitAsyncOfRollbackOnlyTransactionFailsWithRollbackException() throws Exception {
+		utm.begin();
+		utm.setRollbackOnly();
+		CompletionStage<Void> stage = utm.commitAsync();
+		assertNull(utm.getTransaction());
+		assertTrue(failureOf(stage) instanceof RollbackException);
+	}
+
+	@Test
+	public void testAsyncFailuresAreMappedToJtaExceptions() throws Exception {
+		assertTrue(failureOf(new TransactionImp(failingWith(new HeurMixedException())).commitAsync()) instanceof HeuristicMixedException);
+		assertTrue(failureOf(new TransactionImp(failingWith(new HeurHazardException())).commitAsync()) instanceof HeuristicMixedException);
+		assertTrue(failureOf(new TransactionImp(failingWith(new SysException("test"))).rollbackAsync()) instanceof SystemException);
+		com.atomikos.icatch.RollbackException rollback = new com.atomikos.icatch.RollbackException("test");
+		Throwable mapped = failureOf(new TransactionImp(failingWith(rollback)).commitAsync());
+		assertTrue(mapped instanceof RollbackException);
+		assertSame(rollback, mapped.getCause());
+	}
+
+	@Test
+	public void testCommitMapsFailuresLikeCommitAsync() throws Exception {
+		try {
+			new TransactionImp(failingWith(new HeurHazardException())).commit();
+			fail("Commit should fail");
+		} catch (HeuristicMixedException expected) {
+		}
+		try {
+			new TransactionImp(failingWith(new SysException("test"))).commit();
+			fail("Commit should fail");
+		} catch (SystemException expected) {
+		}
+		try {
+			new TransactionImp(failingWith(new com.atomikos.icatch.RollbackException("test"))).commit();
+			fail("Commit should fail");
+		} catch (RollbackException expected) {
+		}
+	}
+
+	private static Throwable failureOf(CompletionStage<Void> stage) throws Exception {
+		try {
+			stage.toCompletableFuture().get(5, TimeUnit.SECONDS);
+		} catch (ExecutionException e) {
+			return e.getCause();
+		}
+		throw new AssertionError("Stage should complete exceptionally");
+	}
+
+	/**
+	 * @return A transaction whose commit and rollback, blocking or not, fail with the given exception.
+	 */
+	private static CompositeTransaction failingWith(Exception failure) {
+		return (CompositeTransaction) Proxy.newProxyInstance(CompositeTransaction.class.getClassLoader(),
+				new Class<?>[] { CompositeTransaction.class }, (proxy, method, args) -> {
+					if (method.getReturnType() == CompletionStage.class) {
+						CompletableFuture<Void> ret = new CompletableFuture<Void>();
+						ret.completeExceptionally(failure);
+						return ret;
+					}
+					if (method.getName().equals("commit") || method.getName().equals("rollback")) {
+						throw failure;
+					}
+					return null;
+				});
+	}
+}
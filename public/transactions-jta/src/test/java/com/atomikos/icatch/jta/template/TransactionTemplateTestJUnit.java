@@ -11,6 +11,8 @@ package com.atomikos.icatch.jta.template;
 import static org.junit.Assert.assertNotSame;
 import static org.junit.Assert.assertSame;
 
+import java.util.Collections;
+
 import javax.transaction.Transaction;
 import javax.transaction.TransactionManager;
 
@@ -18,6 +20,10 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
 
+import com.atomikos.icatch.CompositeTransaction;
+import com.atomikos.icatch.Lineage;
+import com.atomikos.icatch.SavepointParticipant;
+
 public class TransactionTemplateTestJUnit {
 
     private TransactionTemplate template;
@@ -187,4 +193,75 @@ public class TransactionTemplateTestJUnit {
         assertNotSame(template.required(), template.required());
     }
 
+    @Test
+    public void testNestedWithSavepointFallsBackToSubtransactionWithoutSavepointParticipant() throws Exception {
+        Transaction mockedTransaction = Mockito.mock(Transaction.class);
+        Mockito.when(mockedTm.getTransaction()).thenReturn(mockedTransaction);
+        template.nestedWithSavepoint().execute(() -> {return null;});
+        Mockito.verify(mockedTm).begin();
+        Mockito.verify(mockedTm).commit();
+    }
+
+    @Test
+    public void testNestedWithSavepointReleasesSavepointIfNoException() throws Exception {
+        SavepointParticipant participant = mockSavepointParticipant();
+        Object savepoint = participant.setSavepoint();
+        createSavepointTemplate(mockCompositeTransaction(participant)).execute(() -> {return null;});
+        Mockito.verify(participant).releaseSavepoint(savepoint);
+        Mockito.verify(participant, Mockito.never()).rollbackToSavepoint(Mockito.any());
+        Mockito.verify(mockedTm, Mockito.never()).begin();
+        Mockito.verify(mockedTm, Mockito.never()).commit();
+    }
+
+    @Test
+    public void testNestedWithSavepointRollsBackToSavepointOnException() throws Exception {
+        SavepointParticipant participant = mockSavepointParticipant();
+        Object savepoint = participant.setSavepoint();
+        try {
+            createSavepointTemplate(mockCompositeTransaction(participant)).execute(() -> {throw new Exception();});
+        } catch (Exception ok) {}
+        Mockito.verify(participant).rollbackToSavepoint(savepoint);
+        Mockito.verify(mockedTm, Mockito.never()).setRollbackOnly();
+        Mockito.verify(mockedTm, Mockito.never()).rollback();
+    }
+
+    @Test
+    public void testNestedWithSavepointMarksRollbackOnlyIfFailedWorkUsedOtherResources() throws Exception {
+        SavepointParticipant participant = mockSavepointParticipant();
+        CompositeTransaction ct = mockCompositeTransaction(participant);
+        try {
+            createSavepointTemplate(ct).execute(() -> {
+                Mockito.when(ct.getParticipantCount()).thenReturn(2);
+                throw new Exception();
+            });
+        } catch (Exception ok) {}
+        Mockito.verify(participant, Mockito.never()).rollbackToSavepoint(Mockito.any());
+        Mockito.verify(mockedTm).setRollbackOnly();
+    }
+
+    private SavepointParticipant mockSavepointParticipant() {
+        SavepointParticipant ret = Mockito.mock(SavepointParticipant.class);
+        Mockito.when(ret.setSavepoint()).thenReturn(new Object());
+        return ret;
+    }
+
+    private CompositeTransaction mockCompositeTransaction(SavepointParticipant participant) throws Exception {
+        Transaction mockedTransaction = Mockito.mock(Transaction.class);
+        Mockito.when(mockedTm.getTransaction()).thenReturn(mockedTransaction);
+        CompositeTransaction ret = Mockito.mock(CompositeTransaction.class);
+        Mockito.when(ret.getAncestors()).thenReturn(Lineage.EMPTY);
+        Mockito.when(ret.getParticipantCount()).thenReturn(1);
+        Mockito.when(ret.getSavepointParticipants()).thenReturn(Collections.singletonList(participant));
+        return ret;
+    }
+
+    private TransactionTemplate createSavepointTemplate(CompositeTransaction ct) {
+        return new SavepointNestedTemplate(mockedTm, 0) {
+            @Override
+            CompositeTransaction getCompositeTransaction() {
+                return ct;
+            }
+        };
+    }
+
 }
@@ -8,10 +8,11 @@
 
 package com.atomikos.finitestates;
 
+import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.EventListener;
-import java.util.HashSet;
-import java.util.Hashtable;
-import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.atomikos.recovery.TxState;
 
@@ -28,31 +29,36 @@ import com.atomikos.recovery.TxState;
  * <li>FSMEnterListeners have <b>no guarantee</b> that the getState() method will
  * return the state that was entered - this state may have changed since.</li>
  * </ul>
+ * Listeners are kept in per-state arrays that are replaced (never modified)
+ * on registration, so notification is a plain array walk without locking
+ * or copying. Events are only created if there is a listener to notify.
  *
  */
 
 public class FSMImp implements FSM
 {
 
-    private TxState state_ = null;
+    private static final EventListener[] NO_LISTENERS = new EventListener[0];
+
+    private volatile TxState state_ = null;
     //the current state
 
-    private Hashtable<TxState,Set<EventListener>>  enterlisteners_ = null;
+    private volatile EnumMap<TxState,EventListener[]> enterlisteners_ = null;
     //the enter listeners
 
-    private Hashtable<TxState,Set<EventListener>> preenterlisteners_ = null;
+    private volatile EnumMap<TxState,EventListener[]> preenterlisteners_ = null;
     //pre enter listeners
 
-    private Hashtable<TxState,Hashtable<TxState,Set<EventListener>>> transitionlisteners_ = null;
+    private volatile EnumMap<TxState,EnumMap<TxState,EventListener[]>> transitionlisteners_ = null;
     //transition listeners
 
-    private Hashtable<TxState,Hashtable<TxState,Set<EventListener>>> pretransitionlisteners_ = null;
+    private volatile EnumMap<TxState,EnumMap<TxState,EventListener[]>> pretransitionlisteners_ = null;
     //pretransition listeners
 
     
     private Object eventsource_ = null;
 
-    private Object stateLatch_;
+    private final Lock lock_;
 
 
     /**
@@ -82,13 +88,46 @@ public class FSMImp implements FSM
 
     public FSMImp ( Object eventsource, TxState initialstate )
     {
+        this ( eventsource, initialstate, new ReentrantLock () );
+    }
+
+    /**
+     *Creates a new instance that shares its lock with the event source,
+     *so the source can make compound changes atomic with respect to state transitions.
+     *
+     *@param eventsource The object to be used as source of events.
+     *@param initialstate The initial state of the FSM.
+     *@param lock The (reentrant) lock to guard state and listeners with.
+     */
+
+    public FSMImp ( Object eventsource, TxState initialstate, Lock lock )
+    {
+        lock_ = lock;
         state_ = initialstate;
-        enterlisteners_ = new Hashtable<TxState,Set<EventListener>>();
-        preenterlisteners_ = new Hashtable<TxState,Set<EventListener>>();
-        transitionlisteners_ = new Hashtable<TxState,Hashtable<TxState,Set<EventListener>>>();
-        pretransitionlisteners_ = new Hashtable<TxState,Hashtable<TxState,Set<EventListener>>>();
+        enterlisteners_ = new EnumMap<TxState,EventListener[]>(TxState.class);
+        preenterlisteners_ = new EnumMap<TxState,EventListener[]>(TxState.class);
+        transitionlisteners_ = new EnumMap<TxState,EnumMap<TxState,EventListener[]>>(TxState.class);
+        pretransitionlisteners_ = new EnumMap<TxState,EnumMap<TxState,EventListener[]>>(TxState.class);
         eventsource_ = eventsource;
-        stateLatch_ = new Object();
+    }
+
+    /**
+     *Help function for copy-on-write of listener arrays.
+     *
+     *@return The array with lstnr appended, or the same array if already present.
+     */
+
+    private static EventListener[] add ( EventListener[] lstnrs, EventListener lstnr )
+    {
+        if ( lstnrs == null )
+            lstnrs = NO_LISTENERS;
+        for ( EventListener next : lstnrs ) {
+            if ( next.equals ( lstnr ) )
+                return lstnrs;
+        }
+        EventListener[] ret = Arrays.copyOf ( lstnrs, lstnrs.length + 1 );
+        ret[lstnrs.length] = lstnr;
+        return ret;
     }
 
     /**
@@ -97,18 +136,16 @@ public class FSMImp implements FSM
      *@param listeners One of the listener tables.
      *@param lstnr The listener to add.
      *@param state The state for which the listener wants to be notified.
+     *@return The new listener table, to publish.
      */
 
-    protected synchronized  void addEnterListener(Hashtable<TxState,Set<EventListener>> listeners,
+    protected EnumMap<TxState,EventListener[]> addEnterListener(EnumMap<TxState,EventListener[]> listeners,
     		EventListener lstnr,
     		TxState state)
     {
-        Set<EventListener> lstnrs = listeners.get(state);
-        if ( lstnrs == null )
-        	lstnrs = new HashSet<EventListener>();
-        if ( !lstnrs.contains(lstnr) )
-        	lstnrs.add( lstnr );
-        listeners.put( state , lstnrs );
+        EnumMap<TxState,EventListener[]> ret = listeners.clone();
+        ret.put( state , add ( ret.get ( state ), lstnr ) );
+        return ret;
     }
 
     /**
@@ -118,23 +155,20 @@ public class FSMImp implements FSM
      *@param lstnr The listener to add.
      *@param from The start state of the transition.
      *@param to The end state of the transition.
+     *@return The new listener table, to publish.
      */
 
-    protected synchronized void addTransitionListener(Hashtable<TxState,Hashtable<TxState, Set<EventListener>>> listeners,
+    protected EnumMap<TxState,EnumMap<TxState,EventListener[]>> addTransitionListener(EnumMap<TxState,EnumMap<TxState,EventListener[]>> listeners,
     			EventListener lstnr,
 				 TxState from,
 				 TxState to)
     {
-    	Hashtable<TxState, Set<EventListener>> lstnrs =   listeners.get(from);
+        EnumMap<TxState,EnumMap<TxState,EventListener[]>> ret = listeners.clone();
+        EnumMap<TxState,EventListener[]> lstnrs = ret.get(from);
         if (lstnrs == null)
-        	lstnrs = new Hashtable<TxState,Set<EventListener>>();
-        Set<EventListener> tolstnrs = lstnrs.get(to);
-        if (tolstnrs == null)
-        	tolstnrs = new HashSet<EventListener>();
-        if (!tolstnrs.contains(lstnr))
-        	tolstnrs.add(lstnr);
-        lstnrs.put(to,tolstnrs);
-        listeners.put(from,lstnrs);
+        	lstnrs = new EnumMap<TxState,EventListener[]>(TxState.class);
+        ret.put(from, addEnterListener(lstnrs, lstnr, to));
+        return ret;
     }
 
     /**
@@ -145,20 +179,14 @@ public class FSMImp implements FSM
      *@param pre True iff before entering.
      */
 
-    protected void notifyListeners(Hashtable<TxState,Set<EventListener>> listeners, TxState state,
+    protected void notifyListeners(EnumMap<TxState,EventListener[]> listeners, TxState state,
 			     boolean pre)
     {
-        Set<EventListener> lstnrs = null;
+        EventListener[] lstnrs = listeners.get ( state );
+        if ( lstnrs == null )
+            return;
+        //notify OUTSIDE SYNCH to minimize deadlocks
         FSMEnterEvent event = new FSMEnterEvent (eventsource_, state);
-        synchronized ( this ) {
-            lstnrs= listeners.get ( state );
-            if ( lstnrs == null )
-                	return;
-            //clone to avoid concurrency effects outside synch block
-            //during iteration hereafter
-            lstnrs = new HashSet<EventListener>(lstnrs);
-        }
-      //notify OUTSIDE SYNCH to minimize deadlocks
         for (EventListener listener : lstnrs) {
         	if ( pre && ( listener instanceof FSMPreEnterListener ))
         	    ((FSMPreEnterListener) listener).preEnter (event);
@@ -178,27 +206,18 @@ public class FSMImp implements FSM
      *@param pre True iff before transition.
      */
 
-    protected void notifyListeners ( Hashtable<TxState,Hashtable<TxState,Set<EventListener>>> listeners, TxState from ,
+    protected void notifyListeners ( EnumMap<TxState,EnumMap<TxState,EventListener[]>> listeners, TxState from ,
     		TxState to , boolean pre )
     {
-        FSMTransitionEvent event = new FSMTransitionEvent (eventsource_, from, to );
-        Hashtable<TxState,Set<EventListener>> lstnrs = null;
-        Set<EventListener>  tolstnrs = null;
-        synchronized ( this ) {
-            lstnrs =  listeners.get( from );
-            if ( lstnrs == null )
-                return;
-            tolstnrs =  lstnrs.get( to );
-            if ( tolstnrs == null )
-                return;
-
-            //clone to avoid concurrency effects
-            //during iteration outside synch block
-            lstnrs = new  Hashtable<TxState,Set<EventListener>> (lstnrs);
-            tolstnrs = new HashSet<EventListener>(tolstnrs);
-        }
+        EnumMap<TxState,EventListener[]> lstnrs = listeners.get( from );
+        if ( lstnrs == null )
+            return;
+        EventListener[] tolstnrs = lstnrs.get( to );
+        if ( tolstnrs == null )
+            return;
 
-        //iterator outside synch to avoid deadlocks
+        //iterate outside synch to avoid deadlocks
+        FSMTransitionEvent event = new FSMTransitionEvent (eventsource_, from, to );
         for (EventListener listener : tolstnrs) {
         	 if ( pre && ( listener instanceof FSMPreTransitionListener )) {
                  ((FSMPreTransitionListener)listener).beforeTransition(event);
@@ -216,22 +235,8 @@ public class FSMImp implements FSM
     public TxState getState()
     {
     	//Note: this method should NOT be synchronized on the FSM itself, to avoid deadlocks
-    	//in re-entrant 2PC calls!
-    	TxState ret = null;
-    	//don't synch on FSM -> use latch object instead
-    	synchronized ( stateLatch_ ) {
-    		ret = state_;
-    	}
-        return ret;
-    }
-
-    private void setStateObject ( TxState state )
-    {
-    	//synchronize on stateLatch ONLY to make sure that getState
-    	//returns the latest (non-cached) value
-    	synchronized ( stateLatch_ ) {
-    		this.state_ = state;
-    	}
+    	//in re-entrant 2PC calls! The field is volatile instead.
+        return state_;
     }
 
 
@@ -243,14 +248,17 @@ public class FSMImp implements FSM
         throws IllegalStateException
     {
     	TxState oldstate = null;
-        synchronized ( this ) {
+        lock_.lock ();
+        try {
             if (!state_.transitionAllowedTo(state))
                 	throw new IllegalStateException("Transition not allowed: "+state_ +" to "+state);
                
                oldstate = state_;
         	   notifyListeners(preenterlisteners_ , state , true);
         	   notifyListeners(pretransitionlisteners_ , oldstate , state , true);
-        	   setStateObject ( state );
+        	   state_ = state;
+        } finally {
+            lock_.unlock ();
         }
         //ENTER EVENTS ARE OUTSIDE SYNCH BLOCK TO MINIMIZE DEADLOCKS!!!
         notifyListeners(enterlisteners_ , state , false);
@@ -264,8 +272,12 @@ public class FSMImp implements FSM
 
     public void addFSMEnterListener(FSMEnterListener lstnr, TxState state)
     {
-        addEnterListener(enterlisteners_ , lstnr , state);
-
+        lock_.lock ();
+        try {
+            enterlisteners_ = addEnterListener(enterlisteners_ , lstnr , state);
+        } finally {
+            lock_.unlock ();
+        }
     }
 
 
@@ -276,7 +288,12 @@ public class FSMImp implements FSM
     public void addFSMPreEnterListener(FSMPreEnterListener lstnr,
     		TxState state)
     {
-        addEnterListener(preenterlisteners_ , lstnr , state);
+        lock_.lock ();
+        try {
+            preenterlisteners_ = addEnterListener(preenterlisteners_ , lstnr , state);
+        } finally {
+            lock_.unlock ();
+        }
     }
 
     /**
@@ -287,7 +304,12 @@ public class FSMImp implements FSM
     public void addFSMTransitionListener(FSMTransitionListener lstnr,
     		TxState from, TxState to)
     {
-        addTransitionListener ( transitionlisteners_ , lstnr , from , to );
+        lock_.lock ();
+        try {
+            transitionlisteners_ = addTransitionListener ( transitionlisteners_ , lstnr , from , to );
+        } finally {
+            lock_.unlock ();
+        }
     }
 
     /**
@@ -297,7 +319,12 @@ public class FSMImp implements FSM
     public void addFSMPreTransitionListener(FSMPreTransitionListener lstnr,
     		TxState from, TxState to)
     {
-        addTransitionListener( pretransitionlisteners_ , lstnr , from , to );
+        lock_.lock ();
+        try {
+            pretransitionlisteners_ = addTransitionListener( pretransitionlisteners_ , lstnr , from , to );
+        } finally {
+            lock_.unlock ();
+        }
     }
 
 
@@ -305,4 +332,3 @@ public class FSMImp implements FSM
 
 
 }
-
@@ -8,14 +8,18 @@
 
 package com.atomikos.icatch.imp;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.util.Properties;
 import java.util.Stack;
+import java.util.concurrent.CompletionStage;
 
 import com.atomikos.icatch.CompositeCoordinator;
 import com.atomikos.icatch.CompositeTransaction;
 import com.atomikos.icatch.Extent;
 import com.atomikos.icatch.HeurHazardException;
 import com.atomikos.icatch.HeurMixedException;
+import com.atomikos.icatch.Lineage;
 import com.atomikos.icatch.Participant;
 import com.atomikos.icatch.RecoveryCoordinator;
 import com.atomikos.icatch.RollbackException;
@@ -38,7 +42,7 @@ public abstract class AbstractCompositeTransaction implements CompositeTransacti
 	private static final long serialVersionUID = 3522422565305065464L;
 
 
-    protected Stack<CompositeTransaction> lineage_;
+    protected Lineage lineage_;
 
     protected String tid_;
 
@@ -47,6 +51,26 @@ public abstract class AbstractCompositeTransaction implements CompositeTransacti
 
     protected Properties properties_;
 
+    /**
+     * Instances serialized by older releases have a Stack as lineage: 
+     * read the fields by name, so that can be converted.
+     */
+
+    @SuppressWarnings("unchecked")
+    private void readObject ( ObjectInputStream in ) throws IOException, ClassNotFoundException
+    {
+        ObjectInputStream.GetField fields = in.readFields ();
+        Object lineage = fields.get ( "lineage_", null );
+        if ( lineage instanceof Stack ) {
+            lineage_ = Lineage.of ( (Stack<CompositeTransaction>) lineage );
+        } else {
+            lineage_ = lineage == null ? Lineage.EMPTY : (Lineage) lineage;
+        }
+        tid_ = (String) fields.get ( "tid_", null );
+        serial_ = fields.get ( "serial_", false );
+        properties_ = (Properties) fields.get ( "properties_", null );
+    }
+
     /**
      * Required for externalization of subclasses
      */
@@ -62,16 +86,26 @@ public abstract class AbstractCompositeTransaction implements CompositeTransacti
 
     public AbstractCompositeTransaction ( String tid , Stack<CompositeTransaction> lineage ,
             boolean serial  )
+    {
+        this ( tid , Lineage.of ( lineage ) , serial );
+    }
+
+    /**
+     * Constructor.
+     *
+     */
+
+    public AbstractCompositeTransaction ( String tid , Lineage lineage ,
+            boolean serial  )
     {
         tid_ = tid;
         lineage_ = lineage;
         if ( lineage_ == null ) {
-            lineage_ = new Stack<CompositeTransaction> ();
-            properties_ = new Properties();
+            lineage_ = Lineage.EMPTY;
         }
         else {
-        		if ( ! lineage_.empty() ) {
-        			CompositeTransaction parent = ( CompositeTransaction ) lineage_.peek();
+        		if ( ! lineage_.isEmpty() ) {
+        			CompositeTransaction parent = lineage_.getParent();
         			properties_ = parent.getProperties();
         		}
         }
@@ -135,10 +169,18 @@ public abstract class AbstractCompositeTransaction implements CompositeTransacti
     /**
      * @see CompositeTransaction.
      */
-    @SuppressWarnings("unchecked")
 	public Stack<CompositeTransaction> getLineage ()
     {
-        return (Stack<CompositeTransaction>) lineage_.clone ();
+        return lineage_.toStack ();
+    }
+
+    /**
+     * @see CompositeTransaction.
+     */
+
+    public Lineage getAncestors ()
+    {
+        return lineage_;
     }
 
     /**
@@ -147,7 +189,7 @@ public abstract class AbstractCompositeTransaction implements CompositeTransacti
 
     public boolean isRoot ()
     {
-        return ( lineage_ == null || lineage_.size () == 0);
+        return ( lineage_ == null || lineage_.isEmpty () );
         // for non-roots, this is at least one
     }
 
@@ -167,8 +209,8 @@ public abstract class AbstractCompositeTransaction implements CompositeTransacti
     public boolean isDescendantOf ( CompositeTransaction ct )
     {
         CompositeTransaction parent = null;
-        if ( lineage_ != null && (!lineage_.empty ()) )
-            parent = (CompositeTransaction) lineage_.peek ();
+        if ( lineage_ != null )
+            parent = lineage_.getParent ();
 
         return (isSameTransaction ( ct ) || (parent != null && parent
                 .isDescendantOf ( ct )));
@@ -177,22 +219,12 @@ public abstract class AbstractCompositeTransaction implements CompositeTransacti
     /**
      * @see CompositeTransaction.
      */
-    @SuppressWarnings("unchecked")
     public boolean isRelatedTransaction ( CompositeTransaction ct )
     {
-        Stack<CompositeTransaction> lineage = null;
-        if ( lineage_ == null )
-            lineage = new Stack<CompositeTransaction> ();
-        else
-            lineage = (Stack<CompositeTransaction>) lineage_.clone ();
-
-        if ( lineage.empty () )
+        if ( lineage_ == null || lineage_.isEmpty () )
             return isAncestorOf ( ct );
 
-        CompositeTransaction root = null;
-        while ( !lineage.empty () )
-            root = (CompositeTransaction) lineage.pop ();
-        return root.isAncestorOf ( ct );
+        return lineage_.getRoot ().isAncestorOf ( ct );
     }
 
     /**
@@ -313,6 +345,22 @@ public abstract class AbstractCompositeTransaction implements CompositeTransacti
 
 
 
+    /**
+     * @see com.atomikos.icatch.CompositeTransaction#commitAsync()
+     */
+    public CompletionStage<Void> commitAsync ()
+    {
+    	throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @see com.atomikos.icatch.CompositeTransaction#rollbackAsync()
+     */
+    public CompletionStage<Void> rollbackAsync ()
+    {
+    	throw new UnsupportedOperationException();
+    }
+
     /**
      * @see com.atomikos.icatch.CompositeTransaction#rollback()
      */
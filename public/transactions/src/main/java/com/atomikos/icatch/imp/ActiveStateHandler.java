@@ -8,7 +8,9 @@
 
 package com.atomikos.icatch.imp;
 
+import java.util.ArrayList;
 import java.util.Enumeration;
+import java.util.List;
 import java.util.Vector;
 
 import com.atomikos.icatch.HeurCommitException;
@@ -157,6 +159,7 @@ class ActiveStateHandler extends CoordinatorStateHandler
         	}
             count = participants.size ();
             result = new PrepareResult ( count );
+            List<PrepareMessage> messages = new ArrayList<PrepareMessage> ( count );
             Enumeration<Participant> enumm = participants.elements ();
             // 遍历每个Participant子事务
             while ( enumm.hasMoreElements () ) {
@@ -170,10 +173,12 @@ class ActiveStateHandler extends CoordinatorStateHandler
                     p.setCascadeList ( getCascadeList () );
                 }
 
-                // 对每个子事务发送PREPARE指令
-                getPropagator ().submitPropagationMessage ( pm );
+                messages.add ( pm );
             } // while
 
+            // 对每个子事务发送PREPARE指令
+            getPropagator ().submitPropagationMessages ( messages );
+
             // 阻塞, 等待所有子事务都返回PREPARE的响应结果
             result.waitForReplies ();
 
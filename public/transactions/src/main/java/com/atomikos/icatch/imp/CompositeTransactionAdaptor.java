@@ -8,7 +8,8 @@
 
 package com.atomikos.icatch.imp;
 
-import com.atomikos.icatch.CompositeCoordinator;
+import com.atomikos.icatch.CompositeCoordinator;
+import com.atomikos.icatch.Lineage;
 import com.atomikos.icatch.RecoveryCoordinator;
 import com.atomikos.icatch.SysException;
 
@@ -40,7 +41,7 @@ public class CompositeTransactionAdaptor extends AbstractCompositeTransaction
     public CompositeTransactionAdaptor ( String root , boolean serial ,
             RecoveryCoordinator adaptor )
     {
-        super ( root , null , serial );
+        super ( root , Lineage.EMPTY , serial );
         adaptorForReplayRequests = adaptor;
         this.root = root;
     }
@@ -8,8 +8,13 @@
 
 package com.atomikos.icatch.imp;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Stack;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 import com.atomikos.finitestates.FSMEnterEvent;
 import com.atomikos.finitestates.FSMEnterListener;
@@ -19,9 +24,11 @@ import com.atomikos.icatch.Extent;
 import com.atomikos.icatch.HeurHazardException;
 import com.atomikos.icatch.HeurMixedException;
 import com.atomikos.icatch.HeurRollbackException;
+import com.atomikos.icatch.Lineage;
 import com.atomikos.icatch.Participant;
 import com.atomikos.icatch.RecoveryCoordinator;
 import com.atomikos.icatch.RollbackException;
+import com.atomikos.icatch.SavepointParticipant;
 import com.atomikos.icatch.SubTxAwareParticipant;
 import com.atomikos.icatch.Synchronization;
 import com.atomikos.icatch.SysException;
@@ -29,6 +36,8 @@ import com.atomikos.icatch.config.Configuration;
 import com.atomikos.logging.Logger;
 import com.atomikos.logging.LoggerFactory;
 import com.atomikos.recovery.TxState;
+import com.atomikos.thread.TaskManager;
+import com.atomikos.timing.TimingService;
 
 /**
  * A complete composite transaction implementation for use in the local VM.
@@ -50,6 +59,8 @@ class CompositeTransactionImp extends AbstractCompositeTransaction implements FS
 
     private TransactionStateHandler stateHandler;
 
+    private volatile List<SavepointParticipant> savepointParticipants = Collections.emptyList ();
+
     /**
      * This constructor is kept for compatibility with the test classes.
      */
@@ -57,7 +68,7 @@ class CompositeTransactionImp extends AbstractCompositeTransaction implements FS
     CompositeTransactionImp ( Stack<CompositeTransaction> lineage , String tid , boolean serial ,
             CoordinatorImp coordinator )
     {
-        this ( null , lineage , tid , serial , coordinator );
+        this ( null , Lineage.of ( lineage ) , tid , serial , coordinator );
     }
 
     /**
@@ -78,7 +89,7 @@ class CompositeTransactionImp extends AbstractCompositeTransaction implements FS
      */
 
     CompositeTransactionImp ( TransactionServiceImp txservice ,
-            Stack<CompositeTransaction> lineage , String tid , boolean serial ,
+            Lineage lineage , String tid , boolean serial ,
             CoordinatorImp coordinator ) throws IllegalStateException
     {
 
@@ -183,6 +194,38 @@ class CompositeTransactionImp extends AbstractCompositeTransaction implements FS
     	localGetTransactionStateHandler().addSubTxAwareParticipant ( subtxaware );
     }
 
+    /**
+     * @see CompositeTransaction
+     */
+
+    public synchronized void addSavepointParticipant ( SavepointParticipant participant )
+    {
+        // copy-on-write: readers need no lock, and registrations are rare
+        List<SavepointParticipant> next = new ArrayList<SavepointParticipant> ( savepointParticipants );
+        if ( !next.contains ( participant ) ) {
+            next.add ( participant );
+            savepointParticipants = Collections.unmodifiableList ( next );
+        }
+    }
+
+    /**
+     * @see CompositeTransaction
+     */
+
+    public List<SavepointParticipant> getSavepointParticipants ()
+    {
+        return savepointParticipants;
+    }
+
+    /**
+     * @see CompositeTransaction
+     */
+
+    public int getParticipantCount ()
+    {
+        return coordinator.getParticipants ().size ();
+    }
+
     /**
      * @see TransactionControl.
      */
@@ -247,7 +290,7 @@ class CompositeTransactionImp extends AbstractCompositeTransaction implements FS
 			if (isRoot()) {
 				extent = new Extent();
 			} else {
-				String parentTransactionId = getLineage().peek().getTid();
+				String parentTransactionId = getAncestors().getParent().getTid();
 				extent = new Extent(parentTransactionId);
 			}
 		}
@@ -273,7 +316,12 @@ class CompositeTransactionImp extends AbstractCompositeTransaction implements FS
     {
         doCommit ();
         setSiblingInfoForIncoming1pcRequestFromRemoteClient();
-        
+        terminateAfterCommit ( throwOnHeuristic() );
+    }
+
+    private void terminateAfterCommit ( boolean throwOnHeuristic ) throws HeurMixedException,
+            HeurHazardException, SysException, RollbackException
+    {
         try {
             if (isRoot()) {
                 coordinator.terminate(true);
@@ -286,7 +334,7 @@ class CompositeTransactionImp extends AbstractCompositeTransaction implements FS
             throw rb;
         } catch ( HeurHazardException | HeurMixedException h ) {
             //no need to log: coordinator already logs on heuristics
-            if (throwOnHeuristic()) {
+            if (throwOnHeuristic) {
                 throw h;
             }
         } catch ( SysException se ) {
@@ -295,7 +343,62 @@ class CompositeTransactionImp extends AbstractCompositeTransaction implements FS
             throw new SysException (
                     "Unexpected error: " + e.getMessage (), e );
         }
+    }
 
+    /**
+     * @see com.atomikos.icatch.CompositeTransaction#commitAsync()
+     */
+    public CompletionStage<Void> commitAsync ()
+    {
+        CompletableFuture<Void> ret = new CompletableFuture<Void>();
+        try {
+            // synchronizations need the calling thread
+            doCommit ();
+            setSiblingInfoForIncoming1pcRequestFromRemoteClient();
+        } catch ( Exception e ) {
+            ret.completeExceptionally ( e );
+            return ret;
+        }
+        terminateAsync ( ret, () -> terminateAfterCommit ( true ) );
+        return ret;
+    }
+
+    /**
+     * Runs the 2PC part of termination on a pooled thread, which is
+     * only worth it for a root: subtransactions just update their coordinator.
+     * The 2PC never runs on the calling thread, not even with caller-runs.
+     */
+    private void terminateAsync ( CompletableFuture<Void> result, Termination termination )
+    {
+        Runnable task = () -> {
+            try {
+                termination.terminate();
+                result.complete ( null );
+            } catch ( Exception e ) {
+                result.completeExceptionally ( e );
+            }
+        };
+        if ( isRoot() ) submitAsync ( result, task );
+        else task.run();
+    }
+
+    /**
+     * Hands the task to the pool, or - if the pool is saturated - tries again 
+     * a little later from the timing service, which never blocks.
+     */
+    private static void submitAsync ( CompletableFuture<Void> result, Runnable task )
+    {
+        if ( TaskManager.SINGLETON.tryExecuteTask ( task ) ) return;
+        try {
+            TimingService.SINGLETON.schedule ( () -> submitAsync ( result, task ), TimingService.SINGLETON.getPrecision() );
+        } catch ( IllegalStateException shutdown ) {
+            result.completeExceptionally ( new SysException ( "Transaction service is shut down", shutdown ) );
+        }
+    }
+
+    @FunctionalInterface
+    private static interface Termination {
+        void terminate() throws Exception;
     }
 
     private boolean throwOnHeuristic()  {        
@@ -315,6 +418,27 @@ class CompositeTransactionImp extends AbstractCompositeTransaction implements FS
     public void rollback() throws IllegalStateException, SysException
     {
     	doRollback();
+    	terminateAfterRollback();
+    }
+
+    /**
+     * @see com.atomikos.icatch.CompositeTransaction#rollbackAsync()
+     */
+    public CompletionStage<Void> rollbackAsync ()
+    {
+        CompletableFuture<Void> ret = new CompletableFuture<Void>();
+        try {
+            doRollback();
+        } catch ( Exception e ) {
+            ret.completeExceptionally ( e );
+            return ret;
+        }
+        terminateAsync ( ret, this::terminateAfterRollback );
+        return ret;
+    }
+
+    private void terminateAfterRollback() throws SysException
+    {
     	try {
             if (isRoot()) {
                 coordinator.terminate(false);
@@ -8,15 +8,19 @@
 
 package com.atomikos.icatch.imp;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.Stack;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.atomikos.icatch.CompositeTransaction;
 import com.atomikos.icatch.CompositeTransactionManager;
+import com.atomikos.icatch.Lineage;
 import com.atomikos.icatch.Propagation;
 import com.atomikos.icatch.SubTxAwareParticipant;
 import com.atomikos.icatch.SysException;
+import com.atomikos.icatch.TransactionContext;
 import com.atomikos.icatch.TransactionService;
 import com.atomikos.icatch.config.Configuration;
 import com.atomikos.logging.Logger;
@@ -25,6 +29,13 @@ import com.atomikos.recovery.TxState;
 
 /**
  * Reusable (generic) composite transaction manager implementation.
+ * <p>
+ * The transactions of a thread are kept in a thread-local context, so looking
+ * up the current transaction is a single read without any global lock. 
+ * A concurrent reverse index from transaction to context allows other threads 
+ * (e.g., on timeout) to remove a transaction from its thread. Since contexts 
+ * attached via a {@link TransactionContext} handle can share a transaction
+ * with other threads, those are indexed separately.
  */
 
 public class CompositeTransactionManagerImp implements CompositeTransactionManager,
@@ -32,46 +43,81 @@ public class CompositeTransactionManagerImp implements CompositeTransactionManag
 {
 	private static final Logger LOGGER = LoggerFactory.createLogger(CompositeTransactionManagerImp.class);
 	
-	private Map<Thread, Stack<CompositeTransaction>> threadtotxmap_ = null;
-    private Map<CompositeTransaction, Thread> txtothreadmap_ = null;
+	private final ThreadLocal<ThreadContext> threadcontext_;
+    private final Map<CompositeTransaction, ThreadContext> txtocontextmap_;
+    private final Map<CompositeTransaction, Set<ThreadContext>> txtoattachedcontextsmap_;
+    private final TransactionContext emptycontext_;
 
 
     public CompositeTransactionManagerImp ()
     {
-        threadtotxmap_ = new HashMap<Thread, Stack<CompositeTransaction>> ();
-        txtothreadmap_ = new HashMap<CompositeTransaction, Thread> ();
+        threadcontext_ = new ThreadLocal<ThreadContext> ();
+        txtocontextmap_ = new ConcurrentHashMap<CompositeTransaction, ThreadContext> ();
+        txtoattachedcontextsmap_ = new ConcurrentHashMap<CompositeTransaction, Set<ThreadContext>> ();
+        emptycontext_ = new TransactionContext ( this, Lineage.EMPTY );
     }
 
+    /**
+     * Get the context of the calling thread, creating it if needed.
+     */
 
+    private ThreadContext getThreadContext ()
+    {
+        ThreadContext ret = threadcontext_.get ();
+        if ( ret == null ) {
+            ret = new ThreadContext ();
+            threadcontext_.set ( ret );
+        }
+        return ret;
+    }
 
     /**
-     * Get the thread associated with a given transaction.
+     * Index the context as one that has ct as its current transaction.
+     * Caller must hold the context's monitor.
      */
 
-    private Thread getThread ( CompositeTransaction ct )
+    private void addToIndex ( CompositeTransaction ct , ThreadContext context )
     {
-        Thread thread = null;
+        if ( context.attached ) {
+            txtoattachedcontextsmap_.computeIfAbsent ( ct, k -> ConcurrentHashMap.newKeySet () ).add ( context );
+        } else {
+            txtocontextmap_.put ( ct, context );
+        }
+    }
+
+    /**
+     * Caller must hold the context's monitor.
+     */
 
-        synchronized ( txtothreadmap_ ) {
-            thread = (Thread) txtothreadmap_.get ( ct );
+    private void removeFromIndex ( CompositeTransaction ct , ThreadContext context )
+    {
+        if ( context.attached ) {
+            txtoattachedcontextsmap_.computeIfPresent ( ct, ( k, contexts ) -> {
+                contexts.remove ( context );
+                return contexts.isEmpty () ? null : contexts;
+            } );
+        } else {
+            txtocontextmap_.remove ( ct, context );
         }
-        return thread;
     }
 
     /**
-     * Remove mappings for given thread.
+     * Remove mappings for given thread context.
      *
-     * @return Stack The tx stack that was for current thread.
+     * @return Lineage The transactions that were for the thread, possibly empty.
      */
 
-    private Stack<CompositeTransaction> removeThreadMappings ( Thread thread )
+    private Lineage removeThreadMappings ( ThreadContext context )
     {
 
-        Stack<CompositeTransaction> ret = null;
-        synchronized ( threadtotxmap_ ) {
-            ret = threadtotxmap_.remove ( thread );
-            CompositeTransaction tx = ret.peek ();
-            txtothreadmap_.remove ( tx );
+        Lineage ret = null;
+        synchronized ( context ) {
+            ret = context.txs;
+            context.txs = Lineage.EMPTY;
+            context.current = null;
+            if ( !ret.isEmpty() ) {
+                removeFromIndex ( ret.getParent (), context );
+            }
         }
         return ret;
     }
@@ -84,37 +130,36 @@ public class CompositeTransactionManagerImp implements CompositeTransactionManag
      *            by getting ct's coordinator.
      */
 
-    private void setThreadMappings ( CompositeTransaction ct , Thread thread )
+    private void setThreadMappings ( CompositeTransaction ct , ThreadContext context )
             throws IllegalStateException, SysException
     {
         //case 21806: callbacks to ct to be made outside synchronized block
     	ct.addSubTxAwareParticipant ( this ); //step 1
 
-        synchronized ( threadtotxmap_ ) {
+        synchronized ( context ) {
         	//between step 1 and here, intermediate timeout/rollback of the ct
         	//may have happened; make sure to check or we add a thread mapping
         	//that will never be removed!
         	if ( TxState.ACTIVE.equals ( ct.getState() )) {
-        		Stack<CompositeTransaction> txs = threadtotxmap_.get ( thread );
-        		if ( txs == null )
-        			txs = new Stack<CompositeTransaction>();
-        		txs.push ( ct );
-        		threadtotxmap_.put ( thread, txs );
-        		txtothreadmap_.put ( ct, thread );
+        		Lineage txs = context.txs;
+        		if ( txs.isEmpty () ) context.attached = false;
+        		context.txs = txs.push ( ct );
+        		context.current = ct;
+        		addToIndex ( ct, context );
         	}
         }
 
 
     }
 
-    private void restoreThreadMappings ( Stack<CompositeTransaction> stack , Thread thread )
+    private void restoreThreadMappings ( Lineage txs , ThreadContext context , boolean resumed )
             throws IllegalStateException
     {
     	//case 21806: callbacks to ct to be made outside synchronized block
-    	CompositeTransaction tx = stack.peek ();
+    	CompositeTransaction tx = txs.getParent ();
     	tx.addSubTxAwareParticipant(this); //step 1
 
-        synchronized ( threadtotxmap_ ) {
+        synchronized ( context ) {
         	//between step 1 and here, intermediate timeout/rollback of the ct
         	//may have happened; make sure to check or we add a thread mapping
         	//that will never be removed!
@@ -122,12 +167,13 @@ public class CompositeTransactionManagerImp implements CompositeTransactionManag
         	
         	if ( state.isOneOf(TxState.ACTIVE, TxState.MARKED_ABORT) ) {
         		//also resume for marked abort - see case 26398
-        		Stack<CompositeTransaction> txs = threadtotxmap_.get ( thread );
-        		if ( txs != null ) {
+        		if ( !context.txs.isEmpty () ) {
         		    throw new IllegalStateException ("Thread already has subtx stack" );
         		}
-        		threadtotxmap_.put ( thread, stack );
-        		txtothreadmap_.put ( tx, thread );
+        		if ( resumed ) context.attached = false;
+        		context.txs = txs;
+        		context.current = tx;
+        		addToIndex ( tx, context );
         	}
         }
     }
@@ -135,15 +181,11 @@ public class CompositeTransactionManagerImp implements CompositeTransactionManag
     private CompositeTransaction getCurrentTx ()
     {
         // 获取当前线程的事务栈, 获取栈顶的事务
-        Thread thread = Thread.currentThread ();
-        synchronized ( threadtotxmap_ ) {
-            Stack<CompositeTransaction> txs = threadtotxmap_.get ( thread );
-            if ( txs == null )
-                return null;
-            else
-                return txs.peek ();
-
-        }
+        ThreadContext context = threadcontext_.get ();
+        if ( context == null )
+            return null;
+        else
+            return context.current;
     }
 
     private TransactionService getTransactionService() {
@@ -248,8 +290,7 @@ public class CompositeTransactionManagerImp implements CompositeTransactionManag
             LOGGER.logWarning("Recreating a transaction with existing transaction: " + ct.getTid());
         }
         ct = getTransactionService().recreateCompositeTransaction(context);
-        Thread t = Thread.currentThread ();
-        setThreadMappings ( ct, t );
+        setThreadMappings ( ct, getThreadContext () );
         return ct;
     }
 
@@ -266,8 +307,7 @@ public class CompositeTransactionManagerImp implements CompositeTransactionManag
         	if(LOGGER.isDebugEnabled()){
         		LOGGER.logDebug("suspend() for transaction " + ret.getTid ());
         	}
-        	Thread thread = Thread.currentThread();   
-            removeThreadMappings ( thread );
+            removeThreadMappings ( getThreadContext () );
             suspendInTransactionService(ret);
         } else {
         	if(LOGGER.isDebugEnabled()){
@@ -303,28 +343,26 @@ public class CompositeTransactionManagerImp implements CompositeTransactionManag
     /**
      * @see CompositeTransactionManager
      */
-    @SuppressWarnings("unchecked")
     public void resume ( CompositeTransaction ct )
             throws IllegalStateException, SysException
     {
-        Stack<CompositeTransaction> ancestors = new Stack<CompositeTransaction>();
-        Stack<CompositeTransaction> tmp = new Stack<CompositeTransaction>();
-        Stack<CompositeTransaction> lineage = (Stack<CompositeTransaction>) ct.getLineage ().clone ();
+        List<CompositeTransaction> tmp = new ArrayList<CompositeTransaction>();
+        Lineage lineage = ct.getAncestors ();
         boolean done = false;
         while ( !lineage.isEmpty () && !done ) {
-            CompositeTransaction parent = lineage.pop ();
+            CompositeTransaction parent = lineage.getParent ();
+            lineage = lineage.pop ();
             if ( !parent.isLocal () )
                 done = true;
             else
-                tmp.push ( parent );
+                tmp.add ( parent );
         }
-        while ( !tmp.isEmpty () ) {
-            ancestors.push ( tmp.pop () );
+        Lineage ancestors = Lineage.EMPTY;
+        for ( int i = tmp.size () - 1 ; i >= 0 ; i-- ) {
+            ancestors = ancestors.push ( tmp.get ( i ) );
         }
-        ancestors.push ( ct );
 
-        Thread thread = Thread.currentThread ();
-        restoreThreadMappings ( ancestors, thread );
+        restoreThreadMappings ( ancestors.push ( ct ), getThreadContext (), true );
         resumeInTransactionService(ct);
         if(LOGGER.isDebugEnabled()) {
             LOGGER.logDebug("resume ( " + ct + " ) done for transaction " + ct.getTid ());
@@ -375,17 +413,112 @@ public class CompositeTransactionManagerImp implements CompositeTransactionManag
     {
         if ( ct == null ) return;
 
-        Thread thread = getThread ( ct );
-        if ( thread == null ) return;
+        ThreadContext context = txtocontextmap_.get ( ct );
+        if ( context != null ) removeTransaction ( context );
+
+        Set<ThreadContext> attached = txtoattachedcontextsmap_.get ( ct );
+        if ( attached != null ) {
+            for ( ThreadContext c : attached ) removeTransaction ( c );
+        }
+    }
 
-        Stack<CompositeTransaction> mappings = removeThreadMappings ( thread );
-        if ( mappings != null && !mappings.empty() ) {
-            mappings.pop();
-            if ( !mappings.empty()) {
-                restoreThreadMappings(mappings, thread);
+    private void removeTransaction ( ThreadContext context )
+    {
+        Lineage mappings = removeThreadMappings ( context );
+        if ( !mappings.isEmpty() ) {
+            mappings = mappings.pop ();
+            if ( !mappings.isEmpty()) {
+                restoreThreadMappings(mappings, context, false);
             }
         }
+    }
+
+    /**
+     * @param orTerminating
+     *            Also true once termination has started, since by then it may
+     *            have looked for the threads of ct already.
+     */
+
+    private static boolean hasEnded ( CompositeTransaction ct , boolean orTerminating )
+    {
+        if ( ct instanceof CompositeTransactionImp ) {
+            TransactionStateHandler handler = ((CompositeTransactionImp) ct).localGetTransactionStateHandler ();
+            // after rollback the state is still MARKED_ABORT, cf TxTerminatedStateHandler
+            if ( handler instanceof TxTerminatedStateHandler ) return true;
+            // while terminating the state is still ACTIVE
+            if ( orTerminating && handler instanceof TxTerminatingStateHandler ) return true;
+        }
+        return !ct.getState ().isOneOf ( TxState.ACTIVE, TxState.MARKED_ABORT );
+    }
+
+    /**
+     * For testing only.
+     */
+
+    int getTransactionsWithAttachedContextsCount ()
+    {
+        return txtoattachedcontextsmap_.size ();
+    }
+
+    /**
+     * @see CompositeTransactionManager
+     */
+
+    public TransactionContext captureContext ()
+    {
+        ThreadContext context = threadcontext_.get ();
+        if ( context == null ) return emptycontext_;
+        Lineage txs;
+        synchronized ( context ) {
+            txs = context.txs;
+        }
+        return txs.isEmpty () ? emptycontext_ : new TransactionContext ( this, txs );
+    }
+
+    /**
+     * @see CompositeTransactionManager
+     */
 
+    public TransactionContext attachContext ( TransactionContext transactionContext )
+    {
+        // the transactions were captured from a thread, so we are already registered as participant
+        ThreadContext context = getThreadContext ();
+        Lineage previous;
+        synchronized ( context ) {
+            previous = context.txs;
+            if ( !previous.isEmpty () ) {
+                removeFromIndex ( previous.getParent (), context );
+            }
+            Lineage txs = transactionContext.getTransactions ();
+            // restoring the thread's own transactions: not shared, so not attached
+            boolean own = !txs.isEmpty () && txs == context.owntxs;
+            if ( own ) {
+                context.owntxs = null;
+            } else if ( !context.attached && !previous.isEmpty () ) {
+                context.owntxs = previous;
+            }
+            CompositeTransaction tx = txs.getParent ();
+            // other threads can't join once termination started, but the own thread can still come back
+            if ( tx == null || hasEnded ( tx, !own ) ) {
+                // ended in the meantime
+                txs = Lineage.EMPTY;
+                tx = null;
+            }
+            context.txs = txs;
+            context.current = tx;
+            context.attached = tx != null && !own;
+            if ( tx != null ) {
+                addToIndex ( tx, context );
+                // termination may have looked for this context before it was indexed
+                if ( hasEnded ( tx, !own ) ) {
+                    removeFromIndex ( tx, context );
+                    context.txs = Lineage.EMPTY;
+                    context.current = null;
+                    context.attached = false;
+                }
+            }
+        }
+        return previous.isEmpty () ? emptycontext_ : new TransactionContext ( this, previous );
     }
 
     /**
@@ -414,10 +547,27 @@ public class CompositeTransactionManagerImp implements CompositeTransactionManag
 
         }
         // 然后把这个事务压入当前线程的事务栈中
-        Thread thread = Thread.currentThread ();
-        setThreadMappings ( ret, thread );
+        setThreadMappings ( ret, getThreadContext () );
 
         return ret;
     }
 
+    /**
+     * The transactions of one thread. Only the owning thread reads the
+     * current transaction; updates (possibly from other threads) are 
+     * made while holding the context's monitor.
+     */
+
+    private static final class ThreadContext
+    {
+        // the local txs of the thread, top is current; EMPTY if none
+        Lineage txs = Lineage.EMPTY;
+        // the top of txs, for lock-free lookup
+        volatile CompositeTransaction current;
+        // true if txs came from a TransactionContext and may be shared with other threads
+        boolean attached;
+        // the thread's own txs while another context is attached, to recognize their restore
+        Lineage owntxs;
+    }
+
 }
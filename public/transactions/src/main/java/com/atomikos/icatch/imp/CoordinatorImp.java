@@ -12,6 +12,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.Vector;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.atomikos.finitestates.FSM;
 import com.atomikos.finitestates.FSMEnterEvent;
@@ -40,10 +41,9 @@ import com.atomikos.persistence.RecoverableCoordinator;
 import com.atomikos.publish.EventPublisher;
 import com.atomikos.recovery.PendingTransactionRecord;
 import com.atomikos.recovery.TxState;
-import com.atomikos.thread.TaskManager;
 import com.atomikos.timing.AlarmTimer;
 import com.atomikos.timing.AlarmTimerListener;
-import com.atomikos.timing.PooledAlarmTimer;
+import com.atomikos.timing.TimingService;
 
 /**
  *
@@ -58,7 +58,6 @@ public class CoordinatorImp implements CompositeCoordinator, Participant,
 	private static final Logger LOGGER = LoggerFactory.createLogger(CoordinatorImp.class);
 
     static long DEFAULT_MILLIS_BETWEEN_TIMER_WAKEUPS = 150;
-    // SHOULD NOT BE BIG, otherwise lots of sleeping threads -> OUT OF MEMORY!
     
     private static final int MAX_NUMBER_OF_TIMEOUT_TICKS_FOR_INDOUBTS = 30;
     private static final int MAX_NUMBER_OF_TIMEOUT_TICKS_BEFORE_ROLLBACK_OF_ACTIVES = 30;
@@ -73,6 +72,8 @@ public class CoordinatorImp implements CompositeCoordinator, Participant,
     private String root_ = null;
     private String coordinatorId = null;
     private FSM fsm_ = null;
+    // shared with fsm_; not a monitor so blocking 2PC calls do not pin virtual threads
+    private final ReentrantLock lock_ = new ReentrantLock ();
     private Vector<Participant> participants_ = new Vector<Participant>();
     private RecoveryCoordinator superiorCoordinator_ = null; 
 
@@ -100,7 +101,7 @@ public class CoordinatorImp implements CompositeCoordinator, Participant,
     }
 
 	private void initFsm(TxState initialState) {
-		fsm_ = new FSMImp ( this, initialState );
+		fsm_ = new FSMImp ( this, initialState, lock_ );
         fsm_.addFSMPreEnterListener ( this, TxState.TERMINATED );
         fsm_.addFSMPreEnterListener ( this, TxState.HEUR_COMMITTED );
         fsm_.addFSMPreEnterListener ( this, TxState.HEUR_ABORTED );
@@ -254,22 +255,18 @@ public class CoordinatorImp implements CompositeCoordinator, Participant,
 
     private void startThreads ( long timeout )
     {
-    	synchronized ( fsm_ ) {
+    	lock_.lock ();
+    	try {
     		if ( timer_ == null ) { //not null for repeated recovery 
     			stateHandler_.activate ();
-    			timer_ = new PooledAlarmTimer(timeout);
-    			timer_.addAlarmTimerListener(this);
-    			submitTimer(timer_);
+    			timer_ = TimingService.SINGLETON.startAlarmTimer ( timeout, this );
     		} 
+    	} finally {
+    		lock_.unlock ();
     	}
 
     }
 
-   
-    private void submitTimer(AlarmTimer timer) {
-    		TaskManager.SINGLETON.executeTask (timer);
-	}
-
 	protected long getTimeOut ()
     {
         return (maxNumberOfTimeoutTicksBeforeRollback_ - stateHandler_.getRollbackTicks ())
@@ -350,7 +347,8 @@ public class CoordinatorImp implements CompositeCoordinator, Participant,
             Participant participant ) throws SysException,
             java.lang.IllegalStateException, RollbackException
     {
-    	synchronized ( fsm_ ) {
+    	lock_.lock ();
+    	try {
     		if ( !getState ().equals ( TxState.ACTIVE ) )
     			throw new IllegalStateException (
     					getCoordinatorId() +
@@ -363,6 +361,8 @@ public class CoordinatorImp implements CompositeCoordinator, Participant,
     		}
     		//make sure that aftercompletion notification is done.
     		setState ( TxState.ACTIVE );
+    	} finally {
+    		lock_.unlock ();
     	}
 
 
@@ -376,23 +376,32 @@ public class CoordinatorImp implements CompositeCoordinator, Participant,
 
     protected void incLocalSiblingsStarted ()
     {
-    	synchronized ( fsm_ ) {
+    	lock_.lock ();
+    	try {
     		localSiblingsStarted++;
+    	} finally {
+    		lock_.unlock ();
     	}
     }
     
     protected void incLocalSiblingsTerminated() throws HeurRollbackException, HeurMixedException, SysException, SecurityException, HeurCommitException, HeurHazardException, IllegalStateException, RollbackException {
-        synchronized ( fsm_ ) {
+        lock_.lock ();
+        try {
             localSiblingsTerminated++;
             if (hasTimedOut() && !hasActiveSiblings()) {
                 terminate(false);
             }
+        } finally {
+            lock_.unlock ();
         }
     }
     
     boolean hasTimedOut() {
-        synchronized ( fsm_ ) {
+        lock_.lock ();
+        try {
             return timedout;
+        } finally {
+            lock_.unlock ();
         }
     }
 
@@ -406,10 +415,13 @@ public class CoordinatorImp implements CompositeCoordinator, Participant,
 
     {
 
-    	synchronized ( fsm_ ) {
+    	lock_.lock ();
+    	try {
     		if ( !getState ().equals ( TxState.ACTIVE ) )
     			throw new IllegalStateException ( "wrong state: " + getState () );   		
     		rememberSychronizationForAfterCompletion(sync);
+    	} finally {
+    		lock_.unlock ();
     	}
     }
 
@@ -419,9 +431,12 @@ public class CoordinatorImp implements CompositeCoordinator, Participant,
 	}
 
 	private List<Synchronization> getSynchronizations() {
-		synchronized(fsm_) {
+		lock_.lock ();
+		try {
 			if (synchronizations == null) synchronizations = new ArrayList<Synchronization>();
 			return synchronizations;
+		} finally {
+			lock_.unlock ();
 		}
 	}
 	
@@ -521,7 +536,8 @@ public class CoordinatorImp implements CompositeCoordinator, Participant,
             throw new RollbackException ( "Recursion detected" );
 
         int ret = Participant.READ_ONLY + 1;
-        synchronized ( fsm_ ) {
+        lock_.lock ();
+        try {
         	ret = stateHandler_.prepare ();
         	if ( ret == Participant.READ_ONLY ) {
 
@@ -532,6 +548,8 @@ public class CoordinatorImp implements CompositeCoordinator, Participant,
         		 if ( LOGGER.isTraceEnabled() ) LOGGER.logTrace ( "prepare() of Coordinator  " + getCoordinatorId ()
          				+ " returning YES vote");
         	}
+        } finally {
+            lock_.unlock ();
         }
         return ret;
 
@@ -546,8 +564,11 @@ public class CoordinatorImp implements CompositeCoordinator, Participant,
             HeurHazardException, java.lang.IllegalStateException,
             RollbackException, SysException
     {
-    	synchronized ( fsm_ ) {
+    	lock_.lock ();
+    	try {
     		 stateHandler_.commit(onePhase);
+    	} finally {
+    		lock_.unlock ();
     	}
     }
 
@@ -575,8 +596,11 @@ public class CoordinatorImp implements CompositeCoordinator, Participant,
         // here, we are certain that no RECURSIVE call is going on,
         // so we can safely lock this instance.
 
-        synchronized ( fsm_ ) {
+        lock_.lock ();
+        try {
         	stateHandler_.rollback();
+        } finally {
+            lock_.unlock ();
         }
     }
 
@@ -585,8 +609,11 @@ public class CoordinatorImp implements CompositeCoordinator, Participant,
             throws HeurCommitException, HeurMixedException, SysException,
             HeurHazardException, java.lang.IllegalStateException
     {
-        synchronized ( fsm_ ) {
+        lock_.lock ();
+        try {
         	stateHandler_.rollbackHeuristically();
+        } finally {
+            lock_.unlock ();
         } 
     }
 
@@ -594,8 +621,11 @@ public class CoordinatorImp implements CompositeCoordinator, Participant,
             SysException, HeurRollbackException, HeurHazardException,
             java.lang.IllegalStateException, RollbackException
     {
-    	synchronized ( fsm_ ) {
+    	lock_.lock ();
+    	try {
     		stateHandler_.commitHeuristically();
+    	} finally {
+    		lock_.unlock ();
     	}
     }
 
@@ -613,8 +643,11 @@ public class CoordinatorImp implements CompositeCoordinator, Participant,
                     + " for participant " + participant.toString ());
     	}
         Boolean ret = null;
-        synchronized ( fsm_ ) {
+        lock_.lock ();
+        try {
         	ret = stateHandler_.replayCompletion ( participant );
+        } finally {
+            lock_.unlock ();
         }
         return ret;
     }
@@ -652,7 +685,8 @@ public class CoordinatorImp implements CompositeCoordinator, Participant,
 
     protected void dispose ()
     {
-    	synchronized ( fsm_ ) {
+    	lock_.lock ();
+    	try {
     		if ( timer_ != null ) {
     			if ( LOGGER.isTraceEnabled() ) LOGGER.logTrace ( "Coordinator " + getCoordinatorId() + " : stopping timer..." );
     			timer_.stopTimer ();
@@ -660,6 +694,8 @@ public class CoordinatorImp implements CompositeCoordinator, Participant,
     		if ( LOGGER.isTraceEnabled() ) LOGGER.logTrace ( "Coordinator " + getCoordinatorId() + " : disposing statehandler " + stateHandler_.getState() + "..." );
     		stateHandler_.dispose ();
     		if ( LOGGER.isTraceEnabled() ) LOGGER.logTrace ( "Coordinator " + getCoordinatorId() + " : disposed." );
+    	} finally {
+    		lock_.unlock ();
     	}
     }
 
@@ -676,7 +712,8 @@ public class CoordinatorImp implements CompositeCoordinator, Participant,
             IllegalStateException
 
     {    
-    	synchronized ( fsm_ ) {
+    	lock_.lock ();
+    	try {
     		if ( commit ) {
     			if ( participants_.size () <= 1 ) {
     				commit ( true );
@@ -691,6 +728,8 @@ public class CoordinatorImp implements CompositeCoordinator, Participant,
     		} else {
     			rollback ();
     		}
+    	} finally {
+    		lock_.unlock ();
     	}
     }
 
@@ -734,7 +773,8 @@ public class CoordinatorImp implements CompositeCoordinator, Participant,
 	
 	@Override
 	public PendingTransactionRecord getPendingTransactionRecord(TxState state) {
-		synchronized ( fsm_ ) {
+		lock_.lock ();
+		try {
     		if ( excludedFromLogging(state)) {
     				//merely return null to avoid logging overhead
     				return null;
@@ -742,6 +782,8 @@ public class CoordinatorImp implements CompositeCoordinator, Participant,
     		else {
         		return new PendingTransactionRecord(this.getCoordinatorId(), state, this.getExpires(), recoveryDomainName, superiorCoordinatorId());	
     		}	
+    	} finally {
+    		lock_.unlock ();
     	}
 	}
 
@@ -771,11 +813,14 @@ public class CoordinatorImp implements CompositeCoordinator, Participant,
 	}
 
     public void timedout(boolean rollbackOnly) {
-        synchronized ( fsm_ ) {
+        lock_.lock ();
+        try {
             timedout = true;
             if (rollbackOnly) {
                 setRollbackOnly();
             }
+        } finally {
+            lock_.unlock ();
         }
         
     }
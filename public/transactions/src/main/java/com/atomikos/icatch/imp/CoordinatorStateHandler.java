@@ -8,10 +8,12 @@
 
 package com.atomikos.icatch.imp;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Enumeration;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
@@ -55,7 +57,7 @@ abstract class CoordinatorStateHandler
     // The propagator for propagation of messages
 
     private Stack<Participant> replayStack_;
-    // where replay requests are queued
+    // where replay requests are queued, created on the first request
 
     private Boolean committed_;
     // True iff commit, False iff rollback, otherwise null
@@ -74,8 +76,7 @@ abstract class CoordinatorStateHandler
     protected CoordinatorStateHandler ( CoordinatorImp coordinator )
     {
         coordinator_ = coordinator;
-        replayStack_ = new Stack<Participant>();
-        readOnlyTable_ = new HashSet<Participant> ();
+        readOnlyTable_ = Collections.emptySet();
         committed_ = null;
     }
 
@@ -92,7 +93,10 @@ abstract class CoordinatorStateHandler
     {
         coordinator_ = other.coordinator_;
         propagator_ = other.propagator_;
-        replayStack_ = other.replayStack_;
+        if ( other.replayStack_ != null ) {
+            replayStack_ = new Stack<Participant>();
+            replayStack_.addAll ( other.replayStack_ );
+        }
         readOnlyTable_ = other.readOnlyTable_;
         committed_ = other.committed_;
         cascadeList_ = other.cascadeList_;
@@ -132,6 +136,8 @@ abstract class CoordinatorStateHandler
 
     protected Stack<Participant> getReplayStack ()
     {
+        if ( replayStack_ == null )
+            replayStack_ = new Stack<Participant>();
         return replayStack_;
     }
 
@@ -230,9 +236,10 @@ abstract class CoordinatorStateHandler
     protected Boolean replayCompletion ( Participant participant )
             throws IllegalStateException
     {
-        if ( !replayStack_.contains ( participant ) ) {
+        Stack<Participant> replayStack = getReplayStack ();
+        if ( !replayStack.contains ( participant ) ) {
         	// check needed to be idempotent
-            replayStack_.push ( participant );
+            replayStack.push ( participant );
         }
         return committed_;
     }
@@ -353,6 +360,7 @@ abstract class CoordinatorStateHandler
 
 
             // start messages
+            List<CommitMessage> messages = new ArrayList<CommitMessage> ( count );
             Enumeration<Participant> enumm = participants.elements ();
             while ( enumm.hasMoreElements () ) {
                 Participant p = enumm.nextElement ();
@@ -370,9 +378,10 @@ abstract class CoordinatorStateHandler
                             p.setGlobalSiblingCount ( sibnum.intValue () );
                         p.setCascadeList ( cascadeList_ );
                     }
-                    propagator_.submitPropagationMessage ( cm );
+                    messages.add ( cm );
                 }
             } // while
+            propagator_.submitPropagationMessages ( messages );
 
             commitresult.waitForReplies ();
             int res = commitresult.getResult ();
@@ -458,22 +467,24 @@ abstract class CoordinatorStateHandler
 
             // mark decision for replay requests; since these might only
             // see TERMINATED state!
-            committed_ = new Boolean ( false );
+            committed_ = Boolean.FALSE;
 
             Vector<Participant> participants = coordinator_.getParticipants ();
             int count = (participants.size () - readOnlyTable_.size ());
 
             TerminationResult rollbackresult = new TerminationResult ( count );
 
+            List<RollbackMessage> messages = new ArrayList<RollbackMessage> ( count );
             Enumeration<Participant> enumm = participants.elements ();
             while ( enumm.hasMoreElements () ) {
                 Participant p = enumm.nextElement ();
                 if ( !readOnlyTable_.contains ( p ) ) {
                     RollbackMessage rm = new RollbackMessage ( p,
                             rollbackresult, indoubt );
-                    propagator_.submitPropagationMessage ( rm );
+                    messages.add ( rm );
                 }
             } 
+            propagator_.submitPropagationMessages ( messages );
 
             rollbackresult.waitForReplies ();
             int res = rollbackresult.getResult ();
@@ -543,14 +554,16 @@ abstract class CoordinatorStateHandler
         int count = (participants.size () - readOnlyTable_.size ());
         Enumeration<Participant> enumm = participants.elements ();
         ForgetResult result = new ForgetResult ( count );
+        List<ForgetMessage> messages = new ArrayList<ForgetMessage> ( count );
         while ( enumm.hasMoreElements () ) {
             Participant p = (Participant) enumm.nextElement ();
             if ( !readOnlyTable_.contains ( p ) ) {
                 ForgetMessage fm = new ForgetMessage ( p, result );
-                propagator_.submitPropagationMessage ( fm );
+                messages.add ( fm );
             }
 
         }
+        propagator_.submitPropagationMessages ( messages );
         try {
             result.waitForReplies ();
         } catch ( InterruptedException inter ) {
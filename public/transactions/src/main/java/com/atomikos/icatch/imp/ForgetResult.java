@@ -17,7 +17,7 @@ class ForgetResult extends Result
 
     }
 
-    protected synchronized void calculateResultFromAllReplies() throws IllegalStateException,
+    protected void calculateResultFromAllReplies() throws IllegalStateException,
             InterruptedException
 
     {
@@ -8,7 +8,8 @@
 
 package com.atomikos.icatch.imp;
 
-import java.util.Enumeration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Set;
 import java.util.Stack;
 import java.util.Vector;
@@ -63,24 +64,23 @@ class HeurHazardStateHandler extends CoordinatorStateHandler
         	committed = commitDecided.booleanValue ();
             int count = replayStack.size ();
             TerminationResult result = new TerminationResult ( count );
+            List<PropagationMessage> messages = new ArrayList<PropagationMessage> ( count );
 
             while ( !replayStack.empty () ) {
                 Participant part = replayStack.pop ();
                 if ( committed ) {
                     CommitMessage cm = new CommitMessage ( part, result, false );
-                    getPropagator ().submitPropagationMessage ( cm );
+                    messages.add ( cm );
                 } else {
                     RollbackMessage rm = new RollbackMessage ( part, result,
                             true );
-                    getPropagator ().submitPropagationMessage ( rm );
+                    messages.add ( rm );
                 }
             }
+            getPropagator ().submitPropagationMessages ( messages );
             try {
                 result.waitForReplies ();
-                Stack<Reply> replies = result.getReplies ();
-                Enumeration<Reply> enumm = replies.elements ();
-                while ( enumm.hasMoreElements () ) {
-                    Reply reply = enumm.nextElement ();
+                for ( Reply reply : result.getReplies () ) {
 
                     if ( !reply.hasFailed () ) {
                         hazards_.remove ( reply.getParticipant () );
@@ -8,10 +8,7 @@
 
 package com.atomikos.icatch.imp;
 
-import java.util.Enumeration;
-import java.util.HashSet;
 import java.util.Set;
-import java.util.Stack;
 
 import com.atomikos.icatch.HeurCommitException;
 import com.atomikos.icatch.HeurHazardException;
@@ -25,11 +22,8 @@ import com.atomikos.icatch.Participant;
 class PrepareResult extends Result
 {
 
-    private Set<Participant> readonlytable_ = new HashSet<Participant> ();
-    // for read only voters
-    private Set<Participant> indoubts_ = new HashSet<Participant>();
-    // for indoubt participants
-    // should be rolled back in case of failure!
+    private Set<Participant> readonlytable_ = null;
+    // for read only voters, created lazily
 
     private boolean analyzed_ = false;
 
@@ -45,7 +39,7 @@ class PrepareResult extends Result
         super ( count );
     }
 
-    protected synchronized void calculateResultFromAllReplies () throws IllegalStateException,
+    protected void calculateResultFromAllReplies () throws IllegalStateException,
             InterruptedException
     {
         if ( analyzed_ )
@@ -56,15 +50,10 @@ class PrepareResult extends Result
         boolean heurmixed = false;
         boolean heurhazards = false;
         boolean heurcommits = false;
-        Stack<Reply> replies = getReplies ();
-        Enumeration<Reply> enumm = replies.elements ();
-
-        while ( enumm.hasMoreElements () ) {
+        for ( Reply reply : getReplies () ) {
             boolean yes = false;
             boolean readonly = false;
 
-            Reply reply = (Reply) enumm.nextElement ();
-
             if ( reply.hasFailed () ) {
                 yes = false;
                 readonly = false;
@@ -78,7 +67,6 @@ class PrepareResult extends Result
                 } else if ( err instanceof HeurHazardException ) {
                     heurhazards = true;
                     heurmixed = (heurmixed || heurcommits);
-                    indoubts_.add ( reply.getParticipant ());
                     // REMEMBER: might be indoubt, so HAS to be notified
                     // during rollback!
                 }
@@ -87,15 +75,14 @@ class PrepareResult extends Result
 
             else {
                 readonly = (reply.getResponse () == null);
-                Boolean answer = new Boolean ( false );
+                Boolean answer = Boolean.FALSE;
                 if ( !readonly ) {
                     answer = (Boolean) reply.getResponse ();
                 }
                 yes = (readonly || answer.booleanValue ());
 
                 // if readonly: remember this fact for logging and second phase
-                if ( readonly ) readonlytable_.add ( reply.getParticipant () );
-                else indoubts_.add ( reply.getParticipant ());
+                if ( readonly ) readonlytable_ = addTo ( readonlytable_, reply.getParticipant () );
             }
 
             allYes = (allYes && yes);
@@ -128,7 +115,7 @@ class PrepareResult extends Result
 
     public boolean allYes () throws InterruptedException
     {
-        calculateResultFromAllReplies ();
+        awaitResult ();
         return (result_ == ALL_OK || result_ == ALL_READONLY);
 
     }
@@ -143,7 +130,7 @@ class PrepareResult extends Result
 
     public boolean allReadOnly () throws InterruptedException
     {
-        calculateResultFromAllReplies ();
+        awaitResult ();
         return (result_ == ALL_READONLY);
     }
 
@@ -157,8 +144,8 @@ class PrepareResult extends Result
 
     public Set<Participant> getReadOnlyTable () throws InterruptedException
     {
-        calculateResultFromAllReplies ();
-        return readonlytable_;
+        awaitResult ();
+        return nonNull ( readonlytable_ );
     }
 
 }
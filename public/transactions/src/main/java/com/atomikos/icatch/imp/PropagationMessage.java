@@ -9,6 +9,7 @@
 package com.atomikos.icatch.imp;
 
 import com.atomikos.icatch.Participant;
+import com.atomikos.icatch.SysException;
 import com.atomikos.icatch.config.Configuration;
 
 /**
@@ -27,6 +28,7 @@ abstract class PropagationMessage
     private Participant participant_;
     private int retrycount_ = 0;
     private Result result_ = null;
+    private Exception lastError_ = null;
 
     public PropagationMessage ( Participant participant , Result result )
     {
@@ -73,6 +75,7 @@ abstract class PropagationMessage
             if ( failed && transienterr && retrycount_ < MAX_RETRIES_ON_COMM_FAILURE ) {
                 retried = true;
                 retrycount_++;
+                lastError_ = exception;
             }
             if ( result_ != null ) {
                 result_.addReply ( new Reply ( result, exception,
@@ -82,4 +85,18 @@ abstract class PropagationMessage
         return retried;
     }
 
+    /**
+     * Called by system instead of retrying again: reports the last failure
+     * to the result object, as if no more retries were allowed.
+     */
+
+    protected void abandonRetries ()
+    {
+        if ( result_ != null ) {
+            Exception cause = lastError_;
+            if ( cause == null ) cause = new SysException ( "Retries abandoned for participant: " + getParticipant () );
+            result_.addReply ( new Reply ( null, cause, getParticipant (), false ) );
+        }
+    }
+
 }
@@ -8,13 +8,35 @@
 
 package com.atomikos.icatch.imp;
 
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
 import com.atomikos.icatch.config.Configuration;
 import com.atomikos.logging.Logger;
 import com.atomikos.logging.LoggerFactory;
 import com.atomikos.thread.TaskManager;
+import com.atomikos.timing.TimingService;
 
 /**
  * A propagator sends PropagationMessages to participants.
+ * In threaded mode, retries are scheduled on the shared timing service
+ * instead of keeping a thread asleep between attempts - so the
+ * number of threads does not grow while a resource is down.
+ * Retries that can no longer be scheduled, or that are still pending 
+ * when the timing service shuts down, are given up: their failure is 
+ * reported so the result does not wait forever.
+ * <p>
+ * For a batch of messages in threaded mode, all but the last message are
+ * handed to the thread pool and the last one is sent on the calling thread:
+ * the caller has to wait for the replies anyway, and with only one 
+ * participant there is no thread handoff at all.
+ * <p>
+ * This only changes threaded mode. Transactions started through the default
+ * assembly use single-threaded 2PC: their messages are all sent one after the
+ * other on the calling thread, exactly as before - there is no handoff to save.
+ * Threaded mode is used by coordinators that are not created that way, like 
+ * recovered ones.
  */
 
 class Propagator
@@ -24,6 +46,9 @@ class Propagator
     static long RETRY_INTERVAL = Configuration.getConfigProperties().getOltpRetryInterval();
 
 
+    // retries waiting on the timing service, which discards them on shutdown
+    private static final Set<PropagatorThread> pendingRetries = ConcurrentHashMap.newKeySet();
+
     private boolean threaded_ = true;
 
     
@@ -35,7 +60,7 @@ class Propagator
     
     public synchronized void submitPropagationMessage ( PropagationMessage msg )
     {
-    		PropagatorThread t = new PropagatorThread ( msg );
+    		PropagatorThread t = new PropagatorThread ( msg, threaded_ );
     		if ( threaded_ ) {
     			TaskManager.SINGLETON.executeTask ( t );
     		} else {
@@ -44,15 +69,48 @@ class Propagator
     
     }
 
+    /**
+     * Submits a batch of messages whose replies go to the same result.
+     * In threaded mode, the last message is sent inline on the calling thread,
+     * but any retries are scheduled like for the other messages.
+     * Otherwise, all messages are sent on the calling thread, in order.
+     * 
+     * @param msgs The messages, possibly empty.
+     */
+    public void submitPropagationMessages ( List<? extends PropagationMessage> msgs )
+    {
+    		int last = msgs.size() - 1;
+    		for ( int i = 0 ; i < last ; i++ ) {
+    			submitPropagationMessage ( msgs.get ( i ) );
+    		}
+    		if ( last >= 0 ) {
+    			// not synchronized: don't hold the lock while the participant works
+    			// threaded: only the first attempt is inline, retries go to the pool
+    			new PropagatorThread ( msgs.get ( last ), threaded_ ).run();
+    		}
+    }
+
+    /**
+     * Gives up the retries still pending after the timing service was shut down.
+     * Retries scheduled from then on give up by themselves.
+     */
+    static void abandonPendingRetries()
+    {
+    		for ( PropagatorThread retry : pendingRetries ) {
+    			retry.abandon();
+    		}
+    }
 
     
     private static class PropagatorThread implements Runnable
     {
     		private PropagationMessage msg;
+    		private boolean threaded;
     		
-    		PropagatorThread ( PropagationMessage msg ) 
+    		PropagatorThread ( PropagationMessage msg, boolean threaded ) 
     		{
     			this.msg = msg;
+    			this.threaded = threaded;
     		}
     		
     		public void run() 
@@ -61,8 +119,12 @@ class Propagator
         			boolean tryAgain = true;
         			do {
         				tryAgain = msg.submit();
-        				if ( tryAgain  ) {
-        				  //wait a little before retrying
+        				if ( tryAgain && threaded ) {
+        					// don't sleep: release the thread and come back later
+        					scheduleRetry();
+        					tryAgain = false;
+        				} else if ( tryAgain ) {
+        				  //inline: we are on the caller's thread anyway - wait a little before retrying
         				  Thread.sleep ( RETRY_INTERVAL );
                           if ( LOGGER.isTraceEnabled() ) LOGGER.logTrace ( "Propagator: retrying " + "message: " + msg );
         				}
@@ -73,6 +135,33 @@ class Propagator
                             (msg != null ? " while sending message: " + msg : "") , e );
         		}
     		}
+
+    		private void scheduleRetry()
+    		{
+    			pendingRetries.add ( this );
+    			try {
+    				TimingService.SINGLETON.schedule ( this::retry, RETRY_INTERVAL );
+    			} catch ( IllegalStateException shutdown ) {
+    				abandon();
+    			}
+    		}
+
+    		private void abandon()
+    		{
+    			// whoever removes it first - the timeout or the shutdown - owns the retry
+    			if ( pendingRetries.remove ( this ) ) {
+    				LOGGER.logWarning ( "Propagator: shutdown - no more retries for message: " + msg );
+    				msg.abandonRetries();
+    			}
+    		}
+
+    		private void retry()
+    		{
+    			if ( !pendingRetries.remove ( this ) ) return; // abandoned
+    			// on the timer thread: never block it, not even with caller-runs
+    			if ( LOGGER.isTraceEnabled() ) LOGGER.logTrace ( "Propagator: retrying " + "message: " + msg );
+    			if ( !TaskManager.SINGLETON.tryExecuteTask ( this ) ) scheduleRetry();
+    		}
     	
     }
 }
@@ -22,10 +22,9 @@ import com.atomikos.publish.EventPublisher;
 import com.atomikos.recovery.PendingTransactionRecord;
 import com.atomikos.recovery.RecoveryLog;
 import com.atomikos.recovery.TxState;
-import com.atomikos.thread.TaskManager;
 import com.atomikos.timing.AlarmTimer;
 import com.atomikos.timing.AlarmTimerListener;
-import com.atomikos.timing.PooledAlarmTimer;
+import com.atomikos.timing.TimingService;
 
 public class RecoveryDomainService {
 
@@ -38,7 +37,7 @@ public class RecoveryDomainService {
 	}
 
 	private long maxTimeout;
-	private PooledAlarmTimer recoveryTimer;
+	private AlarmTimer recoveryTimer;
 	private String recoveryDomainName;
 
 	public void init() {
@@ -46,16 +45,13 @@ public class RecoveryDomainService {
 	    long recoveryDelay = Configuration.getConfigProperties().getRecoveryDelay();
 	    setMaxTimeout(Configuration.getConfigProperties().getMaxTimeout());
 	    recoveryDomainName = Configuration.getConfigProperties().getTmUniqueName();
-	    recoveryTimer = new PooledAlarmTimer(recoveryDelay);
-
-	    recoveryTimer.addAlarmTimerListener(new AlarmTimerListener() {
+	    recoveryTimer = TimingService.SINGLETON.startAlarmTimer(recoveryDelay, new AlarmTimerListener() {
 
 	        @Override
 	        public void alarm(AlarmTimer timer) {				
 	            performRecovery();
 	        }
-	    });			
-	    TaskManager.SINGLETON.executeTask(recoveryTimer);
+	    });
 	  
 	}
 
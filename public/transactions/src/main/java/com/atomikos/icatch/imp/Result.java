@@ -8,14 +8,25 @@
 
 package com.atomikos.icatch.imp;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Objects;
 import java.util.Set;
-import java.util.Stack;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
 
 import com.atomikos.icatch.Participant;
 
 /**
  * A Result is responsible for collecting the replies of a termination round.
+ * Most rounds have only a few participants, so the replies go into a plain
+ * array sized for the expected number of replies, and duplicates are found
+ * by scanning it. Waiters block on a future that is only created if they
+ * actually have to wait - so nobody needs to hold a monitor while waiting.
  */
 
 abstract class Result
@@ -25,16 +36,25 @@ abstract class Result
             HEUR_ROLLBACK = 3 , HEUR_COMMIT = 4 , ALL_READONLY = 5 ,
             ROLLBACK = 6;
 
+    // beyond this many replies, duplicates are looked up in a set instead of scanning
+    private static final int MAX_REPLIES_TO_SCAN = 16;
+
+    private static final Reply[] NO_REPLIES = new Reply[0];
+
     protected int result_ = -1;
     // should be set by analyze()
 
-    protected int numberOfMissingReplies_ = 0;
-    protected Stack<Reply> replies_ = new Stack<Reply>();
-    private Set<Participant> repliedlist_ = new HashSet<Participant>();
+    // the fields below are guarded by this, but the count is volatile for a lock-free check
+    private volatile int numberOfMissingReplies_;
+    private Reply[] replies_;
+    private int numberOfReplies_;
+    private Set<Participant> repliedlist_;
+    private CompletableFuture<Void> allRepliesArrived_;
 
     public Result ( int numberOfRepliesToWaitFor )
     {
         numberOfMissingReplies_ = numberOfRepliesToWaitFor;
+        replies_ = numberOfRepliesToWaitFor > 0 ? new Reply[numberOfRepliesToWaitFor] : NO_REPLIES;
     }
 
     /**
@@ -50,13 +70,29 @@ abstract class Result
 
     public int getResult() throws IllegalStateException, InterruptedException
     {
-        calculateResultFromAllReplies();
+        awaitResult();
         return result_;
     }
 
+    /**
+     * Waits for all replies and then lets the subclass analyze them, with the monitor held.
+     *
+     * @exception InterruptedException
+     *                If interrupted during wait.
+     */
+
+    protected final void awaitResult() throws InterruptedException
+    {
+        waitForReplies();
+        synchronized ( this ) {
+            calculateResultFromAllReplies();
+        }
+    }
+
 
     /**
      * Abstract method: analyze the results for this message round.
+     * Called by awaitResult, with the monitor held.
      *
      * @exception IllegalStateException
      *                If not done yet.
@@ -68,11 +104,34 @@ abstract class Result
             InterruptedException;
 
     
-    private boolean ignoreReply ( Reply reply ) {
-    	// retried messages are not counted in result
-        // and duplicate entries per participant neither
-        // otherwise duplicates arise if a participant sends replay
-    	return reply.isRetried() || repliedlist_.contains(reply.getParticipant());
+    /**
+     * Stores the reply, unless a reply for the same participant was stored already.
+     * More replies than expected are kept, like any other.
+     * 
+     * @return True if stored.
+     */
+    private boolean storeReply ( Reply reply ) {
+    	Participant participant = reply.getParticipant();
+    	if ( hasReplied ( participant ) ) return false;
+    	if ( numberOfReplies_ == replies_.length ) {
+    		replies_ = Arrays.copyOf ( replies_, Math.max ( 1, 2 * numberOfReplies_ ) );
+    	}
+    	replies_[numberOfReplies_++] = reply;
+    	if ( repliedlist_ != null ) {
+    		repliedlist_.add ( participant );
+    	} else if ( numberOfReplies_ > MAX_REPLIES_TO_SCAN ) {
+    		repliedlist_ = new HashSet<Participant> ( 2 * replies_.length );
+    		for ( int i = 0 ; i < numberOfReplies_ ; i++ ) repliedlist_.add ( replies_[i].getParticipant() );
+    	}
+    	return true;
+    }
+
+    private boolean hasReplied ( Participant participant ) {
+    	if ( repliedlist_ != null ) return repliedlist_.contains ( participant );
+    	for ( int i = 0 ; i < numberOfReplies_ ; i++ ) {
+    		if ( Objects.equals ( participant, replies_[i].getParticipant() ) ) return true;
+    	}
+    	return false;
     }
 
     /**
@@ -82,31 +141,52 @@ abstract class Result
      *            The reply to add.
      */
 
-    public synchronized void addReply(Reply reply)
+    public void addReply(Reply reply)
     {
-        if ( !ignoreReply(reply) ) {
-        	repliedlist_.add(reply.getParticipant());
-        	replies_.push(reply);
+    	// retried messages are not counted in result
+        // and duplicate entries per participant neither
+        // otherwise duplicates arise if a participant sends replay
+        if ( reply.isRetried() ) return;
+        CompletableFuture<Void> waiting;
+        synchronized ( this ) {
+        	if ( !storeReply ( reply ) ) return;
         	numberOfMissingReplies_--;
-        	notifyAll();
+        	waiting = numberOfMissingReplies_ == 0 ? allRepliesArrived_ : null;
         }
+        // outside the monitor: dependent stages may run right here
+        if ( waiting != null ) waiting.complete ( null );
+    }
+
+    /**
+     * @return A stage that completes when all replies have arrived.
+     */
+
+    synchronized CompletionStage<Void> allRepliesArrived()
+    {
+        if ( allRepliesArrived_ == null ) {
+        	allRepliesArrived_ = new CompletableFuture<Void>();
+        	if ( numberOfMissingReplies_ <= 0 ) allRepliesArrived_.complete ( null );
+        }
+        return allRepliesArrived_;
     }
 
     /**
      * Get all replies for this result's message round. Block until ready.
      *
-     * @return Stack All replies in a stack.
+     * @return List All replies, in order of arrival.
      * @exception IllegalStateException
      *                If not all replies are in yet.
      * @exception InterruptedException
      *                During waiting interrupt.
      */
 
-    public Stack<Reply> getReplies() throws IllegalStateException,
+    public List<Reply> getReplies() throws IllegalStateException,
             InterruptedException
     {
         waitForReplies();
-        return replies_;
+        synchronized ( this ) {
+        	return new ArrayList<Reply> ( Arrays.asList ( replies_ ).subList ( 0, numberOfReplies_ ) );
+        }
     }
 
     /**
@@ -116,21 +196,41 @@ abstract class Result
      *                If the wait is interrupted.
      */
 
-    synchronized void waitForReplies() throws InterruptedException
+    void waitForReplies() throws InterruptedException
     {
-        while ( numberOfMissingReplies_ > 0 ) wait();
+        if ( numberOfMissingReplies_ <= 0 ) return;
+        try {
+            allRepliesArrived().toCompletableFuture().get();
+        } catch ( ExecutionException neverCompletedExceptionally ) {
+            throw new IllegalStateException ( neverCompletedExceptionally );
+        }
     }
     
+    /**
+     * Adds to a lazily created set: most rounds don't need one at all.
+     * 
+     * @param set The set, or null if not created yet.
+     * @return The set that contains the participant.
+     */
+    static Set<Participant> addTo ( Set<Participant> set , Participant participant ) {
+    	if ( set == null ) set = new HashSet<Participant> ( 4 );
+    	set.add ( participant );
+    	return set;
+    }
+
+    static Set<Participant> nonNull ( Set<Participant> set ) {
+    	return set == null ? Collections.<Participant>emptySet() : set;
+    }
+
     /**
      * Finds the first exception in the results.
      * 
      * @return The exception, or null if none.
      */
-    Exception findFirstOriginalException() {
+    synchronized Exception findFirstOriginalException() {
     	Exception ret = null;
-    	for (Reply reply : replies_) {
-    		ret = reply.getException();
-    		if (ret != null) break;
+    	for (int i = 0; i < numberOfReplies_ && ret == null; i++) {
+    		ret = replies_[i].getException();
     	}
     	return ret;
     }
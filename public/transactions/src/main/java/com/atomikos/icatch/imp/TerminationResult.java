@@ -8,10 +8,8 @@
 
 package com.atomikos.icatch.imp;
 
-import java.util.Enumeration;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
-import java.util.Stack;
 
 import com.atomikos.icatch.HeurCommitException;
 import com.atomikos.icatch.HeurMixedException;
@@ -23,27 +21,14 @@ import com.atomikos.icatch.RollbackException;
 class TerminationResult extends Result
 {
 	private boolean allRepliesProcessed;
-    private Set<Participant> heuristicparticipants_;
+    private int heuristicparticipantcount_;
     private Set<Participant> possiblyIndoubts_;
+    // created lazily, only needed for heuristics
 
     public TerminationResult ( int numberOfRepliesToWaitFor )
     {
         super ( numberOfRepliesToWaitFor );
         allRepliesProcessed = false;
-        heuristicparticipants_ = new HashSet<Participant>();
-        possiblyIndoubts_ = new HashSet<Participant>();
-    }
-
-    /**
-     * @exception IllegalStateException
-     *                If not done yet.
-     */
-
-    public Set<Participant> getHeuristicParticipants () throws IllegalStateException,
-            InterruptedException
-    {
-        calculateResultFromAllReplies();
-        return heuristicparticipants_;
     }
 
     /**
@@ -55,11 +40,11 @@ class TerminationResult extends Result
     public Set<Participant> getPossiblyIndoubts () throws IllegalStateException,
             InterruptedException
     {
-        calculateResultFromAllReplies ();
-        return possiblyIndoubts_;
+        awaitResult ();
+        return nonNull ( possiblyIndoubts_ );
     }
 
-    protected synchronized void calculateResultFromAllReplies () throws IllegalStateException,
+    protected void calculateResultFromAllReplies () throws IllegalStateException,
             InterruptedException
 
     {
@@ -72,12 +57,9 @@ class TerminationResult extends Result
         boolean noFailedReplies = true;
         boolean onePhaseCommitWithRollbackException = false;
 
-        Stack<Reply> replies = getReplies();
-        Enumeration<Reply> enumm = replies.elements ();
-
-        while ( enumm.hasMoreElements () ) {
+        List<Reply> replies = getReplies();
 
-            Reply reply = (Reply) enumm.nextElement ();
+        for ( Reply reply : replies ) {
 
             if ( reply.hasFailed () ) {
                 noFailedReplies = false;
@@ -86,23 +68,23 @@ class TerminationResult extends Result
                     onePhaseCommitWithRollbackException = true;
                 } else if ( err instanceof HeurMixedException ) {
                     atLeastOneHeuristicMixedException = true;
-                    heuristicparticipants_.add ( reply.getParticipant ());
+                    heuristicparticipantcount_++;
                 } else if ( err instanceof HeurCommitException ) {
                     atLeastOneHeuristicCommitException = true;
                     atLeastOneHeuristicMixedException = (atLeastOneHeuristicMixedException || atLeastOneHeuristicRollbackException || atLeastOneHeuristicHazardException);
-                    heuristicparticipants_.add ( reply.getParticipant () );
+                    heuristicparticipantcount_++;
 
                 } else if ( err instanceof HeurRollbackException ) {
                     atLeastOneHeuristicRollbackException = true;
                     atLeastOneHeuristicMixedException = (atLeastOneHeuristicMixedException || atLeastOneHeuristicCommitException || atLeastOneHeuristicHazardException);
-                    heuristicparticipants_.add ( reply.getParticipant ());
+                    heuristicparticipantcount_++;
 
                 } else {
 
                     atLeastOneHeuristicHazardException = true;
                     atLeastOneHeuristicMixedException = (atLeastOneHeuristicMixedException || atLeastOneHeuristicRollbackException || atLeastOneHeuristicCommitException);
-                    heuristicparticipants_.add ( reply.getParticipant ());
-                    possiblyIndoubts_.add ( reply.getParticipant ());
+                    heuristicparticipantcount_++;
+                    possiblyIndoubts_ = addTo ( possiblyIndoubts_, reply.getParticipant () );
 
                 }
             }
@@ -111,9 +93,9 @@ class TerminationResult extends Result
         if ( onePhaseCommitWithRollbackException )
             result_ = ROLLBACK;
         else if ( atLeastOneHeuristicMixedException || atLeastOneHeuristicRollbackException
-                && heuristicparticipants_.size () != replies.size ()
+                && heuristicparticipantcount_ != replies.size ()
                 || atLeastOneHeuristicCommitException
-                && heuristicparticipants_.size () != replies.size () )
+                && heuristicparticipantcount_ != replies.size () )
             result_ = HEUR_MIXED;
         else if ( atLeastOneHeuristicHazardException ) {
             // heur hazard BEFORE heur abort or commit!
@@ -8,18 +8,21 @@
 
 package com.atomikos.icatch.imp;
 
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Hashtable;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
-import java.util.Stack;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.atomikos.finitestates.FSMEnterEvent;
 import com.atomikos.finitestates.FSMEnterListener;
 import com.atomikos.icatch.CompositeCoordinator;
 import com.atomikos.icatch.CompositeTransaction;
+import com.atomikos.icatch.Lineage;
 import com.atomikos.icatch.Participant;
 import com.atomikos.icatch.Propagation;
 import com.atomikos.icatch.RecoveryCoordinator;
@@ -33,15 +36,22 @@ import com.atomikos.icatch.provider.TransactionServiceProvider;
 import com.atomikos.logging.Logger;
 import com.atomikos.logging.LoggerFactory;
 import com.atomikos.persistence.StateRecoveryManager;
+import com.atomikos.publish.EventPublisher;
 import com.atomikos.recovery.LogException;
 import com.atomikos.recovery.RecoveryLog;
 import com.atomikos.recovery.TxState;
 import com.atomikos.recovery.fs.RecoveryLogImp;
+import com.atomikos.thread.InterruptedExceptionHelper;
 import com.atomikos.thread.TaskManager;
+import com.atomikos.timing.TimingService;
 import com.atomikos.util.UniqueIdMgr;
 
 /**
  * General implementation of Transaction Service.
+ * <p>
+ * Regular transaction traffic only synchronizes on a per-root latch; shutdown
+ * is coordinated through a volatile gate that new coordinators re-check after
+ * registering themselves, so no global lock is needed on begin or end.
  */
 
 public class TransactionServiceImp implements TransactionServiceProvider,
@@ -49,18 +59,25 @@ public class TransactionServiceImp implements TransactionServiceProvider,
 {
 	private static final Logger LOGGER = LoggerFactory.createLogger(TransactionServiceImp.class);
     private static final int NUMLATCHES = 97;
+    // serializes concurrent shutdown calls only
     private static final Object shutdownSynchronizer = new Object();
 
     
     private long maxTimeout_;
     private Object[] rootLatches_ = null;
-    private Hashtable<String,CompositeTransaction> tidToTransactionMap_ = null;
-    private Map<String, CoordinatorImp> recreatedCoordinatorsByRootId = new HashMap<>();
-    private Map<String, CoordinatorImp> allCoordinatorsByCoordinatorId = new HashMap<>();
-    private boolean shutdownInProgress_ = false;
+    private Map<String,CompositeTransaction> tidToTransactionMap_ = null;
+    private final LongAdder activeTransactionCount_ = new LongAdder();
+    // only used while waiting for capacity: not on the fast path
+    private final ReentrantLock capacityLock_ = new ReentrantLock();
+    private final Condition capacityAvailable_ = capacityLock_.newCondition();
+    private volatile int capacityWaiters_ = 0;
+    private long maxActivesWaitTime_ = 0;
+    private Map<String, CoordinatorImp> recreatedCoordinatorsByRootId = new ConcurrentHashMap<>();
+    private Map<String, CoordinatorImp> allCoordinatorsByCoordinatorId = new ConcurrentHashMap<>();
+    private volatile boolean shutdownInProgress_ = false;
     private UniqueIdMgr tidmgr_ = null;
     private StateRecoveryManager recoverymanager_ = null;
-    private boolean initialized_ = false;
+    private volatile boolean initialized_ = false;
    
 
     private Set<TransactionServicePlugin> tsListeners = new HashSet<>();
@@ -104,7 +121,7 @@ public class TransactionServiceImp implements TransactionServiceProvider,
         initialized_ = false;
         recoverymanager_ = recoverymanager;
         tidmgr_ = tidmgr;
-        tidToTransactionMap_ = new Hashtable<String,CompositeTransaction>();
+        tidToTransactionMap_ = new ConcurrentHashMap<String,CompositeTransaction>();
         rootLatches_ = new Object[NUMLATCHES];
         for (int i = 0; i < NUMLATCHES; i++) {
             rootLatches_[i] = new Object();
@@ -143,11 +160,71 @@ public class TransactionServiceImp implements TransactionServiceProvider,
     private void setTidToTx ( String tid , CompositeTransaction ct )
             throws IllegalStateException
     {
-        synchronized ( tidToTransactionMap_ ) {
-            if ( tidToTransactionMap_.containsKey ( tid.intern () ) )
-                throw new IllegalStateException ( "Already mapped: " + tid );
-            tidToTransactionMap_.put ( tid.intern (), ct );
-            ct.addSubTxAwareParticipant(this); // for GC purposes
+        if ( tidToTransactionMap_.putIfAbsent ( tid, ct ) != null )
+            throw new IllegalStateException ( "Already mapped: " + tid );
+        activeTransactionCount_.increment();
+        ct.addSubTxAwareParticipant(this); // for GC purposes
+    }
+
+    /**
+     * Sets how long to wait for capacity when max_actives is reached.
+     * 
+     * @param millis Zero (the default) to fail immediately.
+     */
+
+    public void setMaxActivesWaitTime ( long millis )
+    {
+        maxActivesWaitTime_ = millis;
+    }
+
+    private boolean hasCapacity()
+    {
+        return maxNumberOfActiveTransactions_ < 0 ||
+               activeTransactionCount_.sum() < maxNumberOfActiveTransactions_;
+    }
+
+    /**
+     * Checks max_actives, waiting up to the configured time for capacity.
+     * Like before, the check is not atomic with the creation that follows so
+     * the limit can be exceeded slightly under heavy concurrency.
+     *
+     * @exception IllegalStateException
+     *                If there is no capacity within the wait time.
+     */
+
+    private void awaitCapacity() throws IllegalStateException
+    {
+        if ( hasCapacity() ) return;
+        
+        if ( maxActivesWaitTime_ > 0 ) {
+            long nanos = TimeUnit.MILLISECONDS.toNanos ( maxActivesWaitTime_ );
+            capacityLock_.lock();
+            try {
+                capacityWaiters_++;
+                while ( !hasCapacity() && nanos > 0 ) {
+                    nanos = capacityAvailable_.awaitNanos ( nanos );
+                }
+            } catch ( InterruptedException e ) {
+                // cf bug 67457
+                InterruptedExceptionHelper.handleInterruptedException ( e );
+            } finally {
+                capacityWaiters_--;
+                capacityLock_.unlock();
+            }
+            if ( hasCapacity() ) return;
+        }
+        throw new IllegalStateException ( "Max number of active transactions reached:" + maxNumberOfActiveTransactions_ );
+    }
+
+    private void signalCapacity()
+    {
+        if ( capacityWaiters_ > 0 ) {
+            capacityLock_.lock();
+            try {
+                capacityAvailable_.signal();
+            } finally {
+                capacityLock_.unlock();
+            }
         }
     }
 
@@ -160,16 +237,10 @@ public class TransactionServiceImp implements TransactionServiceProvider,
 
     private void removeCoordinator ( CompositeCoordinator coord )
     {
-
-        synchronized ( shutdownSynchronizer ) {
-            synchronized ( getLatch ( coord.getRootId()) ) {
-                recreatedCoordinatorsByRootId.remove (coord.getRootId());
-                allCoordinatorsByCoordinatorId.remove(coord.getCoordinatorId());
-            }
-
-            // notify any waiting threads for shutdown
-            if ( allCoordinatorsByCoordinatorId.isEmpty() )
-                shutdownSynchronizer.notifyAll ();
+        // shutdown polls allCoordinatorsByCoordinatorId: no need to notify
+        synchronized ( getLatch ( coord.getRootId()) ) {
+            recreatedCoordinatorsByRootId.remove (coord.getRootId());
+            allCoordinatorsByCoordinatorId.remove(coord.getCoordinatorId());
         }
     }
 
@@ -186,7 +257,10 @@ public class TransactionServiceImp implements TransactionServiceProvider,
     {
         if ( ct == null )
             return;
-        tidToTransactionMap_.remove ( ct.getTid ().intern () );
+        if ( tidToTransactionMap_.remove ( ct.getTid () ) != null ) {
+            activeTransactionCount_.decrement();
+            signalCapacity();
+        }
 
     }
 
@@ -197,7 +271,7 @@ public class TransactionServiceImp implements TransactionServiceProvider,
      */
 
     private CompositeTransactionImp createCT ( String tid ,
-            CoordinatorImp coordinator , Stack<CompositeTransaction> lineage , boolean serial )
+            CoordinatorImp coordinator , Lineage lineage , boolean serial )
             throws SysException
     {
     		if ( LOGGER.isTraceEnabled() ) LOGGER.logTrace ( "Creating composite transaction: " + tid );
@@ -239,32 +313,43 @@ public class TransactionServiceImp implements TransactionServiceProvider,
             LOGGER.logWarning ( "Attempt to create a transaction with a timeout that exceeds maximum - truncating to: " + maxTimeout_ );
         }
 
-        synchronized ( shutdownSynchronizer ) {
-            // check if shutting down -> do not allow new coordinator objects
-            // to be added, so that shutdown will eventually succeed.
-            if ( shutdownInProgress_ )
-                throw new IllegalStateException ( "Server is shutting down..." );
-
-           
-            String coordinatorId = root;
-            boolean subTransaction = (adaptor != null);
-            if (subTransaction) { //not a root
-            	coordinatorId = tidmgr_.get();
-            }
-            cc = new CoordinatorImp (recoveryDomainName, coordinatorId, root, adaptor, timeout, single_threaded_2pc_ );
+        // check if shutting down -> do not allow new coordinator objects
+        // to be added, so that shutdown will eventually succeed.
+        if ( shutdownInProgress_ )
+            throw new IllegalStateException ( "Server is shutting down..." );
 
-            recoverymanager_.register ( cc );
+       
+        String coordinatorId = root;
+        boolean subTransaction = (adaptor != null);
+        if (subTransaction) { //not a root
+        	coordinatorId = tidmgr_.get();
+        }
+        cc = new CoordinatorImp (recoveryDomainName, coordinatorId, root, adaptor, timeout, single_threaded_2pc_ );
 
-            // now, add to root map, since we are sure there are not too many active txs
-            synchronized ( getLatch ( root) ) {
-                CoordinatorImp entryForRoot = recreatedCoordinatorsByRootId.get(root); 
-                if (entryForRoot == null) { //cf case 178075
-                	recreatedCoordinatorsByRootId.put(root, cc);
-                }
-                allCoordinatorsByCoordinatorId.put(coordinatorId, cc);
+        // now, add to root map, since we are sure there are not too many active txs
+        synchronized ( getLatch ( root) ) {
+            CoordinatorImp entryForRoot = recreatedCoordinatorsByRootId.get(root); 
+            if (entryForRoot == null) { //cf case 178075
+            	recreatedCoordinatorsByRootId.put(root, cc);
+            }
+            allCoordinatorsByCoordinatorId.put(coordinatorId, cc);
+        }
+        
+        // re-check: shutdown sets the flag BEFORE it looks at the coordinators,
+        // and we added ours BEFORE looking at the flag - so either shutdown 
+        // sees (and waits for) our coordinator or we see the flag here
+        if ( shutdownInProgress_ ) {
+            // back out only what we added: the root entry may be our parent's
+            synchronized ( getLatch ( root ) ) {
+                recreatedCoordinatorsByRootId.remove ( root, cc );
+                allCoordinatorsByCoordinatorId.remove ( coordinatorId, cc );
             }
-            startlistening ( cc );
+            cc.dispose();
+            throw new IllegalStateException ( "Server is shutting down..." );
         }
+        // only now: a coordinator that was backed out must not be logged
+        recoverymanager_.register ( cc );
+        startlistening ( cc );
 
         return cc;
     }
@@ -299,21 +384,10 @@ public class TransactionServiceImp implements TransactionServiceProvider,
     private CoordinatorImp getCoordinatorImpForRoot ( String root )
             throws SysException
     {
-        root = root.intern ();
         if ( !initialized_ )
             throw new IllegalStateException ( "Not initialized" );
 
-        CoordinatorImp cc = null;
-        synchronized ( shutdownSynchronizer ) {
-            // Synch on shutdownSynchronizer_ first to avoid
-            // deadlock, even if we don't seem to need it here
-
-            synchronized ( getLatch ( root ) ) {
-                cc = recreatedCoordinatorsByRootId.get(root);
-            }
-        }
-
-        return cc;
+        return recreatedCoordinatorsByRootId.get(root);
     }
     
    
@@ -372,6 +446,7 @@ public class TransactionServiceImp implements TransactionServiceProvider,
     public synchronized void init ( Properties properties ) throws SysException
     {
         shutdownInProgress_ = false;
+        TimingService.SINGLETON.start();
 		recoveryDomainService.init();;
         initialized_ = true;
     }
@@ -425,13 +500,7 @@ public class TransactionServiceImp implements TransactionServiceProvider,
 
     public CompositeTransaction getCompositeTransaction ( String tid )
     {
-        CompositeTransaction ret = null;
-
-        synchronized ( tidToTransactionMap_ ) {
-            ret = (CompositeTransaction) tidToTransactionMap_.get ( tid.intern () );
-        }
-
-        return ret;
+        return tidToTransactionMap_.get ( tid );
     }
 
 
@@ -442,13 +511,11 @@ public class TransactionServiceImp implements TransactionServiceProvider,
      * @param parent
      * @return
      */
-    @SuppressWarnings("unchecked")
     CompositeTransaction createSubTransaction ( CompositeTransaction parent )
     {
     	if (Configuration.getConfigProperties().getAllowSubTransactions()) {
     		CompositeTransactionImp ret = null;
-    		Stack<CompositeTransaction> lineage = (Stack<CompositeTransaction>) parent.getLineage ().clone ();
-    		lineage.push ( parent );
+    		Lineage lineage = parent.getAncestors ().push ( parent );
     		String tid = tidmgr_.get ();
     		CoordinatorImp ccParent = (CoordinatorImp) parent
     				.getCompositeCoordinator ();
@@ -469,7 +536,7 @@ public class TransactionServiceImp implements TransactionServiceProvider,
      * @see TransactionService
      */
 
-    public synchronized CompositeTransaction recreateCompositeTransaction (Propagation context) throws SysException {
+    public CompositeTransaction recreateCompositeTransaction (Propagation context) throws SysException {
         if ( !initialized_ )
             throw new IllegalStateException ( "Not initialized" );
         
@@ -479,9 +546,7 @@ public class TransactionServiceImp implements TransactionServiceProvider,
                     "Only transactions within the same domain (a.k.a. LogCloud) are allowed!");
         }
 
-        if ( maxNumberOfActiveTransactions_ >= 0 && tidToTransactionMap_.size () >= maxNumberOfActiveTransactions_ )
-            throw new IllegalStateException (
-                    "Max number of active transactions reached:" + maxNumberOfActiveTransactions_ );
+        awaitCapacity();
 
         CoordinatorImp cc = null;
         CompositeTransaction ct = null;
@@ -493,18 +558,16 @@ public class TransactionServiceImp implements TransactionServiceProvider,
             CompositeTransaction root = context.getRootTransaction();
             CompositeTransaction parent = context.getParentTransaction();
             
-            synchronized ( shutdownSynchronizer ) {
-                synchronized ( getLatch ( root.getTid () ) ) {
-                    cc = getCoordinatorImpForRoot ( root.getTid () );
-                    if ( cc == null ) {
-                        RecoveryCoordinator coord = parent
-                                .getCompositeCoordinator ()
-                                .getRecoveryCoordinator ();
-                        cc = createCC (context.getRecoveryDomainName(), coord, root.getTid (), context.getTimeout () );
-                    }
+            synchronized ( getLatch ( root.getTid () ) ) {
+                cc = getCoordinatorImpForRoot ( root.getTid () );
+                if ( cc == null ) {
+                    RecoveryCoordinator coord = parent
+                            .getCompositeCoordinator ()
+                            .getRecoveryCoordinator ();
+                    cc = createCC (context.getRecoveryDomainName(), coord, root.getTid (), context.getTimeout () );
                 }
             }
-            ct = createCT ( tid, cc, context.getLineage(), serial );
+            ct = createCT ( tid, cc, Lineage.of ( context.getLineage() ), serial );
 
         } catch ( Exception e ) {
             throw new SysException ( "Error in recreate.", e );
@@ -605,10 +668,13 @@ public class TransactionServiceImp implements TransactionServiceProvider,
     }
 
 	private void shutdownSystemExecutors() {
+		EventPublisher.INSTANCE.shutdown();
 		TaskManager exec = TaskManager.SINGLETON;
         if ( exec != null ) {
         		exec.shutdown();
         }
+        TimingService.SINGLETON.shutdown();
+        Propagator.abandonPendingRetries();
 	}
 
     public synchronized void finalize () throws Throwable
@@ -627,13 +693,10 @@ public class TransactionServiceImp implements TransactionServiceProvider,
     {
         if ( !initialized_ ) throw new IllegalStateException ( "Not initialized" );
 
-        if ( maxNumberOfActiveTransactions_ >= 0 && 
-             tidToTransactionMap_.size () >= maxNumberOfActiveTransactions_ ) {
-            throw new IllegalStateException ( "Max number of active transactions reached:" + maxNumberOfActiveTransactions_ );
-        }
+        awaitCapacity();
         
         String tid = tidmgr_.get ();
-        Stack<CompositeTransaction> lineage = new Stack<CompositeTransaction>();
+        Lineage lineage = Lineage.EMPTY;
         // create a CC with heuristic preference set to false,
         // since it does not really matter anyway (since we are
         // creating a root)
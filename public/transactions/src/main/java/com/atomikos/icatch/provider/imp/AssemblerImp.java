@@ -34,11 +34,13 @@ import com.atomikos.recovery.OltpLog;
 import com.atomikos.recovery.OltpLogFactory;
 import com.atomikos.recovery.RecoveryLog;
 import com.atomikos.recovery.fs.CachedRepository;
-import com.atomikos.recovery.fs.FileSystemRepository;
 import com.atomikos.recovery.fs.InMemoryRepository;
 import com.atomikos.recovery.fs.OltpLogImp;
 import com.atomikos.recovery.fs.RecoveryLogImp;
 import com.atomikos.recovery.fs.Repository;
+import com.atomikos.recovery.fs.StripedRepository;
+import com.atomikos.thread.TaskManager;
+import com.atomikos.timing.TimingService;
 import com.atomikos.util.Atomikos;
 import com.atomikos.util.ClassLoadingHelper;
 import com.atomikos.util.UniqueIdMgr;
@@ -163,6 +165,9 @@ public class AssemblerImp implements Assembler {
 		
 		long maxTimeout = configProperties.getMaxTimeout();
 		int maxActives = configProperties.getMaxActives();
+		TimingService.SINGLETON.setPrecision(configProperties.getTimeoutPrecision());
+		configureTaskManager(configProperties);
+		configureEventPublisher(configProperties);
 		
 		OltpLog oltpLog = createOltpLogFromClasspath();
 		if (oltpLog == null) {
@@ -187,7 +192,32 @@ public class AssemblerImp implements Assembler {
 			LOGGER.logFatal ( msg );
 			throw new SysException(msg);
 		}
-		return new TransactionServiceImp(tmUniqueName, recoveryManager, idMgr, maxTimeout, maxActives, true, recoveryLog);
+		// single-threaded 2PC: see Propagator for what that means for the dispatch of messages
+		TransactionServiceImp ret = new TransactionServiceImp(tmUniqueName, recoveryManager, idMgr, maxTimeout, maxActives, true, recoveryLog);
+		ret.setMaxActivesWaitTime(configProperties.getMaxActivesWaitTime());
+		return ret;
+	}
+
+	private void configureTaskManager(ConfigProperties configProperties) {
+		TaskManager.RejectionPolicy rejectionPolicy;
+		try {
+			rejectionPolicy = TaskManager.RejectionPolicy.parse(configProperties.getThreadPoolRejectionPolicy());
+		} catch (IllegalArgumentException e) {
+			throw new SysException("Invalid value for " + ConfigProperties.THREAD_POOL_REJECTION_POLICY + ": " + configProperties.getThreadPoolRejectionPolicy(), e);
+		}
+		TaskManager.SINGLETON.configure(configProperties.getThreadPoolCoreSize(), configProperties.getThreadPoolMaxSize(), 
+				configProperties.getThreadPoolQueueCapacity(), rejectionPolicy);
+		TaskManager.SINGLETON.setVirtualThreads(configProperties.getVirtualThreads());
+	}
+
+	private void configureEventPublisher(ConfigProperties configProperties) {
+		EventPublisher.OverflowPolicy overflowPolicy;
+		try {
+			overflowPolicy = EventPublisher.OverflowPolicy.parse(configProperties.getEventOverflowPolicy());
+		} catch (IllegalArgumentException e) {
+			throw new SysException("Invalid value for " + ConfigProperties.EVENT_OVERFLOW_POLICY + ": " + configProperties.getEventOverflowPolicy(), e);
+		}
+		EventPublisher.INSTANCE.configure(configProperties.getEventQueueCapacity(), overflowPolicy);
 	}
 
 	private Repository createRepository(ConfigProperties configProperties) {
@@ -244,7 +274,7 @@ public class AssemblerImp implements Assembler {
 			ConfigProperties configProperties) throws LogException {
 		InMemoryRepository inMemoryCoordinatorLogEntryRepository = new InMemoryRepository();
 		inMemoryCoordinatorLogEntryRepository.init();
-		FileSystemRepository backupCoordinatorLogEntryRepository = new FileSystemRepository();
+		StripedRepository backupCoordinatorLogEntryRepository = new StripedRepository();
 		backupCoordinatorLogEntryRepository.init();
 		CachedRepository repository = new CachedRepository(inMemoryCoordinatorLogEntryRepository, backupCoordinatorLogEntryRepository);
 		repository.init();
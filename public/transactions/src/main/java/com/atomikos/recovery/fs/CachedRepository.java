@@ -9,8 +9,16 @@
 package com.atomikos.recovery.fs;
 
 import java.util.Collection;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import com.atomikos.icatch.config.Configuration;
 import com.atomikos.icatch.provider.ConfigProperties;
@@ -21,16 +29,36 @@ import com.atomikos.recovery.LogReadException;
 import com.atomikos.recovery.LogWriteException;
 import com.atomikos.recovery.PendingTransactionRecord;
 import com.atomikos.recovery.TxState;
+import com.atomikos.thread.TaskManager;
+
+/**
+ * Keeps the log contents in memory, and the log on disk small through checkpoints.
+ * Checkpoints only hold back puts to mark their starting point in the log; the in-memory
+ * contents are copied and written in the background, so committing threads don't have to wait for them.
+ */
 
 public class CachedRepository  implements Repository {
 
 	private static final Logger LOGGER = LoggerFactory.createLogger(CachedRepository.class);
+	private static final int ID_LOCK_STRIPES = 256;
 	private boolean corrupt = false; 
 	private final InMemoryRepository inMemoryCoordinatorLogEntryRepository;
 
 	private final Repository backupCoordinatorLogEntryRepository;
 
-	private volatile long numberOfPutsSinceLastCheckpoint = 0;
+	private final AtomicLong numberOfPutsSinceLastCheckpoint = new AtomicLong();
+	// puts share the read lock so the backup repository can group their writes; checkpoints are exclusive
+	private final ReadWriteLock checkpointLock = new ReentrantReadWriteLock();
+	// puts for the same id are serialized, so the in-memory contents follow the order of the log
+	private final ReentrantLock[] idLocks = new ReentrantLock[ID_LOCK_STRIPES];
+	// held while a checkpoint is being taken, so there is at most one at a time
+	private final Semaphore checkpointPermit = new Semaphore(1);
+	private final ExecutorService checkpointExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			return TaskManager.SINGLETON.newThread(r, "Atomikos:Checkpoint", true);
+		}
+	});
 	private long checkpointInterval;
 	private long forgetOrphanedLogEntriesDelay;
 	public CachedRepository(
@@ -38,6 +66,9 @@ public class CachedRepository  implements Repository {
 			Repository backupCoordinatorLogEntryRepository) {
 		this.inMemoryCoordinatorLogEntryRepository = inMemoryCoordinatorLogEntryRepository;
 		this.backupCoordinatorLogEntryRepository = backupCoordinatorLogEntryRepository;
+		for (int i = 0; i < idLocks.length; i++) {
+			idLocks[i] = new ReentrantLock();
+		}
 	}
 
 	@Override
@@ -63,48 +94,125 @@ public class CachedRepository  implements Repository {
 	}
 
 	@Override
-	public synchronized void put(String id, PendingTransactionRecord coordinatorLogEntry)
+	public void put(String id, PendingTransactionRecord coordinatorLogEntry)
 			throws IllegalArgumentException, LogWriteException {
 		
 		try {
+			// always before the checkpoint lock, which checkpoints take without this one
+			ReentrantLock idLock = idLocks[Math.floorMod(id.hashCode(), idLocks.length)];
+			idLock.lock();
+			try {
+				checkpointLock.readLock().lock();
+				try {
+					backupCoordinatorLogEntryRepository.put(id, coordinatorLogEntry);
+					inMemoryCoordinatorLogEntryRepository.put(id, coordinatorLogEntry);
+					numberOfPutsSinceLastCheckpoint.incrementAndGet();
+				} finally {
+					checkpointLock.readLock().unlock();
+				}
+			} finally {
+				idLock.unlock();
+			}
 			if(needsCheckpoint()){
-				performCheckpoint();
+				startBackgroundCheckpoint();
 			}
-			backupCoordinatorLogEntryRepository.put(id, coordinatorLogEntry);
-			inMemoryCoordinatorLogEntryRepository.put(id, coordinatorLogEntry);
-			numberOfPutsSinceLastCheckpoint++;
 		} catch (Exception e) {
 			performCheckpoint();
 		}
 	}
 
-	private synchronized void performCheckpoint() throws LogWriteException {
+	private void startBackgroundCheckpoint() throws LogWriteException {
+		if (!checkpointPermit.tryAcquire()) {
+			return; // already busy
+		}
+		boolean started = false;
+		try {
+			final Map<String, PendingTransactionRecord> snapshot = takeSnapshot();
+			checkpointExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						writeCheckpointInBackup(snapshot);
+					} catch (LogWriteException alreadyLogged) {
+					} finally {
+						checkpointPermit.release();
+					}
+				}
+			});
+			started = true;
+		} finally {
+			if (!started) {
+				checkpointPermit.release();
+			}
+		}
+	}
+
+	/**
+	 * Takes a checkpoint in the calling thread, after any checkpoint in progress.
+	 */
+	private void performCheckpoint() throws LogWriteException {
+		checkpointPermit.acquireUninterruptibly();
+		try {
+			writeCheckpointInBackup(takeSnapshot());
+		} finally {
+			checkpointPermit.release();
+		}
+	}
+
+	/**
+	 * Briefly holds back puts to mark the checkpoint in the backup repository,
+	 * then copies the in-memory contents without holding them back.
+	 * The copy may or may not include puts that come after the mark: 
+	 * those are logged after the mark, so they are kept anyway.
+	 */
+	private Map<String, PendingTransactionRecord> takeSnapshot() throws LogWriteException {
+		checkpointLock.writeLock().lock();
+		try {
+			backupCoordinatorLogEntryRepository.startCheckpoint();
+			numberOfPutsSinceLastCheckpoint.set(0);
+		} catch (LogWriteException corrupted) {
+			throw corrupted(corrupted);
+		} finally {
+			checkpointLock.writeLock().unlock();
+		}
+		// all puts before the mark are in memory by now
+		Map<String, PendingTransactionRecord> ret = new HashMap<String, PendingTransactionRecord>();
+		for (PendingTransactionRecord coordinatorLogEntry : inMemoryCoordinatorLogEntryRepository.getAllCoordinatorLogEntries()) {
+			ret.put(coordinatorLogEntry.id, coordinatorLogEntry);
+		}
+		return ret;
+	}
+
+	private void writeCheckpointInBackup(Map<String, PendingTransactionRecord> snapshot) throws LogWriteException {
 		try {
-			Collection<PendingTransactionRecord> coordinatorLogEntries =	purgeExpiredCoordinatorLogEntriesInStateAborting();
+			Collection<PendingTransactionRecord> coordinatorLogEntries = purgeExpiredCoordinatorLogEntriesInStateAborting(snapshot);
 			backupCoordinatorLogEntryRepository.writeCheckpoint(coordinatorLogEntries);
-			inMemoryCoordinatorLogEntryRepository.writeCheckpoint(coordinatorLogEntries);
-			numberOfPutsSinceLastCheckpoint=0;
 		} catch (LogWriteException corrupted) {
-			LOGGER.logFatal("Corrupted log file - restart JVM", corrupted);
-			corrupt = true;
-			throw corrupted;	
+			throw corrupted(corrupted);
 		} catch (Exception corrupted) {
-			LOGGER.logFatal("Corrupted log file - restart JVM", corrupted);
-			corrupt = true;
-			throw new LogWriteException(corrupted);
+			throw corrupted(new LogWriteException(corrupted));
 		}
 	}
 
-	private Collection<PendingTransactionRecord> purgeExpiredCoordinatorLogEntriesInStateAborting() {
-		Set<PendingTransactionRecord> ret = new HashSet<PendingTransactionRecord>();
+	private LogWriteException corrupted(LogWriteException corrupted) {
+		LOGGER.logFatal("Corrupted log file - restart JVM", corrupted);
+		corrupt = true;
+		return corrupted;
+	}
+
+	/**
+	 * Only looks at the records that expired long enough ago, as found in the
+	 * expiry index - and only at those that are part of the snapshot.
+	 */
+	private Collection<PendingTransactionRecord> purgeExpiredCoordinatorLogEntriesInStateAborting(Map<String, PendingTransactionRecord> snapshot) {
 		long now = System.currentTimeMillis();
-		Collection<PendingTransactionRecord> coordinatorLogEntries = inMemoryCoordinatorLogEntryRepository.getAllCoordinatorLogEntries();
-		for (PendingTransactionRecord coordinatorLogEntry : coordinatorLogEntries) {
-			if (!canBeForgotten(now, coordinatorLogEntry)){
-				ret.add(coordinatorLogEntry);
+		for (PendingTransactionRecord coordinatorLogEntry : inMemoryCoordinatorLogEntryRepository.findAllExpiredCoordinatorLogEntries(now - forgetOrphanedLogEntriesDelay)) {
+			if (snapshot.get(coordinatorLogEntry.id) == coordinatorLogEntry && canBeForgotten(now, coordinatorLogEntry)){
+				inMemoryCoordinatorLogEntryRepository.remove(coordinatorLogEntry);
+				snapshot.remove(coordinatorLogEntry.id);
 			}
 		}
-		return ret;
+		return snapshot.values();
 	}
 
 	protected boolean canBeForgotten(long now,
@@ -123,7 +231,7 @@ public class CachedRepository  implements Repository {
 	}
 
 	private boolean needsCheckpoint() {
-		return numberOfPutsSinceLastCheckpoint>=checkpointInterval;
+		return numberOfPutsSinceLastCheckpoint.get()>=checkpointInterval;
 	}
 
 	@Override
@@ -146,10 +254,18 @@ public class CachedRepository  implements Repository {
 		return inMemoryCoordinatorLogEntryRepository.findAllCommittingCoordinatorLogEntries();
 	}
 
+	@Override
+	public Collection<PendingTransactionRecord> findAllIndoubtCoordinatorLogEntries() throws LogReadException {
+		assertNotCorrupted();
+		return inMemoryCoordinatorLogEntryRepository.findAllIndoubtCoordinatorLogEntries();
+	}
+
 	
 
 	@Override
 	public void close() {
+		checkpointPermit.acquireUninterruptibly(); // wait for any checkpoint in progress
+		checkpointExecutor.shutdown();
 		backupCoordinatorLogEntryRepository.close();
 		inMemoryCoordinatorLogEntryRepository.close();
 	}
@@ -159,6 +275,11 @@ public class CachedRepository  implements Repository {
 		return inMemoryCoordinatorLogEntryRepository.getAllCoordinatorLogEntries();
 	}
 
+	@Override
+	public void startCheckpoint() {
+		throw new UnsupportedOperationException();
+	}
+
 	@Override
 	public void writeCheckpoint(
 			Collection<PendingTransactionRecord> checkpointContent) {
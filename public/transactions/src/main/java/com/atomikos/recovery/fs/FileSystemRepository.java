@@ -9,19 +9,27 @@
 package com.atomikos.recovery.fs;
 
 import java.io.BufferedReader;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.ObjectStreamException;
 import java.io.StreamCorruptedException;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import com.atomikos.icatch.config.Configuration;
 import com.atomikos.icatch.provider.ConfigProperties;
@@ -32,27 +40,133 @@ import com.atomikos.recovery.LogException;
 import com.atomikos.recovery.LogReadException;
 import com.atomikos.recovery.LogWriteException;
 import com.atomikos.recovery.PendingTransactionRecord;
-import com.atomikos.util.VersionedFile;
+import com.atomikos.timing.AlarmTimer;
+import com.atomikos.timing.AlarmTimerListener;
+import com.atomikos.timing.TimingService;
+
+/**
+ * File-based log with group commit: concurrent writers append their records
+ * to a pending batch, and one of them (the leader) writes the whole batch and 
+ * forces it to disk with one single fsync - then wakes up all the writers of
+ * that batch.
+ * <p>
+ * The log consists of preallocated {@link LogSegments}, and is append-only. 
+ * We keep track of the segment that holds the last record of each pending 
+ * (non-terminated) transaction. A checkpoint does not rewrite the pending 
+ * transactions, but compacts the log instead: it deletes the oldest segments 
+ * without pending transactions. Old segments with only a few pending 
+ * transactions left are deleted too, after appending their pending records again.
+ * <p>
+ * Records are written in the binary format of {@link LogRecordCodec}; segments
+ * in the text format of older releases can still be read.
+ * <p>
+ * Records in a final state (i.e., terminated or forgotten transactions) can be
+ * written lazily: their writers don't wait for them to be forced to disk. They are
+ * written along with the next forced batch, or by a periodic flush. Losing them 
+ * in a crash is harmless: recovery will just terminate those transactions again.
+ * Nobody waits for them, so if writing them fails they are dropped with a 
+ * warning, and the log rolls over to a new segment.
+ * <p>
+ * Final records are coalesced with the records they terminate: if there is no
+ * pending record for the transaction (e.g., because it aborted or was read-only
+ * and never logged anything) then the final record is not written at all.
+ */
 
 public class FileSystemRepository implements Repository {
 
 	private static final Logger LOGGER = LoggerFactory.createLogger(FileSystemRepository.class);
-	private VersionedFile file;
-	private FileChannel rwChannel = null;
+	// segments with more pending records than 1 in RELOCATION_RATIO are not compacted
+	private static final int RELOCATION_RATIO = 4;
+	private static final long MIN_SEGMENT_SIZE = 4 * 1024;
+
+	private LogSegments segments;
+	// serializes compaction and close
+	private final Object checkpointLock = new Object();
 	private LogFileLock lock_;
 
+	private final ReentrantLock batchLock = new ReentrantLock();
+	private final Condition batchFlushed = batchLock.newCondition();
+	private final Condition batchFull = batchLock.newCondition();
+	// guarded by batchLock
+	private final ArrayDeque<Batch> pendingBatches = new ArrayDeque<Batch>();
+	// guarded by batchLock
+	private long nextSequence;
+	// guarded by batchLock: the last record of each pending transaction, by id
+	private final Map<String, LiveRecord> liveRecords = new HashMap<String, LiveRecord>();
+	// guarded by batchLock: false until liveRecords reflects all the records in the log
+	private boolean liveRecordsComplete;
+	// guarded by batchLock: set by startCheckpoint, -1 if none
+	private long checkpointSequence = -1;
+	// guarded by batchLock: true while a leader is writing (or waiting to write) a batch
+	private boolean flushing;
+	private int maxBatchSize = 1;
+	private long maxBatchWaitNanos = 0;
+	// false if all records are forced right away
+	private boolean lazyWrites;
+	private AlarmTimer lazyFlusher;
+
+	private final LongAdder flushedBatchCount = new LongAdder();
+	private final LongAdder flushedRecordCount = new LongAdder();
+	private final LongAdder totalFsyncNanos = new LongAdder();
+	private final LongAccumulator maxFsyncNanos = new LongAccumulator(Long::max, 0);
+	private final LongAdder lazyRecordCount = new LongAdder();
+	private final LongAdder finalRecordCount = new LongAdder();
+	private final LongAdder coalescedRecordCount = new LongAdder();
+	private volatile long replayDurationNanos;
+
 	@Override
 	public void init() throws LogException {
 		ConfigProperties configProperties = Configuration.getConfigProperties();
-		String baseDir = configProperties.getLogBaseDir();
-		String baseName = configProperties.getLogBaseName();
+		init(configProperties.getLogBaseDir(), configProperties.getLogBaseName(), configProperties.getLogSegmentSize(),
+				configProperties.getLogMaxBatchSize(), configProperties.getLogMaxBatchWaitMicros(), 
+				configProperties.getLogLazyFlushIntervalMillis(), true);
+	}
+
+	void init(String baseDir, String baseName, long segmentSize, int maxBatchSize, long maxBatchWaitMicros) throws LogException {
+		init(baseDir, baseName, segmentSize, maxBatchSize, maxBatchWaitMicros, 0, true);
+	}
+
+	/**
+	 * @param lazyFlushIntervalMillis How often to flush lazily written records, or 0 to force all records right away.
+	 * @param lock False if the caller already holds a lock that covers this log.
+	 */
+	void init(String baseDir, String baseName, long segmentSize, int maxBatchSize, long maxBatchWaitMicros, 
+			long lazyFlushIntervalMillis, boolean lock) throws LogException {
 		LOGGER.logDebug("baseDir " + baseDir);
 		LOGGER.logDebug("baseName " + baseName);
-		lock_ = new LogFileLock(baseDir, baseName);
-		LOGGER.logDebug("LogFileLock " + lock_);
-		lock_.acquireLock();
-		file = new VersionedFile(baseDir, baseName, ".log");
+		if (lock) {
+			lock_ = new LogFileLock(baseDir, baseName);
+			LOGGER.logDebug("LogFileLock " + lock_);
+			lock_.acquireLock();
+		}
+		segments = createSegments(baseDir, baseName, Math.max(MIN_SEGMENT_SIZE, segmentSize));
+		liveRecordsComplete = segments.list().isEmpty(); // or else only after replay
+		this.maxBatchSize = Math.max(1, maxBatchSize);
+		this.maxBatchWaitNanos = TimeUnit.MICROSECONDS.toNanos(Math.max(0, maxBatchWaitMicros));
+		if (lazyFlushIntervalMillis > 0) {
+			startLazyFlusher(lazyFlushIntervalMillis);
+		}
+	}
 
+	/**
+	 * Overridden by tests to inject write failures.
+	 */
+	LogSegments createSegments(String baseDir, String baseName, long segmentSize) {
+		return new LogSegments(baseDir, baseName, segmentSize);
+	}
+
+	private void startLazyFlusher(long intervalMillis) {
+		lazyWrites = true;
+		lazyFlusher = TimingService.SINGLETON.startAlarmTimer(intervalMillis, new AlarmTimerListener() {
+			@Override
+			public void alarm(AlarmTimer timer) {
+				try {
+					flushPendingBatches();
+				} catch (IOException e) {
+					// reported to the forced writers, or logged by writeBatch for lazy records
+				}
+			}
+		});
 	}
 	
 	@Override
@@ -60,33 +174,235 @@ public class FileSystemRepository implements Repository {
 			throws IllegalArgumentException, LogWriteException {
 
 		try {
-			initChannelIfNecessary();
-			write(pendingTransactionRecord, true);
+			Batch batch = append(pendingTransactionRecord);
+			if (batch == null) {
+				return; // coalesced
+			} else if (isLazy(pendingTransactionRecord)) {
+				lazyRecordCount.increment();
+				flushIfFull(batch);
+			} else {
+				awaitFlushed(batch);
+			}
 		} catch (IOException e) {
 			throw new LogWriteException(e);
 		}
 	}
 
-	private synchronized void initChannelIfNecessary()
-			throws FileNotFoundException {
-		if (rwChannel == null) {
-			rwChannel = file.openNewVersionForNioWriting();
+	/**
+	 * @return The batch, or null if the record was coalesced and need not be written.
+	 */
+	private Batch append(PendingTransactionRecord record) {
+		ByteBuffer frame = toByteBuffer(record);
+		batchLock.lock();
+		try {
+			if (record.state.isFinalState()) {
+				finalRecordCount.increment();
+				if (liveRecords.remove(record.id) == null && liveRecordsComplete) {
+					coalescedRecordCount.increment(); // nothing to terminate
+					return null;
+				}
+			}
+			long sequence = nextSequence++;
+			if (!record.state.isFinalState()) {
+				liveRecords.put(record.id, new LiveRecord(sequence, record));
+			}
+			Batch ret = pendingBatches.peekLast();
+			if (ret == null || ret.records.size() >= maxBatchSize) {
+				ret = new Batch(sequence);
+				pendingBatches.addLast(ret);
+			}
+			ret.records.add(frame);
+			if (isLazy(record)) {
+				ret.lazyRecords++;
+			}
+			if (ret.records.size() >= maxBatchSize) {
+				batchFull.signal();
+			}
+			return ret;
+		} finally {
+			batchLock.unlock();
 		}
 	}
-	private void write(PendingTransactionRecord pendingTransactionRecord,
-			boolean flushImmediately) throws IOException {
-		String str = pendingTransactionRecord.toRecord();
-		byte[] buffer = str.getBytes();
-		ByteBuffer buff = ByteBuffer.wrap(buffer);
-		writeToFile(buff, flushImmediately);
+
+	private boolean isLazy(PendingTransactionRecord record) {
+		return lazyWrites && record.state.isFinalState();
+	}
+
+	/**
+	 * Lazy writers don't wait, unless that would let the pending batches grow further.
+	 */
+	private void flushIfFull(Batch batch) throws IOException {
+		boolean full;
+		batchLock.lock();
+		try {
+			full = !batch.flushed && batch.records.size() >= maxBatchSize;
+		} finally {
+			batchLock.unlock();
+		}
+		if (full) {
+			awaitFlushed(batch);
+		}
 	}
 
-	private synchronized void writeToFile(ByteBuffer buff, boolean force)
-			throws IOException {
-		rwChannel.write(buff);
-		if (force) {
-			rwChannel.force(false);
+	/**
+	 * Writes and forces all records appended so far.
+	 */
+	void flushPendingBatches() throws IOException {
+		Batch last;
+		batchLock.lock();
+		try {
+			last = pendingBatches.peekLast();
+		} finally {
+			batchLock.unlock();
 		}
+		if (last != null) {
+			awaitFlushed(last); // batches are flushed in order
+		}
+	}
+
+	private void awaitFlushed(Batch batch) throws IOException {
+		batchLock.lock();
+		try {
+			while (!batch.flushed) {
+				if (flushing) {
+					// a log write cannot be abandoned halfway, so ignore interrupts
+					batchFlushed.awaitUninterruptibly();
+				} else {
+					flushNextBatch();
+				}
+			}
+		} finally {
+			batchLock.unlock();
+		}
+		if (batch.failure != null) {
+			throw new IOException("Failed to write log batch", batch.failure);
+		}
+	}
+
+	/**
+	 * Makes the calling thread the leader for the oldest pending batch.
+	 * Called with batchLock held; the lock is released during I/O.
+	 */
+	private void flushNextBatch() {
+		flushing = true;
+		Batch batch = pendingBatches.peekFirst();
+		long remaining = maxBatchWaitNanos;
+		boolean interrupted = false;
+		while (remaining > 0 && batch.records.size() < maxBatchSize) {
+			try {
+				remaining = batchFull.awaitNanos(remaining);
+			} catch (InterruptedException e) {
+				interrupted = true;
+				break;
+			}
+		}
+		pendingBatches.pollFirst();
+		batchLock.unlock();
+		try {
+			writeBatch(batch);
+		} finally {
+			batchLock.lock();
+			flushing = false;
+			batch.flushed = true;
+			batchFlushed.signalAll();
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void writeBatch(Batch batch) {
+		try {
+			ByteBuffer[] buffers = batch.records.toArray(new ByteBuffer[batch.records.size()]);
+			segments.write(buffers, batch.firstSequence);
+			long fsyncNanos = segments.force();
+			flushedBatchCount.increment();
+			flushedRecordCount.add(buffers.length);
+			totalFsyncNanos.add(fsyncNanos);
+			maxFsyncNanos.accumulate(fsyncNanos);
+			if (LOGGER.isTraceEnabled()) {
+				LOGGER.logTrace("Flushed batch of " + buffers.length + " records, fsync took " + fsyncNanos + "ns");
+			}
+		} catch (IOException e) {
+			batch.failure = e;
+		} catch (RuntimeException e) {
+			batch.failure = new IOException(e);
+		}
+		if (batch.failure != null && batch.lazyRecords > 0) {
+			droppedLazyRecords(batch);
+		}
+	}
+
+	/**
+	 * Nobody waits for lazily written records, so this is the only place to report
+	 * their failure. The next batch goes to a new segment, in case the current one is
+	 * the problem.
+	 */
+	private void droppedLazyRecords(Batch batch) {
+		LOGGER.logWarning("Failed to write " + batch.lazyRecords + " lazily written log record(s) - dropped; "
+				+ "recovery will terminate their transactions again", batch.failure);
+		try {
+			segments.close(); // the next write rolls over
+		} catch (IOException e) {
+			LOGGER.logWarning("Error closing log segment - ignoring", e);
+		}
+	}
+
+	/**
+	 * @return The number of batches forced to disk so far.
+	 */
+	public long getFlushedBatchCount() {
+		return flushedBatchCount.sum();
+	}
+
+	/**
+	 * @return The average number of records per fsync.
+	 */
+	public double getAverageBatchSize() {
+		long batches = flushedBatchCount.sum();
+		return batches == 0 ? 0 : (double) flushedRecordCount.sum() / batches;
+	}
+
+	public long getAverageFsyncLatencyNanos() {
+		long batches = flushedBatchCount.sum();
+		return batches == 0 ? 0 : totalFsyncNanos.sum() / batches;
+	}
+
+	public long getMaxFsyncLatencyNanos() {
+		return maxFsyncNanos.get();
+	}
+
+	/**
+	 * @return The number of final records that were not written because there was nothing to terminate.
+	 */
+	public long getCoalescedRecordCount() {
+		return coalescedRecordCount.sum();
+	}
+
+	/**
+	 * @return The fraction of final records that were coalesced.
+	 */
+	public double getCoalescingHitRate() {
+		long finalRecords = finalRecordCount.sum();
+		return finalRecords == 0 ? 0 : (double) coalescedRecordCount.sum() / finalRecords;
+	}
+
+	/**
+	 * @return The number of records written without waiting for an fsync.
+	 */
+	public long getLazyRecordCount() {
+		return lazyRecordCount.sum();
+	}
+
+	/**
+	 * @return How long it took to replay the log at startup, in milliseconds.
+	 */
+	public long getReplayDurationMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(replayDurationNanos);
+	}
+
+	private static ByteBuffer toByteBuffer(PendingTransactionRecord pendingTransactionRecord) {
+		return LogRecordCodec.encode(pendingTransactionRecord);
 	}
 
 	@Override
@@ -99,20 +415,46 @@ public class FileSystemRepository implements Repository {
 		throw new UnsupportedOperationException();
 	}
 
+	@Override
+	public Collection<PendingTransactionRecord> findAllIndoubtCoordinatorLogEntries() throws LogReadException {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Replays all segments (see {@link LogReplay}); must be called before the first put.
+	 */
 	@Override
 	public Collection<PendingTransactionRecord> getAllCoordinatorLogEntries() throws LogReadException {
-		FileInputStream fis = null;
+		if (segments.isWriting()) throw new IllegalStateException("Already started writing.");
+		long start = System.nanoTime();
+		Map<String, PendingTransactionRecord> ret = new HashMap<String, PendingTransactionRecord>();
+		Map<String, Long> sequences = new HashMap<String, Long>();
+		long sequence = 0;
+		LogReplay replay = new LogReplay(segments, Runtime.getRuntime().availableProcessors());
+		for (LogReplay.SegmentContent content : replay.run()) {
+			// only the segment matters for compaction, not the exact sequence within it
+			for (String id : content.records.keySet()) {
+				sequences.put(id, sequence);
+			}
+			ret.putAll(content.records);
+			segments.register(content.number, sequence, content.recordCount);
+			sequence += content.recordCount;
+		}
+		replayDurationNanos = System.nanoTime() - start;
+		batchLock.lock();
 		try {
-			fis = file.openLastValidVersionForReading();
-		} catch (FileNotFoundException firstStart) {
-			// the file could not be opened for reading;
-			// merely return the default empty vector
-		} 
-		if (fis != null) {
-			return readFromInputStream(fis);
+			nextSequence = sequence;
+			liveRecordsComplete = true;
+			liveRecords.clear();
+			for (PendingTransactionRecord record : ret.values()) {
+				if (!record.state.isFinalState()) {
+					liveRecords.put(record.id, new LiveRecord(sequences.get(record.id), record));
+				}
+			}
+		} finally {
+			batchLock.unlock();
 		}
-		//else
-		return Collections.emptyList();
+		return ret.values();
 	}
 
 	public static Collection<PendingTransactionRecord> readFromInputStream(
@@ -183,47 +525,179 @@ public class FileSystemRepository implements Repository {
 		}
 	}
 	
+	/**
+	 * Marks the point in the log that the content of the next checkpoint reflects.
+	 */
 	@Override
-	public void writeCheckpoint(Collection<PendingTransactionRecord> checkpointContent) throws LogWriteException {
-
+	public void startCheckpoint() {
+		batchLock.lock();
 		try {
-			closeOutput();
+			checkpointSequence = nextSequence;
+		} finally {
+			batchLock.unlock();
+		}
+	}
 
-			rwChannel = file.openNewVersionForNioWriting();
-			for (PendingTransactionRecord coordinatorLogEntry : checkpointContent) {
-				write(coordinatorLogEntry, false);
+	/**
+	 * Compacts the log: the checkpoint content is not written but only used to 
+	 * forget the pending transactions that were purged. Puts can continue meanwhile.
+	 */
+	@Override
+	public void writeCheckpoint(Collection<PendingTransactionRecord> checkpointContent) throws LogWriteException {
+		Set<String> retained = new HashSet<String>();
+		for (PendingTransactionRecord coordinatorLogEntry : checkpointContent) {
+			retained.add(coordinatorLogEntry.id);
+		}
+		synchronized (checkpointLock) {
+			try {
+				compact(retained);
+			} catch (Exception e) {
+				LOGGER.logFatal("Failed to write checkpoint", e);
+				throw new LogWriteException(e);
 			}
-			rwChannel.force(false);
-			file.discardBackupVersion();
-		} catch (FileNotFoundException firstStart) {
-			// the file could not be opened for reading;
-			// merely return the default empty vector
-		} catch (Exception e) {
-			LOGGER.logFatal("Failed to write checkpoint", e);
-			throw new LogWriteException(e);
 		}
 	}
-	
-	protected void closeOutput() throws IllegalStateException {
+
+	private void compact(Set<String> retained) throws IOException {
+		List<Long> obsolete = new ArrayList<Long>();
+		Set<Batch> relocations = new LinkedHashSet<Batch>();
+		int relocated = 0;
+		batchLock.lock();
 		try {
-			if (file != null) {
-				file.close();
+			long boundary = checkpointSequence < 0 ? nextSequence : checkpointSequence;
+			checkpointSequence = -1;
+			Iterator<LiveRecord> it = liveRecords.values().iterator();
+			while (it.hasNext()) {
+				LiveRecord live = it.next();
+				if (live.sequence < boundary && !retained.contains(live.record.id)) {
+					it.remove(); // purged
+				}
+			}
+			List<LogSegments.Segment> closed = segments.getClosedSegments();
+			Map<Long, List<PendingTransactionRecord>> liveBySegment = groupBySegment(closed);
+			for (LogSegments.Segment segment : closed) {
+				List<PendingTransactionRecord> live = liveBySegment.get(segment.number);
+				int liveCount = live == null ? 0 : live.size();
+				if (segment.recordCount < 0 || liveCount * RELOCATION_RATIO > segment.recordCount) {
+					break; // only delete the oldest segments, or replay would resurrect records
+				}
+				if (live != null) {
+					for (PendingTransactionRecord record : live) {
+						relocations.add(append(record));
+						relocated++;
+					}
+				}
+				obsolete.add(segment.number);
+			}
+		} finally {
+			batchLock.unlock();
+		}
+		for (Batch batch : relocations) {
+			awaitFlushed(batch);
+		}
+		for (Long segment : obsolete) {
+			segments.delete(segment);
+		}
+		if (LOGGER.isDebugEnabled()) {
+			LOGGER.logDebug("Compacted log: deleted " + obsolete.size() + " segment(s), relocated " + relocated + " record(s)");
+		}
+	}
+
+	/**
+	 * Called with batchLock held.
+	 */
+	private Map<Long, List<PendingTransactionRecord>> groupBySegment(List<LogSegments.Segment> segmentsToCheck) {
+		Map<Long, List<PendingTransactionRecord>> ret = new HashMap<Long, List<PendingTransactionRecord>>();
+		for (LiveRecord live : liveRecords.values()) {
+			for (LogSegments.Segment segment : segmentsToCheck) {
+				if (segment.contains(live.sequence)) {
+					List<PendingTransactionRecord> records = ret.get(segment.number);
+					if (records == null) {
+						records = new ArrayList<PendingTransactionRecord>();
+						ret.put(segment.number, records);
+					}
+					records.add(live.record);
+					break;
+				}
 			}
-		} catch (IOException e) {
-			throw new IllegalStateException("Error closing previous output", e);
 		}
+		return ret;
 	}
 	
 	@Override
 	public void close() {
-		try {
-			closeOutput();
-		} catch (Exception e) {
-			LOGGER.logWarning("Error closing file - ignoring", e);
-		} finally {
+		synchronized (checkpointLock) {
+			try {
+				stopLazyFlusher();
+				flushPendingBatches();
+			} catch (Exception e) {
+				LOGGER.logWarning("Failed to flush lazily written log records - ignoring", e);
+			}
+			try {
+				segments.close();
+			} catch (Exception e) {
+				LOGGER.logWarning("Error closing file - ignoring", e);
+			} finally {
+				releaseLock();
+			}
+		}
+	}
+
+	/**
+	 * Closes the log and deletes all of its segments.
+	 */
+	void delete() throws IOException {
+		synchronized (checkpointLock) {
+			try {
+				stopLazyFlusher();
+				segments.close();
+				for (Long segment : segments.list()) {
+					segments.delete(segment);
+				}
+			} finally {
+				releaseLock();
+			}
+		}
+	}
+
+	/**
+	 * A flush in progress is not interrupted: that would close the segment.
+	 */
+	private void stopLazyFlusher() {
+		if (lazyFlusher != null) {
+			lazyFlusher.stopTimer();
+		}
+	}
+
+	private void releaseLock() {
+		if (lock_ != null) {
 			lock_.releaseLock();
 		}
+	}
+
+	private static class LiveRecord {
+		final long sequence;
+		final PendingTransactionRecord record;
+
+		LiveRecord(long sequence, PendingTransactionRecord record) {
+			this.sequence = sequence;
+			this.record = record;
+		}
+	}
 
+	private static class Batch {
+		final long firstSequence;
+		final List<ByteBuffer> records = new ArrayList<ByteBuffer>();
+		// guarded by batchLock
+		int lazyRecords;
+		// guarded by batchLock
+		boolean flushed;
+		// set before flushed
+		IOException failure;
+
+		Batch(long firstSequence) {
+			this.firstSequence = firstSequence;
+		}
 	}
 
 }
@@ -8,19 +8,38 @@
 
 package com.atomikos.recovery.fs;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
 
 import com.atomikos.recovery.PendingTransactionRecord;
 import com.atomikos.recovery.TxState;
 
+/**
+ * Keeps the pending records in memory, indexed by state, by superior and by 
+ * expiry - so the recovery queries and the purge at checkpoint time only 
+ * visit the records they return, instead of all pending records.
+ */
+
 public class InMemoryRepository implements Repository {
 
 private  Map<String, PendingTransactionRecord> storage = new ConcurrentHashMap<String, PendingTransactionRecord>();
 
+	// guarded by this, like the other indexes
+	private final Map<TxState, Map<String, PendingTransactionRecord>> byState = new EnumMap<TxState, Map<String, PendingTransactionRecord>>(TxState.class);
+	// the ids of the records with a given superior id
+	private final Map<String, Set<String>> bySuperior = new HashMap<String, Set<String>>();
+	private final TreeMap<Long, Map<String, PendingTransactionRecord>> byExpiry = new TreeMap<Long, Map<String, PendingTransactionRecord>>();
+
 	
 	private boolean closed = true;
 	@Override
@@ -37,66 +56,166 @@ private  Map<String, PendingTransactionRecord> storage = new ConcurrentHashMap<S
 			throw new IllegalArgumentException("cannot put the same coordinatorLogEntry twice");
 		}
 		if(coordinatorLogEntry.state.isFinalState()){
-			storage.remove(id);
+			unindex(storage.remove(id));
 		} else {
-			storage.put(id, coordinatorLogEntry);	
+			unindex(storage.put(id, coordinatorLogEntry));
+			index(coordinatorLogEntry);
+		}
+	}
+
+	private void index(PendingTransactionRecord coordinatorLogEntry) {
+		add(byState, coordinatorLogEntry.state, coordinatorLogEntry);
+		add(byExpiry, coordinatorLogEntry.expires, coordinatorLogEntry);
+		if (coordinatorLogEntry.superiorId != null) {
+			Set<String> ids = bySuperior.get(coordinatorLogEntry.superiorId);
+			if (ids == null) {
+				ids = new HashSet<String>();
+				bySuperior.put(coordinatorLogEntry.superiorId, ids);
+			}
+			ids.add(coordinatorLogEntry.id);
+		}
+	}
+
+	private void unindex(PendingTransactionRecord coordinatorLogEntry) {
+		if (coordinatorLogEntry == null) return;
+		remove(byState, coordinatorLogEntry.state, coordinatorLogEntry);
+		remove(byExpiry, coordinatorLogEntry.expires, coordinatorLogEntry);
+		if (coordinatorLogEntry.superiorId != null) {
+			Set<String> ids = bySuperior.get(coordinatorLogEntry.superiorId);
+			if (ids != null && ids.remove(coordinatorLogEntry.id) && ids.isEmpty()) {
+				bySuperior.remove(coordinatorLogEntry.superiorId);
+			}
 		}
 	}
 
+	private static <K> void add(Map<K, Map<String, PendingTransactionRecord>> index, K key, PendingTransactionRecord coordinatorLogEntry) {
+		Map<String, PendingTransactionRecord> entries = index.get(key);
+		if (entries == null) {
+			entries = new HashMap<String, PendingTransactionRecord>();
+			index.put(key, entries);
+		}
+		entries.put(coordinatorLogEntry.id, coordinatorLogEntry);
+	}
+
+	private static <K> void remove(Map<K, Map<String, PendingTransactionRecord>> index, K key, PendingTransactionRecord coordinatorLogEntry) {
+		Map<String, PendingTransactionRecord> entries = index.get(key);
+		if (entries != null && entries.remove(coordinatorLogEntry.id) != null && entries.isEmpty()) {
+			index.remove(key);
+		}
+	}
+
+	private Collection<PendingTransactionRecord> inState(TxState state) {
+		Map<String, PendingTransactionRecord> entries = byState.get(state);
+		return entries == null ? Collections.<PendingTransactionRecord>emptySet() : entries.values();
+	}
+
 	@Override
 	public synchronized PendingTransactionRecord get(String coordinatorId) {
 		return storage.get(coordinatorId);
 	}
 
+	/**
+	 * @return All committing records, and the in-doubt records with a committing ancestor.
+	 */
 	@Override
 	public synchronized Collection<PendingTransactionRecord> findAllCommittingCoordinatorLogEntries() {
 		Set<PendingTransactionRecord> res = new HashSet<PendingTransactionRecord>();
-		Collection<PendingTransactionRecord> allCoordinatorLogEntry = storage.values();	
-		for (PendingTransactionRecord coordinatorLogEntry : allCoordinatorLogEntry) {
-			TxState state = coordinatorLogEntry.state;
-			if(state == TxState.COMMITTING) {
-					res.add(coordinatorLogEntry);
-			} else if (state == TxState.IN_DOUBT) {
-				if(hasCommittingSuperiorCoordnator(coordinatorLogEntry)) {
-					res.add(coordinatorLogEntry);
-				}
-					
-			}
+		for (PendingTransactionRecord coordinatorLogEntry : inState(TxState.COMMITTING)) {
+			res.add(coordinatorLogEntry);
+			collectDescendants(coordinatorLogEntry, TxState.IN_DOUBT, res);
 		}
 		return res;
 	}
 
-	private boolean hasCommittingSuperiorCoordnator(PendingTransactionRecord coordinatorLogEntry) {
-		if(coordinatorLogEntry.superiorId == null) return false;
-		
-		PendingTransactionRecord superiorCoordinator = storage.get(coordinatorLogEntry.superiorId);
-		if (superiorCoordinator == null) {
-			return false;
+	/**
+	 * @return All in-doubt records, and all of their descendants.
+	 */
+	@Override
+	public synchronized Collection<PendingTransactionRecord> findAllIndoubtCoordinatorLogEntries() {
+		Set<PendingTransactionRecord> res = new HashSet<PendingTransactionRecord>();
+		for (PendingTransactionRecord coordinatorLogEntry : inState(TxState.IN_DOUBT)) {
+			res.add(coordinatorLogEntry);
+			collectDescendants(coordinatorLogEntry, null, res);
 		}
-		if (superiorCoordinator.state == TxState.COMMITTING) {
-			return true;
-		} else  {
-			return hasCommittingSuperiorCoordnator(superiorCoordinator);
+		return res;
+	}
+
+	/**
+	 * Like a search for ancestors, this stops at records that are no longer here.
+	 * 
+	 * @param state The state of the descendants to collect, or null for all.
+	 */
+	private void collectDescendants(PendingTransactionRecord ancestor, TxState state, Collection<PendingTransactionRecord> collector) {
+		Set<String> visited = new HashSet<String>();
+		Deque<String> superiorIds = new ArrayDeque<String>();
+		superiorIds.push(ancestor.id);
+		while (!superiorIds.isEmpty()) {
+			Set<String> ids = bySuperior.get(superiorIds.pop());
+			if (ids == null) continue;
+			for (String id : ids) {
+				PendingTransactionRecord descendant = storage.get(id);
+				if (descendant != null && visited.add(id)) {
+					if (state == null || descendant.state == state) {
+						collector.add(descendant);
+					}
+					superiorIds.push(id);
+				}
+			}
 		}
 	}
 
+	/**
+	 * @return The records that expire before the given time, without a scan of all records.
+	 */
+	public synchronized Collection<PendingTransactionRecord> findAllExpiredCoordinatorLogEntries(long time) {
+		Collection<PendingTransactionRecord> res = new ArrayList<PendingTransactionRecord>();
+		for (Map<String, PendingTransactionRecord> entries : byExpiry.headMap(time).values()) {
+			res.addAll(entries.values());
+		}
+		return res;
+	}
+
 	@Override
-	public void close() {
-		storage.clear();
+	public synchronized void close() {
+		clear();
 		closed=true;
 	}
 
+	private void clear() {
+		storage.clear();
+		byState.clear();
+		bySuperior.clear();
+		byExpiry.clear();
+	}
+
+	/**
+	 * @return A live view, that can be iterated while puts go on.
+	 */
 	@Override
 	public Collection<PendingTransactionRecord> getAllCoordinatorLogEntries() {
 		return storage.values();
 	}
 
+	/**
+	 * Removes the given entry, unless it was replaced meanwhile.
+	 */
+	public synchronized void remove(PendingTransactionRecord coordinatorLogEntry) {
+		if (storage.remove(coordinatorLogEntry.id, coordinatorLogEntry)) {
+			unindex(coordinatorLogEntry);
+		}
+	}
+
 	@Override
-	public void writeCheckpoint(
+	public void startCheckpoint() {
+	}
+
+	@Override
+	public synchronized void writeCheckpoint(
 			Collection<PendingTransactionRecord> checkpointContent) {
-		storage.clear();
+		clear();
 		for (PendingTransactionRecord coordinatorLogEntry : checkpointContent) {
-			storage.put(coordinatorLogEntry.id, coordinatorLogEntry);
+			unindex(storage.put(coordinatorLogEntry.id, coordinatorLogEntry));
+			index(coordinatorLogEntry);
 		}
 		
 	}
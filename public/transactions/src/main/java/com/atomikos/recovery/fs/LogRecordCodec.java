@@ -0,0 +1,403 @@
+/**
+ * Copyright (C) 2000-2020 Atomikos <info@atomikos.com>
+ *
+ * LICENSE CONDITIONS
+ *
+ * See http://www.atomikos.com/Main/WhichLicenseApplies for details.
+ */
+
+package com.atomikos.recovery.fs;
+
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.Checksum;
+
+import com.atomikos.logging.Logger;
+import com.atomikos.logging.LoggerFactory;
+import com.atomikos.recovery.PendingTransactionRecord;
+import com.atomikos.recovery.TxState;
+
+/**
+ * Binary format of log segments. A segment starts with a header (magic and
+ * format version), followed by one frame per record:
+ * <pre>
+ * int length | int CRC32C of the payload | payload
+ * </pre>
+ * The payload is a state code byte, the expiry as varint, and the id,
+ * recovery domain and superior id as varint-length-prefixed UTF-8 (with
+ * length 0 meaning null and n+1 meaning n bytes).
+ * <p>
+ * Segments without header are in the legacy text format of
+ * {@link PendingTransactionRecord#toRecord()}.
+ */
+
+final class LogRecordCodec {
+
+	private static final Logger LOGGER = LoggerFactory.createLogger(LogRecordCodec.class);
+
+	// 0xA7 is never the first byte of a (legacy) text line
+	private static final byte[] MAGIC = { (byte) 0xA7, 'L', 'O', 'G' };
+	static final byte FORMAT_VERSION = 1;
+	static final int HEADER_SIZE = MAGIC.length + 1;
+	static final int FRAME_OVERHEAD = 8;
+	private static final int MAX_PAYLOAD_SIZE = 1024 * 1024;
+
+	// the index is the code written to disk: only append here!
+	private static final TxState[] STATES = {
+			TxState.COMMITTING, TxState.IN_DOUBT, TxState.ABORTING, TxState.TERMINATED,
+			TxState.HEUR_COMMITTED, TxState.HEUR_ABORTED, TxState.HEUR_MIXED, TxState.HEUR_HAZARD,
+			TxState.ABANDONED, TxState.COMMITTED, TxState.ABORTED, TxState.PREPARING,
+			TxState.ACTIVE, TxState.MARKED_ABORT, TxState.LOCALLY_DONE
+	};
+	private static final byte[] CODES = new byte[TxState.values().length];
+
+	static {
+		for (int i = 0; i < STATES.length; i++) {
+			CODES[STATES[i].ordinal()] = (byte) i;
+		}
+	}
+
+	private LogRecordCodec() {
+	}
+
+	static ByteBuffer header() {
+		ByteBuffer ret = ByteBuffer.allocate(HEADER_SIZE);
+		ret.put(MAGIC).put(FORMAT_VERSION);
+		ret.flip();
+		return ret;
+	}
+
+	/**
+	 * @return True if the content starts with a header of a format we can read.
+	 */
+	static boolean hasHeader(ByteBuffer content) {
+		if (content.remaining() < HEADER_SIZE) {
+			return false;
+		}
+		int start = content.position();
+		for (int i = 0; i < MAGIC.length; i++) {
+			if (content.get(start + i) != MAGIC[i]) {
+				return false;
+			}
+		}
+		return content.get(start + MAGIC.length) == FORMAT_VERSION;
+	}
+
+	/**
+	 * @return A buffer with the complete frame, ready for writing.
+	 */
+	static ByteBuffer encode(PendingTransactionRecord record) {
+		int idLength = utf8Length(record.id);
+		int domainLength = utf8Length(record.recoveryDomainName);
+		int superiorLength = utf8Length(record.superiorId);
+		int payloadSize = 1 + varintLength(record.expires)
+				+ stringLength(idLength) + stringLength(domainLength) + stringLength(superiorLength);
+		ByteBuffer ret = ByteBuffer.allocate(FRAME_OVERHEAD + payloadSize);
+		ret.putInt(payloadSize);
+		ret.position(FRAME_OVERHEAD);
+		ret.put(CODES[record.state.ordinal()]);
+		putVarint(ret, record.expires);
+		putString(ret, record.id, idLength);
+		putString(ret, record.recoveryDomainName, domainLength);
+		putString(ret, record.superiorId, superiorLength);
+		Checksum crc = Crc32c.create();
+		crc.update(ret.array(), FRAME_OVERHEAD, payloadSize);
+		ret.putInt(4, (int) crc.getValue());
+		ret.flip();
+		return ret;
+	}
+
+	/**
+	 * Decodes the frames after the header, until the end of the written data 
+	 * (a zero length, as in the unused part of a preallocated segment) or the 
+	 * first corrupt frame - which is what a torn write at the end of the log looks like.
+	 *
+	 * @param content Positioned at the header.
+	 * @param into Where to put the records, by id: later records replace earlier ones.
+	 * @return The number of records decoded.
+	 */
+	static int decode(ByteBuffer content, Map<String, PendingTransactionRecord> into) {
+		content.position(content.position() + HEADER_SIZE);
+		return decodeFrames(content, into);
+	}
+
+	/**
+	 * Decodes frames from the position up to the limit. Afterwards, the position is 
+	 * at the limit - unless a corrupt frame was found: then it is at the start of that frame.
+	 *
+	 * @return The number of records decoded.
+	 */
+	static int decodeFrames(ByteBuffer content, Map<String, PendingTransactionRecord> into) {
+		int ret = 0;
+		byte[] scratch = new byte[256];
+		while (content.remaining() >= FRAME_OVERHEAD) {
+			int frameStart = content.position();
+			int payloadSize = content.getInt();
+			int expectedCrc = content.getInt();
+			if (payloadSize == 0 && expectedCrc == 0) {
+				content.position(content.limit());
+				return ret;
+			}
+			if (payloadSize <= 0 || payloadSize > MAX_PAYLOAD_SIZE || payloadSize > content.remaining()) {
+				corrupt(frameStart, "invalid length " + payloadSize);
+				content.position(frameStart);
+				return ret;
+			}
+			if (scratch.length < payloadSize) {
+				scratch = new byte[Math.max(payloadSize, scratch.length * 2)];
+			}
+			content.get(scratch, 0, payloadSize);
+			Checksum crc = Crc32c.create();
+			crc.update(scratch, 0, payloadSize);
+			if ((int) crc.getValue() != expectedCrc) {
+				corrupt(frameStart, "checksum mismatch");
+				content.position(frameStart);
+				return ret;
+			}
+			PendingTransactionRecord record;
+			try {
+				record = decodePayload(ByteBuffer.wrap(scratch, 0, payloadSize));
+			} catch (RuntimeException e) {
+				corrupt(frameStart, e.toString());
+				content.position(frameStart);
+				return ret;
+			}
+			into.put(record.id, record);
+			ret++;
+		}
+		if (content.hasRemaining()) {
+			corrupt(content.position(), "incomplete frame");
+		}
+		return ret;
+	}
+
+	/**
+	 * Splits the frames after the header into chunks that can be decoded independently,
+	 * by following the length prefixes.
+	 *
+	 * @param content Positioned at the header.
+	 * @return The chunk boundaries: the offset of the first frame, the offsets of the 
+	 * frames that start a new chunk (roughly every chunkSize bytes) and finally the limit.
+	 */
+	static List<Integer> split(ByteBuffer content, int chunkSize) {
+		List<Integer> ret = new ArrayList<Integer>();
+		int limit = content.limit();
+		int position = content.position() + HEADER_SIZE;
+		int chunkStart = position;
+		ret.add(position);
+		while (limit - position >= FRAME_OVERHEAD) {
+			int payloadSize = content.getInt(position);
+			if (payloadSize <= 0 || payloadSize > MAX_PAYLOAD_SIZE || payloadSize > limit - position - FRAME_OVERHEAD) {
+				break; // end of the written data, or corrupt: the last chunk will tell
+			}
+			position += FRAME_OVERHEAD + payloadSize;
+			if (position - chunkStart >= chunkSize && position < limit) {
+				ret.add(position);
+				chunkStart = position;
+			}
+		}
+		ret.add(limit);
+		return ret;
+	}
+
+	private static void corrupt(int offset, String reason) {
+		LOGGER.logTrace("Stopped reading log segment at offset " + offset + ": " + reason +
+				" - logfile not closed properly last time?");
+	}
+
+	private static PendingTransactionRecord decodePayload(ByteBuffer payload) {
+		int code = payload.get();
+		if (code < 0 || code >= STATES.length) {
+			throw new IllegalArgumentException("Unknown state code: " + code);
+		}
+		long expires = getVarint(payload);
+		String id = getString(payload);
+		String recoveryDomainName = getString(payload);
+		String superiorId = getString(payload);
+		if (id == null || payload.hasRemaining()) {
+			throw new IllegalArgumentException("Invalid payload");
+		}
+		return new PendingTransactionRecord(id, STATES[code], expires, recoveryDomainName, superiorId);
+	}
+
+	private static int stringLength(int utf8Length) {
+		return utf8Length < 0 ? 1 : varintLength(utf8Length + 1) + utf8Length;
+	}
+
+	/**
+	 * @return The number of bytes in UTF-8, or -1 for null.
+	 */
+	private static int utf8Length(String s) {
+		if (s == null) {
+			return -1;
+		}
+		int ret = 0;
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				ret += 1;
+			} else if (c < 0x800) {
+				ret += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				ret += 4;
+				i++;
+			} else if (Character.isSurrogate(c)) {
+				ret += 1;
+			} else {
+				ret += 3;
+			}
+		}
+		return ret;
+	}
+
+	private static void putString(ByteBuffer out, String s, int utf8Length) {
+		if (s == null) {
+			out.put((byte) 0);
+			return;
+		}
+		putVarint(out, utf8Length + 1);
+		for (int i = 0; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				out.put((byte) c);
+			} else if (c < 0x800) {
+				out.put((byte) (0xC0 | (c >> 6)));
+				out.put((byte) (0x80 | (c & 0x3F)));
+			} else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				out.put((byte) (0xF0 | (cp >> 18)));
+				out.put((byte) (0x80 | ((cp >> 12) & 0x3F)));
+				out.put((byte) (0x80 | ((cp >> 6) & 0x3F)));
+				out.put((byte) (0x80 | (cp & 0x3F)));
+			} else if (Character.isSurrogate(c)) {
+				out.put((byte) '?'); // unpaired: replaced like String.getBytes does
+			} else {
+				out.put((byte) (0xE0 | (c >> 12)));
+				out.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+				out.put((byte) (0x80 | (c & 0x3F)));
+			}
+		}
+	}
+
+	private static String getString(ByteBuffer in) {
+		long length = getVarint(in) - 1;
+		if (length < 0) {
+			return null;
+		}
+		if (length > in.remaining()) {
+			throw new IllegalArgumentException("String length exceeds payload: " + length);
+		}
+		String ret = new String(in.array(), in.arrayOffset() + in.position(), (int) length, StandardCharsets.UTF_8);
+		in.position(in.position() + (int) length);
+		return ret;
+	}
+
+	static int varintLength(long value) {
+		int ret = 1;
+		while ((value & ~0x7FL) != 0) {
+			value >>>= 7;
+			ret++;
+		}
+		return ret;
+	}
+
+	static void putVarint(ByteBuffer out, long value) {
+		while ((value & ~0x7FL) != 0) {
+			out.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		out.put((byte) value);
+	}
+
+	static long getVarint(ByteBuffer in) {
+		long ret = 0;
+		for (int shift = 0; shift < 64; shift += 7) {
+			byte b = in.get();
+			ret |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return ret;
+			}
+		}
+		throw new IllegalArgumentException("Malformed varint");
+	}
+
+	/**
+	 * CRC32C (Castagnoli): the JDK's intrinsic implementation from Java 9 on,
+	 * or an equivalent table-driven one before that.
+	 */
+	static final class Crc32c implements Checksum {
+
+		private static final Constructor<?> JDK_CRC32C;
+		private static final int[] TABLE = new int[256];
+		private static final ThreadLocal<Checksum> INSTANCES = new ThreadLocal<Checksum>() {
+			@Override
+			protected Checksum initialValue() {
+				if (JDK_CRC32C != null) {
+					try {
+						return (Checksum) JDK_CRC32C.newInstance();
+					} catch (Exception e) {
+						// fall back to ours
+					}
+				}
+				return new Crc32c();
+			}
+		};
+
+		static {
+			Constructor<?> jdk = null;
+			try {
+				jdk = Class.forName("java.util.zip.CRC32C").getConstructor();
+			} catch (Exception beforeJdk9) {
+				// use ours
+			}
+			JDK_CRC32C = jdk;
+			for (int i = 0; i < 256; i++) {
+				int crc = i;
+				for (int j = 0; j < 8; j++) {
+					crc = (crc & 1) != 0 ? (crc >>> 1) ^ 0x82F63B78 : crc >>> 1;
+				}
+				TABLE[i] = crc;
+			}
+		}
+
+		/**
+		 * @return A reset instance for the calling thread.
+		 */
+		static Checksum create() {
+			Checksum ret = INSTANCES.get();
+			ret.reset();
+			return ret;
+		}
+
+		private int crc = 0xFFFFFFFF;
+
+		@Override
+		public void update(int b) {
+			crc = (crc >>> 8) ^ TABLE[(crc ^ b) & 0xFF];
+		}
+
+		@Override
+		public void update(byte[] b, int off, int len) {
+			int c = crc;
+			for (int i = off; i < off + len; i++) {
+				c = (c >>> 8) ^ TABLE[(c ^ b[i]) & 0xFF];
+			}
+			crc = c;
+		}
+
+		@Override
+		public long getValue() {
+			return (~crc) & 0xFFFFFFFFL;
+		}
+
+		@Override
+		public void reset() {
+			crc = 0xFFFFFFFF;
+		}
+	}
+
+}
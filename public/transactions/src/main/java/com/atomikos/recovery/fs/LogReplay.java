@@ -0,0 +1,282 @@
+/**
+ * Copyright (C) 2000-2020 Atomikos <info@atomikos.com>
+ *
+ * LICENSE CONDITIONS
+ *
+ * See http://www.atomikos.com/Main/WhichLicenseApplies for details.
+ */
+
+package com.atomikos.recovery.fs;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.atomikos.logging.Logger;
+import com.atomikos.logging.LoggerFactory;
+import com.atomikos.recovery.LogReadException;
+import com.atomikos.recovery.PendingTransactionRecord;
+
+/**
+ * Replays the segments of a log at startup. Segments are memory-mapped and
+ * split into chunks at frame boundaries, and the chunks are decoded in parallel
+ * on a fork-join pool. The results are then merged in log order, so the last
+ * record of each transaction wins.
+ */
+
+class LogReplay {
+
+	private static final Logger LOGGER = LoggerFactory.createLogger(LogReplay.class);
+
+	static final int CHUNK_SIZE = 1024 * 1024;
+	// smaller logs only report their progress at debug level
+	private static final long PROGRESS_THRESHOLD = 64L * 1024 * 1024;
+
+	/**
+	 * The records of one segment, by id.
+	 */
+	static final class SegmentContent {
+		final long number;
+		final Map<String, PendingTransactionRecord> records = new HashMap<String, PendingTransactionRecord>();
+		int recordCount;
+
+		SegmentContent(long number) {
+			this.number = number;
+		}
+	}
+
+	private final LogSegments segments;
+	private final int parallelism;
+	private final int chunkSize;
+	private final AtomicLong bytesDone = new AtomicLong();
+	private final AtomicInteger percentReported = new AtomicInteger();
+	private long totalBytes;
+
+	LogReplay(LogSegments segments, int parallelism) {
+		this(segments, parallelism, CHUNK_SIZE);
+	}
+
+	/**
+	 * @param chunkSize The approximate number of bytes to decode per task.
+	 */
+	LogReplay(LogSegments segments, int parallelism, int chunkSize) {
+		this.segments = segments;
+		this.parallelism = Math.max(1, parallelism);
+		this.chunkSize = Math.max(1, chunkSize);
+	}
+
+	/**
+	 * @return The contents of all segments, oldest first.
+	 */
+	List<SegmentContent> run() throws LogReadException {
+		long start = System.nanoTime();
+		List<MappedSegment> mapped = new ArrayList<MappedSegment>();
+		List<SegmentContent> ret = new ArrayList<SegmentContent>();
+		try {
+			for (Long segment : segments.list()) {
+				MappedSegment m = map(segment);
+				if (m != null) {
+					mapped.add(m);
+					totalBytes += m.buffer.remaining();
+				}
+			}
+			List<Chunk> chunks = new ArrayList<Chunk>();
+			for (MappedSegment m : mapped) {
+				m.split(chunks);
+			}
+			decode(chunks);
+			for (MappedSegment m : mapped) {
+				ret.add(m.merge());
+			}
+		} finally {
+			for (MappedSegment m : mapped) {
+				unmap(m.buffer);
+			}
+		}
+		if (LOGGER.isInfoEnabled()) {
+			int records = 0;
+			for (SegmentContent content : ret) {
+				records += content.recordCount;
+			}
+			LOGGER.logInfo("Replayed " + records + " log records from " + ret.size() + " segment(s) (" + totalBytes + " bytes) in "
+					+ TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) + " ms");
+		}
+		return ret;
+	}
+
+	private MappedSegment map(long segment) throws LogReadException {
+		try (FileChannel channel = FileChannel.open(segments.file(segment).toPath(), StandardOpenOption.READ)) {
+			long size = channel.size();
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException("Log segment too large: " + segments.file(segment));
+			}
+			return new MappedSegment(segment, channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+		} catch (NoSuchFileException deletedMeanwhile) {
+			return null;
+		} catch (IOException e) {
+			LOGGER.logFatal("Error in recover", e);
+			throw new LogReadException(e);
+		}
+	}
+
+	/**
+	 * Returns only after all chunks are done, so the segments can safely be unmapped.
+	 */
+	private void decode(List<Chunk> chunks) throws LogReadException {
+		if (chunks.size() <= 1 || parallelism == 1) {
+			for (Chunk chunk : chunks) {
+				chunk.run();
+			}
+		} else {
+			ForkJoinPool pool = new ForkJoinPool(Math.min(parallelism, chunks.size()));
+			try {
+				List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+				for (Chunk chunk : chunks) {
+					tasks.add(pool.submit(chunk));
+				}
+				for (ForkJoinTask<?> task : tasks) {
+					task.quietlyJoin();
+				}
+			} finally {
+				pool.shutdown();
+			}
+		}
+		for (Chunk chunk : chunks) {
+			if (chunk.failure != null) {
+				LOGGER.logFatal("Error in recover", chunk.failure);
+				throw new LogReadException(chunk.failure);
+			}
+		}
+	}
+
+	private void reportProgress(int bytes) {
+		long done = bytesDone.addAndGet(bytes);
+		int percent = totalBytes == 0 ? 100 : (int) (done * 10 / totalBytes) * 10;
+		int reported = percentReported.get();
+		if (percent > reported && percentReported.compareAndSet(reported, percent)) {
+			String msg = "Replaying log: " + percent + "% done";
+			if (totalBytes >= PROGRESS_THRESHOLD) {
+				LOGGER.logInfo(msg);
+			} else {
+				LOGGER.logDebug(msg);
+			}
+		}
+	}
+
+	private class MappedSegment {
+		final long number;
+		final MappedByteBuffer buffer;
+		final List<Chunk> chunks = new ArrayList<Chunk>();
+
+		MappedSegment(long number, MappedByteBuffer buffer) {
+			this.number = number;
+			this.buffer = buffer;
+		}
+
+		void split(List<Chunk> all) {
+			if (LogRecordCodec.hasHeader(buffer)) {
+				List<Integer> boundaries = LogRecordCodec.split(buffer, chunkSize);
+				for (int i = 0; i + 1 < boundaries.size(); i++) {
+					chunks.add(new Chunk(buffer, boundaries.get(i), boundaries.get(i + 1), false));
+				}
+			} else {
+				chunks.add(new Chunk(buffer, 0, buffer.limit(), true));
+			}
+			all.addAll(chunks);
+		}
+
+		SegmentContent merge() {
+			SegmentContent ret = new SegmentContent(number);
+			for (Chunk chunk : chunks) {
+				ret.records.putAll(chunk.records);
+				ret.recordCount += chunk.recordCount;
+				if (!chunk.complete) {
+					break; // stop at the first corrupt frame
+				}
+			}
+			return ret;
+		}
+	}
+
+	private class Chunk implements Runnable {
+		private final ByteBuffer content;
+		private final boolean legacy;
+		final Map<String, PendingTransactionRecord> records = new HashMap<String, PendingTransactionRecord>();
+		int recordCount;
+		boolean complete;
+		Exception failure;
+
+		Chunk(ByteBuffer buffer, int start, int end, boolean legacy) {
+			this.content = buffer.duplicate();
+			this.content.limit(end).position(start);
+			this.legacy = legacy;
+		}
+
+		@Override
+		public void run() {
+			int size = content.remaining();
+			try {
+				if (legacy) {
+					byte[] bytes = new byte[size];
+					content.get(bytes);
+					for (PendingTransactionRecord record : FileSystemRepository.readFromInputStream(new ByteArrayInputStream(bytes))) {
+						records.put(record.id, record);
+						recordCount++;
+					}
+					complete = true;
+				} else {
+					recordCount = LogRecordCodec.decodeFrames(content, records);
+					complete = !content.hasRemaining();
+				}
+			} catch (Exception e) {
+				failure = e;
+			}
+			reportProgress(size);
+		}
+	}
+
+	/**
+	 * Releases the mapping without waiting for garbage collection - or else the
+	 * segment could not be deleted on some platforms. Best effort only.
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+		try {
+			// Java 9 and later
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			Field field = unsafeClass.getDeclaredField("theUnsafe");
+			field.setAccessible(true);
+			Object unsafe = field.get(null);
+			Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			invokeCleaner.invoke(unsafe, buffer);
+		} catch (NoSuchMethodException java8) {
+			try {
+				Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+				cleanerMethod.setAccessible(true);
+				Object cleaner = cleanerMethod.invoke(buffer);
+				if (cleaner != null) {
+					cleaner.getClass().getMethod("clean").invoke(cleaner);
+				}
+			} catch (Exception ignore) {
+				// left to garbage collection
+			}
+		} catch (Exception ignore) {
+			// left to garbage collection
+		}
+	}
+
+}
@@ -0,0 +1,304 @@
+/**
+ * Copyright (C) 2000-2020 Atomikos <info@atomikos.com>
+ *
+ * LICENSE CONDITIONS
+ *
+ * See http://www.atomikos.com/Main/WhichLicenseApplies for details.
+ */
+
+package com.atomikos.recovery.fs;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.TreeMap;
+
+import com.atomikos.logging.Logger;
+import com.atomikos.logging.LoggerFactory;
+
+/**
+ * The numbered files that make up a log: segments are named like the versions
+ * of a VersionedFile (so existing logs are still found), and replayed in
+ * ascending order - so records in a later segment override earlier ones.
+ * <p>
+ * Records are appended to one segment at a time. Segments are preallocated
+ * with zeros up to a fixed size, so appending does not change the file size
+ * and forcing only has to flush the data. A segment that is full is closed
+ * and writing rolls over to the next one.
+ * <p>
+ * Every record gets a sequence number from the caller; for each segment we
+ * remember which range of sequence numbers it holds.
+ * <p>
+ * If writing or forcing fails, whatever was written since the last force is
+ * zeroed again: replay stops at the first corrupt frame of a segment, so a
+ * torn frame must not be followed by the records of later writes. If even
+ * that fails, the segment is closed and the next write rolls over.
+ */
+
+class LogSegments {
+
+	private static final Logger LOGGER = LoggerFactory.createLogger(LogSegments.class);
+
+	private static final String SUFFIX = ".log";
+	private static final int ZEROS_SIZE = 64 * 1024;
+
+	/**
+	 * What we know about a segment.
+	 */
+	static final class Segment {
+		final long number;
+		long firstSequence = -1;
+		long lastSequence = -1;
+		// -1 if unknown (not replayed)
+		int recordCount;
+
+		Segment(long number, int recordCount) {
+			this.number = number;
+			this.recordCount = recordCount;
+		}
+
+		boolean contains(long sequence) {
+			return firstSequence >= 0 && firstSequence <= sequence && sequence <= lastSequence;
+		}
+	}
+
+	private final File baseDir;
+	private final String baseName;
+	private final long segmentSize;
+
+	// guarded by this
+	private final TreeMap<Long, Segment> known = new TreeMap<Long, Segment>();
+	// guarded by this
+	private long nextSegment;
+	// guarded by this
+	private Segment current;
+	// guarded by this
+	private FileChannel channel;
+	// guarded by this: the end of the last frames forced to disk
+	private long forcedPosition;
+	// guarded by this: the frames written since the last force
+	private long unforcedFirstSequence;
+	// guarded by this
+	private int unforcedCount;
+
+	LogSegments(String baseDir, String baseName, long segmentSize) {
+		this.baseDir = new File(baseDir);
+		this.baseName = baseName;
+		this.segmentSize = segmentSize;
+		this.nextSegment = last() + 1;
+	}
+
+	/**
+	 * @return The numbers of all segments on disk, in ascending order.
+	 */
+	List<Long> list() {
+		List<Long> ret = new ArrayList<Long>();
+		String[] names = baseDir.list(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.startsWith(baseName) && name.endsWith(SUFFIX);
+			}
+		});
+		if (names != null) {
+			for (String name : names) {
+				String number = name.substring(baseName.length(), name.length() - SUFFIX.length());
+				try {
+					ret.add(Long.valueOf(number));
+				} catch (NumberFormatException notOurs) {
+					// e.g., a log with a base name that starts with ours
+				}
+			}
+		}
+		Collections.sort(ret);
+		return ret;
+	}
+
+	/**
+	 * @return The highest segment number on disk, or -1 if none.
+	 */
+	long last() {
+		List<Long> segments = list();
+		return segments.isEmpty() ? -1 : segments.get(segments.size() - 1);
+	}
+
+	File file(long segment) {
+		return new File(baseDir, baseName + segment + SUFFIX);
+	}
+
+	/**
+	 * Registers an existing segment after replaying it.
+	 */
+	synchronized void register(long segment, long firstSequence, int recordCount) {
+		Segment s = new Segment(segment, recordCount);
+		if (recordCount > 0) {
+			s.firstSequence = firstSequence;
+			s.lastSequence = firstSequence + recordCount - 1;
+		}
+		known.put(segment, s);
+	}
+
+	synchronized boolean isWriting() {
+		return channel != null;
+	}
+
+	/**
+	 * Appends the given frames, rolling over to a new segment first if they don't fit.
+	 *
+	 * @param firstSequence The sequence number of the first frame; the others follow.
+	 */
+	synchronized void write(ByteBuffer[] frames, long firstSequence) throws IOException {
+		long size = 0;
+		for (ByteBuffer frame : frames) {
+			size += frame.remaining();
+		}
+		if (channel == null || (channel.position() + size > segmentSize && current.recordCount + unforcedCount > 0)) {
+			rollOver();
+		}
+		long end = channel.position() + size;
+		try {
+			writeFrames(channel, frames);
+		} catch (IOException | RuntimeException e) {
+			discardUnforced(end);
+			throw e;
+		}
+		if (unforcedCount == 0) {
+			unforcedFirstSequence = firstSequence;
+		}
+		unforcedCount += frames.length;
+	}
+
+	/**
+	 * Overridden by tests to inject write failures.
+	 */
+	void writeFrames(FileChannel channel, ByteBuffer[] frames) throws IOException {
+		while (frames[frames.length - 1].hasRemaining()) {
+			channel.write(frames);
+		}
+	}
+
+	/**
+	 * Only records that were forced count as part of the segment.
+	 *
+	 * @return The time spent in fsync, in nanoseconds.
+	 */
+	synchronized long force() throws IOException {
+		long end = channel.position();
+		long start = System.nanoTime();
+		try {
+			channel.force(false);
+		} catch (IOException | RuntimeException e) {
+			discardUnforced(end);
+			throw e;
+		}
+		long ret = System.nanoTime() - start;
+		if (unforcedCount > 0) {
+			if (current.firstSequence < 0) {
+				current.firstSequence = unforcedFirstSequence;
+			}
+			current.lastSequence = unforcedFirstSequence + unforcedCount - 1;
+			current.recordCount += unforcedCount;
+			unforcedCount = 0;
+		}
+		forcedPosition = channel.position();
+		return ret;
+	}
+
+	/**
+	 * Zeroes everything after the last forced frame, up to the given end, and
+	 * continues writing from there - or closes the segment if that fails too.
+	 */
+	private void discardUnforced(long end) {
+		unforcedCount = 0;
+		try {
+			zero(channel, forcedPosition, end);
+			channel.force(false);
+			channel.position(forcedPosition);
+		} catch (IOException | RuntimeException e) {
+			LOGGER.logWarning("Failed to discard partially written records - rolling over to a new log segment", e);
+			try {
+				closeChannel();
+			} catch (IOException ignore) {
+				// channel is null anyway
+			}
+		}
+	}
+
+	private void rollOver() throws IOException {
+		closeChannel();
+		long number = nextSegment++;
+		channel = preallocate(number);
+		forcedPosition = channel.position();
+		current = new Segment(number, 0);
+		known.put(number, current);
+		if (LOGGER.isDebugEnabled()) {
+			LOGGER.logDebug("Rolled over to log segment " + file(number));
+		}
+	}
+
+	private FileChannel preallocate(long segment) throws IOException {
+		FileChannel ret = FileChannel.open(file(segment).toPath(),
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			zero(ret, 0, segmentSize);
+			ByteBuffer header = LogRecordCodec.header();
+			while (header.hasRemaining()) {
+				ret.write(header, header.position());
+			}
+			ret.force(true); // the file size, once
+			ret.position(LogRecordCodec.HEADER_SIZE);
+		} catch (IOException e) {
+			ret.close();
+			throw e;
+		}
+		return ret;
+	}
+
+	private static void zero(FileChannel channel, long from, long to) throws IOException {
+		ByteBuffer zeros = ByteBuffer.allocate(ZEROS_SIZE);
+		for (long position = from; position < to; position += ZEROS_SIZE) {
+			zeros.clear();
+			zeros.limit((int) Math.min(ZEROS_SIZE, to - position));
+			while (zeros.hasRemaining()) {
+				channel.write(zeros, position + zeros.position());
+			}
+		}
+	}
+
+	/**
+	 * @return All segments except the one being written to, oldest first.
+	 */
+	synchronized List<Segment> getClosedSegments() {
+		List<Segment> ret = new ArrayList<Segment>(known.values());
+		ret.remove(current);
+		return ret;
+	}
+
+	synchronized void delete(long segment) throws IOException {
+		File file = file(segment);
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Failed to delete log segment: " + file);
+		}
+		known.remove(segment);
+	}
+
+	private void closeChannel() throws IOException {
+		try {
+			if (channel != null) {
+				channel.close();
+			}
+		} finally {
+			channel = null;
+			current = null;
+		}
+	}
+
+	synchronized void close() throws IOException {
+		closeChannel();
+	}
+
+}
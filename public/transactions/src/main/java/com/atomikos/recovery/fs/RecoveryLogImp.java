@@ -60,10 +60,7 @@ public class RecoveryLogImp implements RecoveryLog {
     @Override
     public Collection<PendingTransactionRecord> getIndoubtTransactionRecords()
             throws LogReadException {
-        Collection<PendingTransactionRecord> allCoordinatorLogEntries = repository.getAllCoordinatorLogEntries();
-        return PendingTransactionRecord.collectLineages(
-                (PendingTransactionRecord r) -> r.state == TxState.IN_DOUBT, 
-                allCoordinatorLogEntries);
+        return repository.findAllIndoubtCoordinatorLogEntries();
     }
 
     @Override
@@ -24,9 +24,18 @@ public interface Repository {
 	PendingTransactionRecord get(String coordinatorId) throws LogReadException;
 
 	Collection<PendingTransactionRecord> findAllCommittingCoordinatorLogEntries() throws LogReadException;
+
+	Collection<PendingTransactionRecord> findAllIndoubtCoordinatorLogEntries() throws LogReadException;
 	
 	Collection<PendingTransactionRecord> getAllCoordinatorLogEntries() throws LogReadException;
 
+	/**
+	 * Marks the point that the content of the next checkpoint reflects, so the 
+	 * checkpoint can be written while puts continue. 
+	 * Callers must make sure that there are no concurrent puts.
+	 */
+	void startCheckpoint() throws LogWriteException;
+
 	void writeCheckpoint(Collection<PendingTransactionRecord> checkpointContent) throws LogWriteException;
 	
 	void close();
@@ -0,0 +1,223 @@
+/**
+ * Copyright (C) 2000-2020 Atomikos <info@atomikos.com>
+ *
+ * LICENSE CONDITIONS
+ *
+ * See http://www.atomikos.com/Main/WhichLicenseApplies for details.
+ */
+
+package com.atomikos.recovery.fs;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.atomikos.icatch.config.Configuration;
+import com.atomikos.icatch.provider.ConfigProperties;
+import com.atomikos.logging.Logger;
+import com.atomikos.logging.LoggerFactory;
+import com.atomikos.persistence.imp.LogFileLock;
+import com.atomikos.recovery.LogException;
+import com.atomikos.recovery.LogReadException;
+import com.atomikos.recovery.LogWriteException;
+import com.atomikos.recovery.PendingTransactionRecord;
+
+/**
+ * Spreads the log over N independent {@link FileSystemRepository} stripes,
+ * each with its own files, writer and fsync - so concurrent transactions
+ * don't all wait for the same disk flush. The stripe of a record is chosen
+ * by the hash of its coordinator id, so all records of a transaction end up
+ * in the same stripe (and in the right order).
+ * <p>
+ * With one stripe, this is just the plain log. With N stripes, stripe i
+ * is the log named like "tmlog-iofN-". At startup, any logs written with a
+ * different number of stripes are replayed as well: their pending records
+ * are moved to the right stripe and then the old logs are deleted.
+ * <p>
+ * Checkpoints are done per stripe: each stripe only compacts its own segments.
+ */
+
+public class StripedRepository implements Repository {
+
+	private static final Logger LOGGER = LoggerFactory.createLogger(StripedRepository.class);
+
+	private LogFileLock lock_;
+	private FileSystemRepository[] stripes;
+	// logs written with a different number of stripes, to migrate at replay
+	private final List<FileSystemRepository> foreignLogs = new ArrayList<FileSystemRepository>();
+
+	@Override
+	public void init() throws LogException {
+		ConfigProperties configProperties = Configuration.getConfigProperties();
+		init(configProperties.getLogBaseDir(), configProperties.getLogBaseName(), configProperties.getLogStripes(),
+				configProperties.getLogSegmentSize(), configProperties.getLogMaxBatchSize(), configProperties.getLogMaxBatchWaitMicros(),
+				configProperties.getLogLazyFlushIntervalMillis());
+	}
+
+	void init(String baseDir, String baseName, int stripeCount, long segmentSize, int maxBatchSize, long maxBatchWaitMicros, 
+			long lazyFlushIntervalMillis) throws LogException {
+		stripeCount = Math.max(1, stripeCount);
+		// the same lock as the plain log, so a mix of configurations cannot run at once
+		lock_ = new LogFileLock(baseDir, baseName);
+		lock_.acquireLock();
+		try {
+			stripes = new FileSystemRepository[stripeCount];
+			for (int i = 0; i < stripeCount; i++) {
+				stripes[i] = new FileSystemRepository();
+				stripes[i].init(baseDir, stripeName(baseName, i, stripeCount), segmentSize, maxBatchSize, maxBatchWaitMicros, lazyFlushIntervalMillis, false);
+			}
+			for (String name : findForeignLogs(baseDir, baseName, stripeCount, segmentSize)) {
+				FileSystemRepository foreign = new FileSystemRepository();
+				foreign.init(baseDir, name, segmentSize, maxBatchSize, maxBatchWaitMicros, 0, false);
+				foreignLogs.add(foreign);
+			}
+		} catch (LogException e) {
+			lock_.releaseLock();
+			throw e;
+		}
+		if (stripeCount > 1) {
+			LOGGER.logInfo("Using " + stripeCount + " log stripes");
+		}
+	}
+
+	static String stripeName(String baseName, int stripe, int stripeCount) {
+		return stripeCount == 1 ? baseName : baseName + "-" + (stripe + 1) + "of" + stripeCount + "-";
+	}
+
+	private static Set<String> findForeignLogs(String baseDir, String baseName, int stripeCount, long segmentSize) {
+		Set<String> ret = new TreeSet<String>();
+		if (stripeCount > 1 && !new LogSegments(baseDir, baseName, segmentSize).list().isEmpty()) {
+			ret.add(baseName);
+		}
+		Pattern stripeSegment = Pattern.compile(Pattern.quote(baseName) + "-(\\d+)of(\\d+)-\\d+\\.log");
+		String[] names = new File(baseDir).list();
+		if (names != null) {
+			for (String name : names) {
+				Matcher m = stripeSegment.matcher(name);
+				if (m.matches() && Integer.parseInt(m.group(2)) != stripeCount) {
+					ret.add(baseName + "-" + m.group(1) + "of" + m.group(2) + "-");
+				}
+			}
+		}
+		return ret;
+	}
+
+	private FileSystemRepository stripeFor(String id) {
+		return stripes[Math.floorMod(id.hashCode(), stripes.length)];
+	}
+
+	@Override
+	public void put(String id, PendingTransactionRecord pendingTransactionRecord) throws LogWriteException {
+		stripeFor(id).put(id, pendingTransactionRecord);
+	}
+
+	@Override
+	public PendingTransactionRecord get(String coordinatorId) throws LogReadException {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Collection<PendingTransactionRecord> findAllCommittingCoordinatorLogEntries() throws LogReadException {
+		throw new UnsupportedOperationException();
+	}
+
+	@Override
+	public Collection<PendingTransactionRecord> findAllIndoubtCoordinatorLogEntries() throws LogReadException {
+		throw new UnsupportedOperationException();
+	}
+
+	/**
+	 * Replays and merges all stripes; must be called before the first put.
+	 * Also migrates the pending records of any foreign logs.
+	 */
+	@Override
+	public Collection<PendingTransactionRecord> getAllCoordinatorLogEntries() throws LogReadException {
+		Map<String, PendingTransactionRecord> ret = new HashMap<String, PendingTransactionRecord>();
+		for (FileSystemRepository stripe : stripes) {
+			for (PendingTransactionRecord record : stripe.getAllCoordinatorLogEntries()) {
+				ret.put(record.id, record);
+			}
+		}
+		for (FileSystemRepository foreign : foreignLogs) {
+			migrate(foreign, ret);
+		}
+		foreignLogs.clear();
+		return ret.values();
+	}
+
+	/**
+	 * Ids are in one stripe only, so a stripe always has the most recent
+	 * record - except for the ids that are still in a foreign log.
+	 */
+	private void migrate(FileSystemRepository foreign, Map<String, PendingTransactionRecord> records) throws LogReadException {
+		int moved = 0;
+		try {
+			for (PendingTransactionRecord record : foreign.getAllCoordinatorLogEntries()) {
+				if (!records.containsKey(record.id)) {
+					records.put(record.id, record);
+					if (!record.state.isFinalState()) {
+						stripeFor(record.id).put(record.id, record);
+						moved++;
+					}
+				}
+			}
+			// only now, or a crash could lose the moved records
+			foreign.delete();
+		} catch (Exception e) {
+			LOGGER.logFatal("Failed to migrate log to the configured number of stripes", e);
+			throw new LogReadException(e);
+		}
+		LOGGER.logInfo("Moved " + moved + " pending record(s) to the configured log stripes");
+	}
+
+	@Override
+	public void startCheckpoint() throws LogWriteException {
+		for (FileSystemRepository stripe : stripes) {
+			stripe.startCheckpoint();
+		}
+	}
+
+	@Override
+	public void writeCheckpoint(Collection<PendingTransactionRecord> checkpointContent) throws LogWriteException {
+		Map<FileSystemRepository, List<PendingTransactionRecord>> contentByStripe = new HashMap<FileSystemRepository, List<PendingTransactionRecord>>();
+		for (FileSystemRepository stripe : stripes) {
+			contentByStripe.put(stripe, new ArrayList<PendingTransactionRecord>());
+		}
+		for (PendingTransactionRecord record : checkpointContent) {
+			contentByStripe.get(stripeFor(record.id)).add(record);
+		}
+		for (FileSystemRepository stripe : stripes) {
+			stripe.writeCheckpoint(contentByStripe.get(stripe));
+		}
+	}
+
+	FileSystemRepository getStripe(int stripe) {
+		return stripes[stripe];
+	}
+
+	int getStripeCount() {
+		return stripes.length;
+	}
+
+	@Override
+	public void close() {
+		try {
+			for (FileSystemRepository stripe : stripes) {
+				stripe.close();
+			}
+			for (FileSystemRepository foreign : foreignLogs) {
+				foreign.close();
+			}
+		} finally {
+			lock_.releaseLock();
+		}
+	}
+
+}
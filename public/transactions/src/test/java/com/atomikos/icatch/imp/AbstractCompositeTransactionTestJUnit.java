@@ -0,0 +1,98 @@
+/**
+ * Copyright (C) 2000-2020 Atomikos <info@atomikos.com>
+ *
+ * LICENSE CONDITIONS
+ *
+ * See http://www.atomikos.com/Main/WhichLicenseApplies for details.
+ */
+
+package com.atomikos.icatch.imp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Properties;
+import java.util.Stack;
+
+import org.junit.Test;
+
+import com.atomikos.icatch.CompositeTransaction;
+import com.atomikos.icatch.Lineage;
+
+public class AbstractCompositeTransactionTestJUnit {
+
+	@Test
+	public void testSerializedLineageIsRestored() throws Exception {
+		CompositeTransactionAdaptor parent = new CompositeTransactionAdaptor("parent", false, null);
+		CompositeTransactionAdaptor child = new CompositeTransactionAdaptor("child", false, null);
+		child.lineage_ = Lineage.EMPTY.push(parent);
+		AbstractCompositeTransaction copy = (AbstractCompositeTransaction) deserialize(serialize(child));
+		assertEquals("child", copy.getTid());
+		assertEquals(1, copy.getAncestors().size());
+		assertEquals("parent", copy.getAncestors().getParent().getTid());
+		assertSame(Lineage.EMPTY, ((AbstractCompositeTransaction) copy.getAncestors().getParent()).getAncestors());
+	}
+
+	@Test
+	public void testLineageSerializedAsStackIsConverted() throws Exception {
+		LegacyTransactionAdaptorV12 legacy = new LegacyTransactionAdaptorV12();
+		legacy.tid_ = "child";
+		legacy.serial_ = true;
+		legacy.properties_ = new Properties();
+		legacy.lineage_ = new Stack<CompositeTransaction>();
+		legacy.lineage_.push(new CompositeTransactionAdaptor("root", false, null));
+		legacy.lineage_.push(new CompositeTransactionAdaptor("parent", false, null));
+		byte[] bytes = serialize(legacy);
+		// the stream of an older release: same names, same fields
+		bytes = replace(bytes, LegacyCompositeTransactionV1.class, AbstractCompositeTransaction.class);
+		bytes = replace(bytes, LegacyTransactionAdaptorV12.class, CompositeTransactionAdaptor.class);
+
+		AbstractCompositeTransaction copy = (AbstractCompositeTransaction) deserialize(bytes);
+		assertEquals("child", copy.getTid());
+		assertTrue(copy.isSerial());
+		assertEquals(2, copy.getAncestors().size());
+		assertEquals("parent", copy.getAncestors().getParent().getTid());
+		assertEquals("root", copy.getAncestors().getRoot().getTid());
+	}
+
+	private static byte[] serialize(Object o) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		out.writeObject(o);
+		out.close();
+		return bytes.toByteArray();
+	}
+
+	private static Object deserialize(byte[] bytes) throws Exception {
+		return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+	}
+
+	private static byte[] replace(byte[] bytes, Class<?> from, Class<?> to) {
+		String s = new String(bytes, StandardCharsets.ISO_8859_1);
+		assertEquals(from.getName().length(), to.getName().length());
+		assertTrue(s.contains(from.getName()));
+		return s.replace(from.getName(), to.getName()).getBytes(StandardCharsets.ISO_8859_1);
+	}
+}
+
+/**
+ * AbstractCompositeTransaction as it was serialized when the lineage was a Stack.
+ */
+abstract class LegacyCompositeTransactionV1 implements Serializable {
+	private static final long serialVersionUID = 3522422565305065464L;
+	protected Stack<CompositeTransaction> lineage_;
+	protected String tid_;
+	protected boolean serial_;
+	protected Properties properties_;
+}
+
+class LegacyTransactionAdaptorV12 extends LegacyCompositeTransactionV1 {
+	private static final long serialVersionUID = 6361601412982044104L;
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright (C) 2000-2020 Atomikos <info@atomikos.com>
+ *
+ * LICENSE CONDITIONS
+ *
+ * See http://www.atomikos.com/Main/WhichLicenseApplies for details.
+ */
+
+package com.atomikos.icatch.imp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atomikos.icatch.CompositeTransaction;
+import com.atomikos.icatch.Lineage;
+import com.atomikos.icatch.TransactionContext;
+import com.atomikos.icatch.config.Configuration;
+import com.atomikos.recovery.TxState;
+
+public class CompositeTransactionManagerImpTestJUnit {
+
+	private CompositeTransactionManagerImp ctm;
+	private ExecutorService otherThread;
+
+	@Before
+	public void setUp() {
+		Configuration.init();
+		ctm = (CompositeTransactionManagerImp) Configuration.getCompositeTransactionManager();
+		otherThread = Executors.newSingleThreadExecutor();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		otherThread.shutdownNow();
+		otherThread.awaitTermination(5, TimeUnit.SECONDS);
+		if (ctm.getCompositeTransaction() != null) ctm.getCompositeTransaction().rollback();
+		Configuration.shutdown(true);
+	}
+
+	private <T> T onOtherThread(java.util.concurrent.Callable<T> task) throws Exception {
+		return otherThread.submit(task).get(5, TimeUnit.SECONDS);
+	}
+
+	@Test
+	public void testCaptureWithoutTransactionIsEmpty() {
+		assertTrue(ctm.captureContext().isEmpty());
+	}
+
+	@Test
+	public void testCapturedContextCanBeAttachedToAnotherThread() throws Exception {
+		CompositeTransaction ct = ctm.createCompositeTransaction(10000);
+		TransactionContext context = ctm.captureContext();
+		assertSame(ct, context.getCompositeTransaction());
+		TransactionContext previous = onOtherThread(() -> ctm.attachContext(context));
+		assertTrue(previous.isEmpty());
+		assertSame(ct, onOtherThread(() -> ctm.getCompositeTransaction()));
+		assertSame(ct, ctm.getCompositeTransaction());
+		assertEquals(1, ctm.getTransactionsWithAttachedContextsCount());
+	}
+
+	@Test
+	public void testEndingTheTransactionClearsAttachedThreads() throws Exception {
+		CompositeTransaction ct = ctm.createCompositeTransaction(10000);
+		TransactionContext context = ctm.captureContext();
+		onOtherThread(() -> ctm.attachContext(context));
+		ct.rollback();
+		assertNull(ctm.getCompositeTransaction());
+		assertNull(onOtherThread(() -> ctm.getCompositeTransaction()));
+		assertEquals(0, ctm.getTransactionsWithAttachedContextsCount());
+	}
+
+	@Test
+	public void testAttachingAnEndedTransactionGivesNoContext() throws Exception {
+		CompositeTransaction ct = ctm.createCompositeTransaction(10000);
+		TransactionContext context = ctm.captureContext();
+		ct.rollback();
+		onOtherThread(() -> ctm.attachContext(context));
+		assertNull(onOtherThread(() -> ctm.getCompositeTransaction()));
+		assertEquals(0, ctm.getTransactionsWithAttachedContextsCount());
+	}
+
+	@Test
+	public void testTransactionEndingWhileBeingAttachedGivesNoContext() throws Exception {
+		// ends right after the first check: too early for its termination to see the attached thread
+		CompositeTransaction ct = new CompositeTransactionAdaptor("root", false, null) {
+			private int checks;
+
+			@Override
+			public TxState getState() {
+				return checks++ == 0 ? TxState.ACTIVE : TxState.COMMITTING;
+			}
+		};
+		TransactionContext context = new TransactionContext(ctm, Lineage.EMPTY.push(ct));
+		onOtherThread(() -> ctm.attachContext(context));
+		assertNull(onOtherThread(() -> ctm.getCompositeTransaction()));
+		assertEquals(0, ctm.getTransactionsWithAttachedContextsCount());
+	}
+
+	@Test
+	public void testTerminatingTransactionCannotBeAttached() throws Exception {
+		CompositeTransactionImp ct = (CompositeTransactionImp) ctm.createCompositeTransaction(10000);
+		TransactionContext context = ctm.captureContext();
+		TransactionStateHandler active = ct.localGetTransactionStateHandler();
+		ct.localSetTransactionStateHandler(new TxTerminatingStateHandler(true, ct, active));
+		try {
+			onOtherThread(() -> ctm.attachContext(context));
+			assertNull(onOtherThread(() -> ctm.getCompositeTransaction()));
+			assertEquals(0, ctm.getTransactionsWithAttachedContextsCount());
+		} finally {
+			ct.localSetTransactionStateHandler(active);
+		}
+	}
+
+	@Test
+	public void testRestoringThePreviousContextMakesItOwnedAgain() throws Exception {
+		CompositeTransaction own = onOtherThread(() -> ctm.createCompositeTransaction(10000));
+		CompositeTransaction ct = ctm.createCompositeTransaction(10000);
+		Runnable task = ctm.captureContext().wrap(() -> assertSame(ct, ctm.getCompositeTransaction()));
+		onOtherThread(() -> { task.run(); return null; });
+		assertSame(own, onOtherThread(() -> ctm.getCompositeTransaction()));
+		// neither the restored context nor the one of the task are still indexed as attached
+		assertEquals(0, ctm.getTransactionsWithAttachedContextsCount());
+		onOtherThread(() -> { own.rollback(); return null; });
+		assertNull(onOtherThread(() -> ctm.getCompositeTransaction()));
+	}
+}
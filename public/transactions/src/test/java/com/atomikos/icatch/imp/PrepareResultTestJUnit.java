@@ -0,0 +1,89 @@
+/**
+ * Copyright (C) 2000-2020 Atomikos <info@atomikos.com>
+ *
+ * LICENSE CONDITIONS
+ *
+ * See http://www.atomikos.com/Main/WhichLicenseApplies for details.
+ */
+
+package com.atomikos.icatch.imp;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import com.atomikos.icatch.Participant;
+
+import junit.framework.TestCase;
+
+public class PrepareResultTestJUnit extends TestCase {
+
+	private PrepareResult result;
+	private Participant p1, p2;
+
+	protected void setUp() throws Exception {
+		super.setUp();
+		result = new PrepareResult(2);
+		p1 = new RollbackOnlyParticipant();
+		p2 = new RollbackOnlyParticipant();
+	}
+
+	public void testCompletesWhenAllRepliesArrived() throws Exception {
+		final CountDownLatch done = new CountDownLatch(1);
+		result.allRepliesArrived().thenRun(done::countDown);
+		result.addReply(new Reply(Boolean.TRUE, null, p1, false));
+		assertEquals(1, done.getCount());
+		result.addReply(new Reply(Boolean.TRUE, null, p2, false));
+		assertTrue(done.await(1, TimeUnit.SECONDS));
+		assertTrue(result.allYes());
+		assertEquals(Result.ALL_OK, result.getResult());
+	}
+
+	public void testRetriedAndDuplicateRepliesAreNotCounted() throws Exception {
+		result.addReply(new Reply(null, new Exception(), p1, true));
+		result.addReply(new Reply(Boolean.TRUE, null, p1, false));
+		result.addReply(new Reply(Boolean.TRUE, null, p1, false));
+		assertFalse(result.allRepliesArrived().toCompletableFuture().isDone());
+		result.addReply(new Reply(null, null, p2, false));
+		assertTrue(result.allRepliesArrived().toCompletableFuture().isDone());
+		assertEquals(2, result.getReplies().size());
+		assertFalse(result.allReadOnly());
+	}
+
+	public void testConcurrentRepliesAreAllCounted() throws Exception {
+		final int count = 100;
+		final PrepareResult concurrent = new PrepareResult(count);
+		Thread[] threads = new Thread[count];
+		for (int i = 0; i < count; i++) {
+			threads[i] = new Thread(() -> concurrent.addReply(new Reply(null, null, new RollbackOnlyParticipant(), false)));
+			threads[i].start();
+		}
+		concurrent.waitForReplies();
+		assertEquals(count, concurrent.getReplies().size());
+		assertTrue(concurrent.allReadOnly());
+	}
+
+	public void testUnexpectedReplyIsKept() throws Exception {
+		result.addReply(new Reply(Boolean.TRUE, null, p1, false));
+		result.addReply(new Reply(Boolean.TRUE, null, p2, false));
+		result.addReply(new Reply(Boolean.FALSE, null, new RollbackOnlyParticipant(), false));
+		assertEquals(3, result.getReplies().size());
+		assertFalse(result.allYes());
+	}
+
+	public void testDuplicateRepliesOfManyParticipantsAreNotCounted() throws Exception {
+		final int count = 20;
+		PrepareResult many = new PrepareResult(count);
+		Participant[] participants = new Participant[count];
+		for (int i = 0; i < count; i++) {
+			participants[i] = new RollbackOnlyParticipant();
+			many.addReply(new Reply(null, null, participants[i], false));
+			many.addReply(new Reply(Boolean.FALSE, null, participants[i / 2], false));
+		}
+		assertEquals(count, many.getReplies().size());
+		assertTrue(many.allReadOnly());
+	}
+
+	public void testEmptyResultIsCompleteRightAway() throws Exception {
+		assertTrue(new PrepareResult(0).allRepliesArrived().toCompletableFuture().isDone());
+	}
+}
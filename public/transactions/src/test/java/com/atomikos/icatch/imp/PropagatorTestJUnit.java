@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2000-2020 Atomikos <info@atomikos.com>
+ *
+ * LICENSE CONDITIONS
+ *
+ * See http://www.atomikos.com/Main/WhichLicenseApplies for details.
+ */
+
+package com.atomikos.icatch.imp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atomikos.timing.TimingService;
+
+public class PropagatorTestJUnit {
+
+	private long retryInterval;
+
+	@Before
+	public void setUp() {
+		retryInterval = Propagator.RETRY_INTERVAL;
+		Propagator.RETRY_INTERVAL = 200;
+		TimingService.SINGLETON.start(); // in case an earlier test shut it down
+	}
+
+	@After
+	public void tearDown() {
+		Propagator.RETRY_INTERVAL = retryInterval;
+	}
+
+	@Test
+	public void testLastMessageIsSentOnCallingThread() throws Exception {
+		TestMessage first = new TestMessage(0);
+		TestMessage last = new TestMessage(0);
+		new Propagator(true).submitPropagationMessages(Arrays.asList(first, last));
+		assertTrue(first.done.await(1, TimeUnit.SECONDS));
+		assertTrue(last.done.await(1, TimeUnit.SECONDS));
+		assertNotSame(Thread.currentThread(), first.threads.get(0));
+		assertSame(Thread.currentThread(), last.threads.get(0));
+	}
+
+	@Test
+	public void testRetryOfLastMessageDoesNotBlockCallingThread() throws Exception {
+		TestMessage msg = new TestMessage(2);
+		long start = System.nanoTime();
+		new Propagator(true).submitPropagationMessages(Arrays.asList(msg));
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < Propagator.RETRY_INTERVAL);
+		assertEquals(1, msg.threads.size());
+		assertTrue(msg.done.await(5, TimeUnit.SECONDS));
+		assertEquals(3, msg.threads.size());
+		assertSame(Thread.currentThread(), msg.threads.get(0));
+		assertNotSame(Thread.currentThread(), msg.threads.get(1));
+		assertNotSame(Thread.currentThread(), msg.threads.get(2));
+	}
+
+	@Test
+	public void testNonThreadedRetriesOnCallingThread() throws Exception {
+		TestMessage msg = new TestMessage(1);
+		new Propagator(false).submitPropagationMessages(Arrays.asList(msg));
+		assertEquals(0, msg.done.getCount());
+		assertEquals(Arrays.asList(Thread.currentThread(), Thread.currentThread()), msg.threads);
+	}
+
+	@Test
+	public void testRetryPendingAtShutdownIsReportedAsFailed() throws Exception {
+		PrepareResult result = new PrepareResult(1);
+		TestMessage msg = new TestMessage(Integer.MAX_VALUE, result);
+		new Propagator(true).submitPropagationMessages(Arrays.asList(msg));
+		assertFalse(result.allRepliesArrived().toCompletableFuture().isDone());
+		TimingService.SINGLETON.shutdown();
+		try {
+			Propagator.abandonPendingRetries();
+			assertTrue(result.allRepliesArrived().toCompletableFuture().isDone());
+			assertTrue(result.getReplies().get(0).hasFailed());
+			assertFalse(result.allYes());
+			Thread.sleep(2 * Propagator.RETRY_INTERVAL);
+			assertEquals(1, msg.threads.size());
+		} finally {
+			TimingService.SINGLETON.start();
+		}
+	}
+
+	@Test
+	public void testRetryAfterShutdownIsReportedAsFailed() throws Exception {
+		PrepareResult result = new PrepareResult(1);
+		TestMessage msg = new TestMessage(Integer.MAX_VALUE, result);
+		TimingService.SINGLETON.shutdown();
+		try {
+			new Propagator(true).submitPropagationMessages(Arrays.asList(msg));
+			assertTrue(result.allRepliesArrived().toCompletableFuture().isDone());
+			assertTrue(result.getReplies().get(0).hasFailed());
+			assertEquals(1, msg.threads.size());
+		} finally {
+			TimingService.SINGLETON.start();
+		}
+	}
+
+	/**
+	 * Fails with a transient error for the given number of attempts.
+	 */
+	private static class TestMessage extends PropagationMessage {
+
+		private final List<Thread> threads = new CopyOnWriteArrayList<Thread>();
+		private final CountDownLatch done = new CountDownLatch(1);
+		private final int failures;
+
+		TestMessage(int failures) {
+			this(failures, null);
+		}
+
+		TestMessage(int failures, Result result) {
+			super(null, result);
+			this.failures = failures;
+		}
+
+		@Override
+		protected Object send() throws PropagationException {
+			threads.add(Thread.currentThread());
+			if (threads.size() <= failures) {
+				throw new PropagationException(new Exception("transient"), true);
+			}
+			done.countDown();
+			return null;
+		}
+	}
+}
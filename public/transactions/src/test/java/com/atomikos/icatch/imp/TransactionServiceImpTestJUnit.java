@@ -0,0 +1,107 @@
+/**
+ * Copyright (C) 2000-2020 Atomikos <info@atomikos.com>
+ *
+ * LICENSE CONDITIONS
+ *
+ * See http://www.atomikos.com/Main/WhichLicenseApplies for details.
+ */
+
+package com.atomikos.icatch.imp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atomikos.icatch.CompositeTransaction;
+import com.atomikos.persistence.RecoverableCoordinator;
+import com.atomikos.persistence.StateRecoveryManager;
+import com.atomikos.recovery.RecoveryLog;
+import com.atomikos.util.UniqueIdMgr;
+
+public class TransactionServiceImpTestJUnit {
+
+	private TestRecoveryManager recoveryManager;
+	private TestIdMgr idMgr;
+	private TransactionServiceImp service;
+
+	@Before
+	public void setUp() throws Exception {
+		recoveryManager = new TestRecoveryManager();
+		idMgr = new TestIdMgr();
+		service = new TransactionServiceImp("tm", recoveryManager, idMgr, 0, -1, false, inactiveRecoveryLog());
+		service.init(new Properties());
+	}
+
+	@After
+	public void tearDown() {
+		service.shutdown(true);
+	}
+
+	@Test
+	public void testCoordinatorIsBackedOutIfShutdownStartsDuringCreation() throws Exception {
+		CompositeTransaction parent = service.createCompositeTransaction(10000);
+		CoordinatorImp parentCoordinator = (CoordinatorImp) parent.getCompositeCoordinator();
+		assertEquals(1, recoveryManager.registered.size());
+		// the subtransaction takes two ids: the second one is taken after the first shutdown check
+		idMgr.shutdownOnCall = idMgr.calls + 2;
+		try {
+			service.createSubTransaction(parent);
+			fail("Creation should fail once shutdown started");
+		} catch (IllegalStateException expected) {
+		}
+		assertEquals(1, recoveryManager.registered.size());
+		assertSame(parentCoordinator, recoveryManager.registered.get(0));
+	}
+
+	private static RecoveryLog inactiveRecoveryLog() {
+		return (RecoveryLog) Proxy.newProxyInstance(RecoveryLog.class.getClassLoader(), new Class<?>[] { RecoveryLog.class },
+				(proxy, method, args) -> {
+					if (method.getReturnType() == boolean.class) return false;
+					if (method.getReturnType() == Collection.class) return Collections.emptyList();
+					return null;
+				});
+	}
+
+	private static class TestRecoveryManager implements StateRecoveryManager {
+
+		private final List<RecoverableCoordinator> registered = new ArrayList<RecoverableCoordinator>();
+
+		@Override
+		public void register(RecoverableCoordinator staterecoverable) {
+			registered.add(staterecoverable);
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+
+	private class TestIdMgr extends UniqueIdMgr {
+
+		private int calls;
+		private int shutdownOnCall = -1;
+
+		TestIdMgr() {
+			super("tm");
+		}
+
+		@Override
+		public String get() {
+			if (++calls == shutdownOnCall) {
+				service.shutdown(true);
+			}
+			return super.get();
+		}
+	}
+}
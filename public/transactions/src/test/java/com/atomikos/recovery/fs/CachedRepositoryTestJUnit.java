@@ -0,0 +1,324 @@
+/**
+ * Copyright (C) 2000-2020 Atomikos <info@atomikos.com>
+ *
+ * LICENSE CONDITIONS
+ *
+ * See http://www.atomikos.com/Main/WhichLicenseApplies for details.
+ */
+
+package com.atomikos.recovery.fs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atomikos.recovery.LogWriteException;
+import com.atomikos.recovery.PendingTransactionRecord;
+import com.atomikos.recovery.TxState;
+
+public class CachedRepositoryTestJUnit {
+
+	private RecordingRepository backup;
+	private CachedRepository repository;
+	// in-memory puts of a record that is not the last one logged for its id
+	private final AtomicInteger outOfOrderPuts = new AtomicInteger();
+	// runs at the start of the purge, after the snapshot was taken
+	private volatile Runnable beforePurge;
+	private int fillerCount;
+
+	@Before
+	public void setUp() {
+		backup = new RecordingRepository();
+		repository = new CachedRepository(new InMemoryRepository() {
+			@Override
+			public synchronized void put(String id, PendingTransactionRecord coordinatorLogEntry) {
+				if (backup.lastPuts.get(id) != coordinatorLogEntry) outOfOrderPuts.incrementAndGet();
+				super.put(id, coordinatorLogEntry);
+			}
+
+			@Override
+			public synchronized Collection<PendingTransactionRecord> findAllExpiredCoordinatorLogEntries(long time) {
+				if (beforePurge != null) beforePurge.run();
+				return super.findAllExpiredCoordinatorLogEntries(time);
+			}
+		}, backup);
+		repository.init();
+		// forget the checkpoint of init
+		backup.writtenCheckpoints.clear();
+		backup.checkpointsWriting.drainPermits();
+	}
+
+	@After
+	public void tearDown() {
+		if (backup.checkpointGate != null) backup.checkpointGate.countDown();
+		if (!backup.closed) repository.close();
+	}
+
+	@Test
+	public void testPutsForTheSameIdKeepTheOrderOfTheLog() throws Exception {
+		backup.slowPuts = true;
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		List<Thread> writers = new ArrayList<Thread>();
+		for (final TxState state : new TxState[] { TxState.COMMITTING, TxState.IN_DOUBT }) {
+			writers.add(new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < 50; i++) {
+							repository.put("tx", record("tx", state));
+						}
+					} catch (Exception e) {
+						failure.set(e);
+					}
+				}
+			});
+		}
+		for (Thread writer : writers) writer.start();
+		for (Thread writer : writers) writer.join();
+		assertNull(failure.get());
+		assertEquals(0, outOfOrderPuts.get());
+		assertEquals(backup.lastPuts.get("tx").state, repository.get("tx").state);
+	}
+
+	@Test
+	public void testPutsForDifferentIdsAreNotSerialized() throws Exception {
+		backup.barrier = new CyclicBarrier(2);
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		Thread other = new Thread() {
+			public void run() {
+				try {
+					repository.put("a", record("a", TxState.COMMITTING));
+				} catch (Exception e) {
+					failure.set(e);
+				}
+			}
+		};
+		other.start();
+		repository.put("b", record("b", TxState.COMMITTING)); // times out if not concurrent
+		other.join();
+		assertNull(failure.get());
+		assertNull(backup.failure);
+	}
+
+	@Test
+	public void testCheckpointIsWrittenInTheBackground() throws Exception {
+		backup.checkpointGate = new CountDownLatch(1);
+		triggerCheckpoint(); // returns while the checkpoint waits for the gate
+		assertTrue(backup.checkpointsWriting.tryAcquire(5, TimeUnit.SECONDS));
+		assertNotSame(Thread.currentThread(), backup.checkpointThread);
+		repository.put("tx", record("tx", TxState.COMMITTING));
+		backup.checkpointGate.countDown();
+		assertNotNull(backup.writtenCheckpoints.poll(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testOnlyOneCheckpointAtATime() throws Exception {
+		backup.checkpointGate = new CountDownLatch(1);
+		triggerCheckpoint();
+		assertTrue(backup.checkpointsWriting.tryAcquire(5, TimeUnit.SECONDS));
+		int started = backup.startedCheckpoints.get();
+		triggerCheckpoint(); // busy: not started
+		assertEquals(started, backup.startedCheckpoints.get());
+		backup.checkpointGate.countDown();
+		assertNotNull(backup.writtenCheckpoints.poll(5, TimeUnit.SECONDS));
+		assertTrue(waitForCheckpointPermit());
+		repository.put("tx", record("tx", TxState.COMMITTING)); // still due
+		assertNotNull(backup.writtenCheckpoints.poll(5, TimeUnit.SECONDS));
+		assertEquals(started + 1, backup.startedCheckpoints.get());
+		assertEquals(1, backup.maxCheckpointsWriting.get());
+	}
+
+	@Test
+	public void testCloseWaitsForTheCheckpointInProgress() throws Exception {
+		backup.checkpointGate = new CountDownLatch(1);
+		triggerCheckpoint();
+		assertTrue(backup.checkpointsWriting.tryAcquire(5, TimeUnit.SECONDS));
+		Thread closer = new Thread() {
+			public void run() {
+				repository.close();
+			}
+		};
+		closer.start();
+		closer.join(200);
+		assertTrue(closer.isAlive());
+		assertFalse(backup.closed);
+		backup.checkpointGate.countDown();
+		closer.join(5000);
+		assertFalse(closer.isAlive());
+		assertTrue(backup.closed);
+		assertEquals(1, backup.writtenCheckpoints.size());
+	}
+
+	@Test
+	public void testPurgeOnlyRemovesTheRecordsOfTheSnapshot() throws Exception {
+		final PendingTransactionRecord replaced = expired("replaced");
+		final PendingTransactionRecord purged = expired("purged");
+		final PendingTransactionRecord replacement = expired("replaced");
+		final PendingTransactionRecord added = expired("added");
+		repository.put(replaced.id, replaced);
+		repository.put(purged.id, purged);
+		beforePurge = new Runnable() {
+			public void run() {
+				beforePurge = null;
+				try {
+					repository.put(replacement.id, replacement);
+					repository.put(added.id, added);
+				} catch (Exception e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		};
+		triggerCheckpoint();
+		Collection<PendingTransactionRecord> checkpoint = backup.writtenCheckpoints.poll(5, TimeUnit.SECONDS);
+		assertNotNull(checkpoint);
+		assertNull(repository.get(purged.id));
+		assertSame(replacement, repository.get(replaced.id));
+		assertSame(added, repository.get(added.id));
+		Set<String> ids = new HashSet<String>();
+		for (PendingTransactionRecord coordinatorLogEntry : checkpoint) {
+			ids.add(coordinatorLogEntry.id);
+		}
+		assertEquals(Collections.singleton(replaced.id), ids);
+	}
+
+	/**
+	 * Puts enough terminated records to start a checkpoint - without adding to the in-memory contents.
+	 */
+	private void triggerCheckpoint() throws Exception {
+		for (int i = 0; i < 500; i++) {
+			String id = "filler" + fillerCount++;
+			repository.put(id, record(id, TxState.TERMINATED));
+		}
+	}
+
+	private boolean waitForCheckpointPermit() throws InterruptedException {
+		long deadline = System.currentTimeMillis() + 5000;
+		while (backup.checkpointsInProgress.get() > 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		Thread.sleep(50); // the permit is released right after the write
+		return backup.checkpointsInProgress.get() == 0;
+	}
+
+	private static PendingTransactionRecord record(String id, TxState state) {
+		return new PendingTransactionRecord(id, state, Long.MAX_VALUE, "domain");
+	}
+
+	private static PendingTransactionRecord expired(String id) {
+		return new PendingTransactionRecord(id, TxState.ABORTING, 0, "domain");
+	}
+
+	/**
+	 * Remembers the last record put for each id, and the checkpoints written.
+	 */
+	static class RecordingRepository implements Repository {
+
+		final Map<String, PendingTransactionRecord> lastPuts = new ConcurrentHashMap<String, PendingTransactionRecord>();
+		volatile boolean slowPuts;
+		volatile CyclicBarrier barrier;
+		// put failures are not thrown by CachedRepository
+		volatile Exception failure;
+		final AtomicInteger startedCheckpoints = new AtomicInteger();
+		final BlockingQueue<Collection<PendingTransactionRecord>> writtenCheckpoints = new LinkedBlockingQueue<Collection<PendingTransactionRecord>>();
+		// if set, checkpoints wait for it
+		volatile CountDownLatch checkpointGate;
+		// released whenever a checkpoint starts writing
+		final Semaphore checkpointsWriting = new Semaphore(0);
+		final AtomicInteger checkpointsInProgress = new AtomicInteger();
+		final AtomicInteger maxCheckpointsWriting = new AtomicInteger();
+		volatile Thread checkpointThread;
+		volatile boolean closed;
+
+		@Override
+		public void init() {
+		}
+
+		@Override
+		public void put(String id, PendingTransactionRecord pendingTransactionRecord) throws LogWriteException {
+			lastPuts.put(id, pendingTransactionRecord);
+			try {
+				if (slowPuts) {
+					Thread.sleep(1); // let concurrent puts overtake this one
+				}
+				if (barrier != null) {
+					barrier.await(5, TimeUnit.SECONDS);
+				}
+			} catch (Exception e) {
+				failure = e;
+				throw new LogWriteException(e);
+			}
+		}
+
+		@Override
+		public PendingTransactionRecord get(String coordinatorId) {
+			return lastPuts.get(coordinatorId);
+		}
+
+		@Override
+		public Collection<PendingTransactionRecord> findAllCommittingCoordinatorLogEntries() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Collection<PendingTransactionRecord> findAllIndoubtCoordinatorLogEntries() {
+			throw new UnsupportedOperationException();
+		}
+
+		@Override
+		public Collection<PendingTransactionRecord> getAllCoordinatorLogEntries() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public void startCheckpoint() {
+			startedCheckpoints.incrementAndGet();
+		}
+
+		@Override
+		public void writeCheckpoint(Collection<PendingTransactionRecord> checkpointContent) throws LogWriteException {
+			int writing = checkpointsInProgress.incrementAndGet();
+			maxCheckpointsWriting.accumulateAndGet(writing, Math::max);
+			checkpointThread = Thread.currentThread();
+			checkpointsWriting.release();
+			try {
+				if (checkpointGate != null && !checkpointGate.await(5, TimeUnit.SECONDS)) {
+					throw new LogWriteException(new IllegalStateException("Gate not opened"));
+				}
+				writtenCheckpoints.add(new ArrayList<PendingTransactionRecord>(checkpointContent));
+			} catch (InterruptedException e) {
+				throw new LogWriteException(e);
+			} finally {
+				checkpointsInProgress.decrementAndGet();
+			}
+		}
+
+		@Override
+		public void close() {
+			closed = true;
+		}
+	}
+}
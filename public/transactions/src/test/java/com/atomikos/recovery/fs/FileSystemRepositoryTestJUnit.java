@@ -0,0 +1,281 @@
+/**
+ * Copyright (C) 2000-2020 Atomikos <info@atomikos.com>
+ *
+ * LICENSE CONDITIONS
+ *
+ * See http://www.atomikos.com/Main/WhichLicenseApplies for details.
+ */
+
+package com.atomikos.recovery.fs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atomikos.recovery.LogWriteException;
+import com.atomikos.recovery.PendingTransactionRecord;
+import com.atomikos.recovery.TxState;
+
+public class FileSystemRepositoryTestJUnit {
+
+	private static final String BASE_DIR = "." + File.separatorChar;
+	private static final String BASE_NAME = "FileSystemRepositoryTest";
+	private static final long SEGMENT_SIZE = 4096;
+
+	private FileSystemRepository repository;
+
+	@Before
+	public void setUp() throws Exception {
+		repository = new FileSystemRepository();
+		repository.init(BASE_DIR, BASE_NAME, SEGMENT_SIZE, 16, 1000);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if (repository != null) repository.close();
+		for (File file : new File(BASE_DIR).listFiles()) {
+			if (file.getName().startsWith(BASE_NAME)) file.delete();
+		}
+	}
+
+	@Test
+	public void testConcurrentPutsAreGroupedAndReadBack() throws Exception {
+		final int threads = 8;
+		final int putsPerThread = 50;
+		final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+		List<Thread> writers = new ArrayList<Thread>();
+		for (int t = 0; t < threads; t++) {
+			final int thread = t;
+			writers.add(new Thread() {
+				public void run() {
+					try {
+						for (int i = 0; i < putsPerThread; i++) {
+							String id = "tx" + thread + "_" + i;
+							repository.put(id, new PendingTransactionRecord(id, TxState.COMMITTING, Long.MAX_VALUE, "domain"));
+						}
+					} catch (Exception e) {
+						failure.set(e);
+					}
+				}
+			});
+		}
+		for (Thread writer : writers) writer.start();
+		for (Thread writer : writers) writer.join();
+
+		assertEquals(null, failure.get());
+		assertTrue(repository.getFlushedBatchCount() <= threads * putsPerThread);
+		assertEquals((double) threads * putsPerThread / repository.getFlushedBatchCount(), repository.getAverageBatchSize(), 0.001);
+		repository.close();
+
+		repository = new FileSystemRepository();
+		repository.init(BASE_DIR, BASE_NAME, SEGMENT_SIZE, 16, 0);
+		assertEquals(threads * putsPerThread, repository.getAllCoordinatorLogEntries().size());
+	}
+
+	@Test
+	public void testPutsDuringCheckpointAreKept() throws Exception {
+		repository.put("before", record("before", TxState.COMMITTING));
+		repository.startCheckpoint();
+		repository.put("during", record("during", TxState.COMMITTING));
+		repository.put("before", record("before", TxState.TERMINATED));
+		repository.writeCheckpoint(Collections.singleton(record("before", TxState.COMMITTING)));
+		repository.close();
+
+		repository = new FileSystemRepository();
+		repository.init(BASE_DIR, BASE_NAME, SEGMENT_SIZE, 16, 0);
+		Map<String, TxState> recovered = new HashMap<String, TxState>();
+		for (PendingTransactionRecord entry : repository.getAllCoordinatorLogEntries()) {
+			recovered.put(entry.id, entry.state);
+		}
+		assertEquals(TxState.TERMINATED, recovered.get("before"));
+		assertEquals(TxState.COMMITTING, recovered.get("during"));
+	}
+
+	@Test
+	public void testCompactionDeletesSegmentsWithoutPendingTransactions() throws Exception {
+		repository.put("pending", record("pending", TxState.IN_DOUBT));
+		for (int i = 0; i < 200; i++) {
+			String id = "tx" + i;
+			repository.put(id, record(id, TxState.COMMITTING));
+			repository.put(id, record(id, TxState.TERMINATED));
+		}
+		int segmentsBefore = countSegments();
+		assertTrue(segmentsBefore > 1);
+		repository.startCheckpoint();
+		repository.writeCheckpoint(Collections.singleton(record("pending", TxState.IN_DOUBT)));
+		assertTrue(countSegments() < segmentsBefore);
+		repository.close();
+
+		repository = new FileSystemRepository();
+		repository.init(BASE_DIR, BASE_NAME, SEGMENT_SIZE, 16, 0);
+		List<String> pending = new ArrayList<String>();
+		for (PendingTransactionRecord entry : repository.getAllCoordinatorLogEntries()) {
+			if (!entry.state.isFinalState()) pending.add(entry.id);
+		}
+		assertEquals(Collections.singletonList("pending"), pending);
+	}
+
+	@Test
+	public void testTerminatedRecordsAreForcedWithTheNextForcedRecord() throws Exception {
+		repository.close();
+		repository = new FileSystemRepository();
+		repository.init(BASE_DIR, BASE_NAME, SEGMENT_SIZE, 16, 0, 60000, true);
+		repository.put("first", record("first", TxState.COMMITTING));
+		repository.put("first", record("first", TxState.TERMINATED));
+		assertEquals(1, repository.getFlushedBatchCount());
+		assertEquals(1, repository.getLazyRecordCount());
+		repository.put("second", record("second", TxState.COMMITTING));
+		assertEquals(2, repository.getFlushedBatchCount());
+		assertEquals(1.5, repository.getAverageBatchSize(), 0.001);
+		repository.put("second", record("second", TxState.TERMINATED));
+		repository.close(); // flushes
+
+		repository = new FileSystemRepository();
+		repository.init(BASE_DIR, BASE_NAME, SEGMENT_SIZE, 16, 0);
+		for (PendingTransactionRecord entry : repository.getAllCoordinatorLogEntries()) {
+			assertEquals(TxState.TERMINATED, entry.state);
+		}
+	}
+
+	@Test
+	public void testTerminatedRecordsAreFlushedPeriodically() throws Exception {
+		repository.close();
+		repository = new FileSystemRepository();
+		repository.init(BASE_DIR, BASE_NAME, SEGMENT_SIZE, 16, 0, 10, true);
+		repository.put("tx", record("tx", TxState.COMMITTING));
+		repository.put("tx", record("tx", TxState.TERMINATED));
+		long deadline = System.currentTimeMillis() + 10000;
+		while (repository.getFlushedBatchCount() == 1 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(10);
+		}
+		assertEquals(2, repository.getFlushedBatchCount());
+	}
+
+	@Test
+	public void testTerminatedRecordsWithoutPendingRecordAreCoalesced() throws Exception {
+		repository.put("aborted", record("aborted", TxState.TERMINATED));
+		repository.put("committed", record("committed", TxState.COMMITTING));
+		repository.put("committed", record("committed", TxState.TERMINATED));
+		assertEquals(1, repository.getCoalescedRecordCount());
+		assertEquals(0.5, repository.getCoalescingHitRate(), 0.001);
+		repository.close();
+
+		repository = new FileSystemRepository();
+		repository.init(BASE_DIR, BASE_NAME, SEGMENT_SIZE, 16, 0);
+		repository.put("other", record("other", TxState.TERMINATED));
+		assertEquals(0, repository.getCoalescedRecordCount()); // not replayed: could terminate something
+		repository.close();
+
+		repository = new FileSystemRepository();
+		repository.init(BASE_DIR, BASE_NAME, SEGMENT_SIZE, 16, 0);
+		assertEquals(2, repository.getAllCoordinatorLogEntries().size());
+		repository.put("committed", record("committed", TxState.TERMINATED));
+		assertEquals(1, repository.getCoalescedRecordCount());
+	}
+
+	@Test
+	public void testRecordsForcedAfterAFailedWriteAreRecovered() throws Exception {
+		repository.close();
+		AtomicBoolean failNextWrite = new AtomicBoolean();
+		repository = failingRepository(failNextWrite);
+		repository.init(BASE_DIR, BASE_NAME, SEGMENT_SIZE, 16, 0);
+		repository.put("before", record("before", TxState.COMMITTING));
+		failNextWrite.set(true);
+		try {
+			repository.put("failed", record("failed", TxState.COMMITTING));
+			fail("write failure not reported");
+		} catch (LogWriteException expected) {
+		}
+		repository.put("after", record("after", TxState.COMMITTING));
+		repository.close();
+
+		repository = new FileSystemRepository();
+		repository.init(BASE_DIR, BASE_NAME, SEGMENT_SIZE, 16, 0);
+		Map<String, TxState> recovered = new HashMap<String, TxState>();
+		for (PendingTransactionRecord entry : repository.getAllCoordinatorLogEntries()) {
+			recovered.put(entry.id, entry.state);
+		}
+		assertEquals(TxState.COMMITTING, recovered.get("before"));
+		assertEquals(TxState.COMMITTING, recovered.get("after"));
+		assertFalse(recovered.containsKey("failed"));
+	}
+
+	@Test
+	public void testFailedLazyWritesAreDroppedAndRollOver() throws Exception {
+		repository.close();
+		AtomicBoolean failNextWrite = new AtomicBoolean();
+		repository = failingRepository(failNextWrite);
+		repository.init(BASE_DIR, BASE_NAME, SEGMENT_SIZE, 16, 0, 60000, true);
+		repository.put("first", record("first", TxState.COMMITTING));
+		repository.put("first", record("first", TxState.TERMINATED));
+		failNextWrite.set(true);
+		try {
+			repository.flushPendingBatches();
+			fail("write failure not reported");
+		} catch (IOException expected) {
+		}
+		assertEquals(1, countSegments());
+		repository.put("second", record("second", TxState.COMMITTING));
+		assertEquals(2, countSegments());
+		repository.close();
+
+		repository = new FileSystemRepository();
+		repository.init(BASE_DIR, BASE_NAME, SEGMENT_SIZE, 16, 0);
+		Map<String, TxState> recovered = new HashMap<String, TxState>();
+		for (PendingTransactionRecord entry : repository.getAllCoordinatorLogEntries()) {
+			recovered.put(entry.id, entry.state);
+		}
+		assertEquals(TxState.COMMITTING, recovered.get("first")); // terminated again by recovery
+		assertEquals(TxState.COMMITTING, recovered.get("second"));
+	}
+
+	private static FileSystemRepository failingRepository(final AtomicBoolean failNextWrite) {
+		return new FileSystemRepository() {
+			@Override
+			LogSegments createSegments(String baseDir, String baseName, long segmentSize) {
+				return new LogSegments(baseDir, baseName, segmentSize) {
+					@Override
+					void writeFrames(FileChannel channel, ByteBuffer[] frames) throws IOException {
+						if (failNextWrite.getAndSet(false)) {
+							ByteBuffer torn = frames[0].duplicate();
+							torn.limit(torn.position() + torn.remaining() / 2);
+							channel.write(torn);
+							throw new IOException("Simulated write failure");
+						}
+						super.writeFrames(channel, frames);
+					}
+				};
+			}
+		};
+	}
+
+	private static int countSegments() {
+		int ret = 0;
+		for (String name : new File(BASE_DIR).list()) {
+			if (name.startsWith(BASE_NAME) && name.endsWith(".log")) ret++;
+		}
+		return ret;
+	}
+
+	private static PendingTransactionRecord record(String id, TxState state) {
+		return new PendingTransactionRecord(id, state, Long.MAX_VALUE, "domain");
+	}
+
+}
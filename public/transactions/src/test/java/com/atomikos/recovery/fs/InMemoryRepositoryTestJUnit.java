@@ -0,0 +1,128 @@
+/**
+ * Copyright (C) 2000-2020 Atomikos <info@atomikos.com>
+ *
+ * LICENSE CONDITIONS
+ *
+ * See http://www.atomikos.com/Main/WhichLicenseApplies for details.
+ */
+
+package com.atomikos.recovery.fs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atomikos.recovery.PendingTransactionRecord;
+import com.atomikos.recovery.TxState;
+
+public class InMemoryRepositoryTestJUnit {
+
+	private InMemoryRepository repository;
+
+	@Before
+	public void setUp() {
+		repository = new InMemoryRepository();
+		repository.init();
+	}
+
+	private void put(String id, TxState state, long expires, String superiorId) {
+		repository.put(id, new PendingTransactionRecord(id, state, expires, "domain", superiorId));
+	}
+
+	@Test
+	public void testCommittingIncludesIndoubtDescendants() {
+		put("root", TxState.COMMITTING, 0, null);
+		put("child", TxState.COMMITTING, 0, "root");
+		put("grandchild", TxState.IN_DOUBT, 0, "child");
+		put("other", TxState.IN_DOUBT, 0, null);
+		assertEquals(ids("root", "child", "grandchild"), ids(repository.findAllCommittingCoordinatorLogEntries()));
+	}
+
+	@Test
+	public void testIndoubtIncludesAllDescendants() {
+		put("root", TxState.IN_DOUBT, 0, null);
+		put("child", TxState.COMMITTING, 0, "root");
+		put("grandchild", TxState.IN_DOUBT, 0, "child");
+		put("other", TxState.COMMITTING, 0, null);
+		assertEquals(ids("root", "child", "grandchild"), ids(repository.findAllIndoubtCoordinatorLogEntries()));
+	}
+
+	@Test
+	public void testIndexesFollowUpdatesAndRemovals() {
+		put("tx", TxState.IN_DOUBT, 10, null);
+		put("tx", TxState.COMMITTING, 20, null);
+		assertEquals(ids(), ids(repository.findAllIndoubtCoordinatorLogEntries()));
+		assertEquals(ids(), ids(repository.findAllExpiredCoordinatorLogEntries(20)));
+		assertEquals(ids("tx"), ids(repository.findAllExpiredCoordinatorLogEntries(21)));
+		put("tx", TxState.TERMINATED, 20, null);
+		assertEquals(ids(), ids(repository.findAllCommittingCoordinatorLogEntries()));
+		assertEquals(ids(), ids(repository.findAllExpiredCoordinatorLogEntries(21)));
+	}
+
+	@Test
+	public void testRemoveIgnoresReplacedRecord() {
+		put("tx", TxState.COMMITTING, 10, null);
+		PendingTransactionRecord old = repository.get("tx");
+		put("tx", TxState.COMMITTING, 30, null);
+		repository.remove(old);
+		assertEquals(ids("tx"), ids(repository.findAllExpiredCoordinatorLogEntries(31)));
+		repository.remove(repository.get("tx"));
+		assertEquals(ids(), ids(repository.findAllCommittingCoordinatorLogEntries()));
+		assertEquals(ids(), ids(repository.findAllExpiredCoordinatorLogEntries(31)));
+	}
+
+	@Test
+	public void testQueriesMatchFullScan() {
+		Random random = new Random(42);
+		TxState[] states = { TxState.COMMITTING, TxState.IN_DOUBT, TxState.ABORTING, TxState.HEUR_MIXED, TxState.TERMINATED };
+		for (int i = 0; i < 2000; i++) {
+			int id = random.nextInt(500);
+			// superiors have lower ids, so there are no cycles
+			String superiorId = id == 0 || random.nextInt(3) == 0 ? null : "tx" + random.nextInt(id);
+			put("tx" + id, states[random.nextInt(states.length)], random.nextInt(100), superiorId);
+		}
+		Collection<PendingTransactionRecord> all = new ArrayList<PendingTransactionRecord>(repository.getAllCoordinatorLogEntries());
+		assertEquals(ids(PendingTransactionRecord.collectLineages((PendingTransactionRecord r) -> r.state == TxState.IN_DOUBT, all)),
+				ids(repository.findAllIndoubtCoordinatorLogEntries()));
+		Set<String> expired = new HashSet<String>();
+		for (PendingTransactionRecord record : all) {
+			if (record.expires < 50) expired.add(record.id);
+		}
+		assertEquals(expired, ids(repository.findAllExpiredCoordinatorLogEntries(50)));
+		Set<String> committing = new HashSet<String>();
+		for (PendingTransactionRecord record : all) {
+			if (record.state == TxState.COMMITTING || (record.state == TxState.IN_DOUBT && hasCommittingAncestor(record))) {
+				committing.add(record.id);
+			}
+		}
+		assertTrue(committing.size() > 0);
+		assertEquals(committing, ids(repository.findAllCommittingCoordinatorLogEntries()));
+	}
+
+	private boolean hasCommittingAncestor(PendingTransactionRecord record) {
+		PendingTransactionRecord superior = record.superiorId == null ? null : repository.get(record.superiorId);
+		return superior != null && (superior.state == TxState.COMMITTING || hasCommittingAncestor(superior));
+	}
+
+	private static Set<String> ids(String... ids) {
+		return new HashSet<String>(Arrays.asList(ids));
+	}
+
+	private static Set<String> ids(Collection<PendingTransactionRecord> records) {
+		Set<String> ret = new HashSet<String>();
+		for (PendingTransactionRecord record : records) {
+			ret.add(record.id);
+		}
+		return ret;
+	}
+
+}
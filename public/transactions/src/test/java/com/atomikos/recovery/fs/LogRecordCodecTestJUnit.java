@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2000-2020 Atomikos <info@atomikos.com>
+ *
+ * LICENSE CONDITIONS
+ *
+ * See http://www.atomikos.com/Main/WhichLicenseApplies for details.
+ */
+
+package com.atomikos.recovery.fs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import com.atomikos.recovery.PendingTransactionRecord;
+import com.atomikos.recovery.TxState;
+
+public class LogRecordCodecTestJUnit {
+
+	private static final PendingTransactionRecord FIRST = new PendingTransactionRecord("first", TxState.IN_DOUBT, 1234567890123L, "domain", "superior");
+	private static final PendingTransactionRecord SECOND = new PendingTransactionRecord("second\u00e9", TxState.COMMITTING, Long.MAX_VALUE, "domain");
+
+	@Test
+	public void testRoundTrip() {
+		Map<String, PendingTransactionRecord> decoded = decode(segment(FIRST, SECOND));
+		assertEquals(2, decoded.size());
+		assertEqual(FIRST, decoded.get(FIRST.id));
+		assertEqual(SECOND, decoded.get(SECOND.id));
+		assertNull(decoded.get(SECOND.id).superiorId);
+	}
+
+	@Test
+	public void testLaterRecordsReplaceEarlierOnes() {
+		Map<String, PendingTransactionRecord> decoded = decode(segment(FIRST, FIRST.markAsTerminated()));
+		assertEquals(TxState.TERMINATED, decoded.get(FIRST.id).state);
+	}
+
+	@Test
+	public void testDecodingStopsAtTornFrame() {
+		byte[] segment = segment(FIRST, SECOND);
+		Map<String, PendingTransactionRecord> decoded = decode(Arrays.copyOf(segment, segment.length - 3));
+		assertEquals(1, decoded.size());
+		assertTrue(decoded.containsKey(FIRST.id));
+	}
+
+	@Test
+	public void testDecodingStopsAtChecksumMismatch() {
+		byte[] segment = segment(FIRST, SECOND);
+		segment[LogRecordCodec.HEADER_SIZE + LogRecordCodec.FRAME_OVERHEAD + 2] ^= 1;
+		assertEquals(0, decode(segment).size());
+	}
+
+	@Test
+	public void testSplitChunksDecodeLikeTheWhole() {
+		byte[] segment = segment(FIRST, SECOND, FIRST.markAsTerminated());
+		List<Integer> boundaries = LogRecordCodec.split(ByteBuffer.wrap(segment), 1);
+		assertEquals(4, boundaries.size());
+		assertEquals(LogRecordCodec.HEADER_SIZE, (int) boundaries.get(0));
+		assertEquals(segment.length, (int) boundaries.get(3));
+		Map<String, PendingTransactionRecord> decoded = new HashMap<String, PendingTransactionRecord>();
+		for (int i = 0; i + 1 < boundaries.size(); i++) {
+			ByteBuffer chunk = ByteBuffer.wrap(segment);
+			chunk.limit(boundaries.get(i + 1));
+			chunk.position(boundaries.get(i));
+			assertEquals(1, LogRecordCodec.decodeFrames(chunk, decoded));
+			assertFalse(chunk.hasRemaining());
+		}
+		assertEquals(TxState.TERMINATED, decoded.get(FIRST.id).state);
+		assertEqual(SECOND, decoded.get(SECOND.id));
+	}
+
+	@Test
+	public void testLegacyTextHasNoHeader() {
+		byte[] legacy = FIRST.toRecord().getBytes();
+		assertFalse(LogRecordCodec.hasHeader(ByteBuffer.wrap(legacy)));
+	}
+
+	@Test
+	public void testVarint() {
+		ByteBuffer buffer = ByteBuffer.allocate(32);
+		for (long value : new long[] { 0, 127, 128, Long.MAX_VALUE, -1 }) {
+			buffer.clear();
+			LogRecordCodec.putVarint(buffer, value);
+			assertEquals(LogRecordCodec.varintLength(value), buffer.position());
+			buffer.flip();
+			assertEquals(value, LogRecordCodec.getVarint(buffer));
+		}
+	}
+
+	private static byte[] segment(PendingTransactionRecord... records) {
+		ByteBuffer ret = ByteBuffer.allocate(1024);
+		ret.put(LogRecordCodec.header());
+		for (PendingTransactionRecord record : records) {
+			ret.put(LogRecordCodec.encode(record));
+		}
+		return Arrays.copyOf(ret.array(), ret.position());
+	}
+
+	private static Map<String, PendingTransactionRecord> decode(byte[] segment) {
+		ByteBuffer buffer = ByteBuffer.wrap(segment);
+		assertTrue(LogRecordCodec.hasHeader(buffer));
+		Map<String, PendingTransactionRecord> ret = new HashMap<String, PendingTransactionRecord>();
+		LogRecordCodec.decode(buffer, ret);
+		return ret;
+	}
+
+	private static void assertEqual(PendingTransactionRecord expected, PendingTransactionRecord actual) {
+		assertEquals(expected.toRecord(), actual.toRecord());
+	}
+
+}
@@ -0,0 +1,104 @@
+/**
+ * Copyright (C) 2000-2020 Atomikos <info@atomikos.com>
+ *
+ * LICENSE CONDITIONS
+ *
+ * See http://www.atomikos.com/Main/WhichLicenseApplies for details.
+ */
+
+package com.atomikos.recovery.fs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.atomikos.recovery.PendingTransactionRecord;
+import com.atomikos.recovery.TxState;
+
+public class LogReplayTestJUnit {
+
+	private static final String BASE_DIR = "." + File.separatorChar;
+	private static final String BASE_NAME = "LogReplayTest";
+	private static final int CHUNK_SIZE = 512;
+
+	@After
+	public void tearDown() throws Exception {
+		for (File file : new File(BASE_DIR).listFiles()) {
+			if (file.getName().startsWith(BASE_NAME)) file.delete();
+		}
+	}
+
+	@Test
+	public void testParallelReplayOfManyChunksMatchesSerialReplay() throws Exception {
+		LogSegments segments = write(16 * 1024, 1000);
+		assertTrue(segments.list().size() > 1);
+		List<LogReplay.SegmentContent> parallel = new LogReplay(segments, 4, CHUNK_SIZE).run();
+		List<LogReplay.SegmentContent> serial = new LogReplay(segments, 1).run();
+		assertEquals(serial.size(), parallel.size());
+		Set<String> ids = new HashSet<String>();
+		int records = 0;
+		for (int i = 0; i < parallel.size(); i++) {
+			assertEquals(serial.get(i).number, parallel.get(i).number);
+			assertEquals(serial.get(i).recordCount, parallel.get(i).recordCount);
+			assertEquals(serial.get(i).records.keySet(), parallel.get(i).records.keySet());
+			if (i > 0) assertTrue(parallel.get(i - 1).number < parallel.get(i).number);
+			ids.addAll(parallel.get(i).records.keySet());
+			records += parallel.get(i).recordCount;
+		}
+		assertEquals(1000, records);
+		assertEquals(ids(0, 1000), ids);
+	}
+
+	@Test
+	public void testCorruptChunkDiscardsTheRecordsAfterIt() throws Exception {
+		LogSegments segments = write(64 * 1024, 500);
+		assertEquals(1, segments.list().size());
+		File file = segments.file(segments.last());
+		byte[] content = Files.readAllBytes(file.toPath());
+		List<Integer> frames = LogRecordCodec.split(ByteBuffer.wrap(content), 1);
+		// a checksum mismatch: the later frames can still be split and decoded by themselves
+		content[frames.get(300) + LogRecordCodec.FRAME_OVERHEAD + 2] ^= 1;
+		Files.write(file.toPath(), content);
+
+		List<LogReplay.SegmentContent> replayed = new LogReplay(segments, 4, CHUNK_SIZE).run();
+		assertEquals(1, replayed.size());
+		assertEquals(300, replayed.get(0).recordCount);
+		assertEquals(ids(0, 300), replayed.get(0).records.keySet());
+	}
+
+	/**
+	 * Writes records "tx0", "tx1", ... in batches of 10, each batch forced.
+	 */
+	private static LogSegments write(long segmentSize, int count) throws Exception {
+		LogSegments segments = new LogSegments(BASE_DIR, BASE_NAME, segmentSize);
+		for (int i = 0; i < count; i += 10) {
+			ByteBuffer[] frames = new ByteBuffer[Math.min(10, count - i)];
+			for (int j = 0; j < frames.length; j++) {
+				String id = "tx" + (i + j);
+				frames[j] = LogRecordCodec.encode(new PendingTransactionRecord(id, TxState.COMMITTING, Long.MAX_VALUE, "domain"));
+			}
+			segments.write(frames, i);
+			segments.force();
+		}
+		segments.close();
+		return segments;
+	}
+
+	private static Set<String> ids(int from, int to) {
+		Set<String> ret = new HashSet<String>();
+		for (int i = from; i < to; i++) {
+			ret.add("tx" + i);
+		}
+		return ret;
+	}
+
+}
@@ -0,0 +1,121 @@
+/**
+ * Copyright (C) 2000-2020 Atomikos <info@atomikos.com>
+ *
+ * LICENSE CONDITIONS
+ *
+ * See http://www.atomikos.com/Main/WhichLicenseApplies for details.
+ */
+
+package com.atomikos.recovery.fs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.atomikos.recovery.PendingTransactionRecord;
+import com.atomikos.recovery.TxState;
+
+public class StripedRepositoryTestJUnit {
+
+	private static final String BASE_DIR = "." + File.separatorChar;
+	private static final String BASE_NAME = "StripedRepositoryTest";
+	private static final long SEGMENT_SIZE = 4096;
+
+	private StripedRepository repository;
+
+	@After
+	public void tearDown() throws Exception {
+		if (repository != null) repository.close();
+		for (File file : new File(BASE_DIR).listFiles()) {
+			if (file.getName().startsWith(BASE_NAME)) file.delete();
+		}
+	}
+
+	private void open(int stripes) throws Exception {
+		if (repository != null) repository.close();
+		repository = new StripedRepository();
+		repository.init(BASE_DIR, BASE_NAME, stripes, SEGMENT_SIZE, 16, 0, 0);
+	}
+
+	private Map<String, PendingTransactionRecord> replay() throws Exception {
+		Map<String, PendingTransactionRecord> ret = new HashMap<String, PendingTransactionRecord>();
+		for (PendingTransactionRecord record : repository.getAllCoordinatorLogEntries()) {
+			ret.put(record.id, record);
+		}
+		return ret;
+	}
+
+	private void putCommitting(int count) throws Exception {
+		for (int i = 0; i < count; i++) {
+			String id = "tx" + i;
+			repository.put(id, new PendingTransactionRecord(id, TxState.COMMITTING, Long.MAX_VALUE, "domain"));
+		}
+	}
+
+	@Test
+	public void testRecordsAreSpreadOverStripesAndMerged() throws Exception {
+		open(4);
+		replay();
+		putCommitting(100);
+		for (int i = 0; i < repository.getStripeCount(); i++) {
+			assertTrue(repository.getStripe(i).getFlushedBatchCount() > 0);
+		}
+		open(4);
+		Map<String, PendingTransactionRecord> replayed = replay();
+		assertEquals(100, replayed.size());
+		assertEquals(TxState.COMMITTING, replayed.get("tx42").state);
+	}
+
+	@Test
+	public void testChangingTheNumberOfStripesKeepsPendingRecords() throws Exception {
+		open(1);
+		replay();
+		putCommitting(50);
+		repository.put("tx7", new PendingTransactionRecord("tx7", TxState.TERMINATED, Long.MAX_VALUE, "domain"));
+		open(3);
+		assertEquals(49, pending(replay()));
+		assertFalse(new File(BASE_DIR, BASE_NAME + "0.log").exists());
+		open(2);
+		assertEquals(49, pending(replay()));
+		open(1);
+		Map<String, PendingTransactionRecord> replayed = replay();
+		assertEquals(49, pending(replayed));
+		assertFalse(replayed.containsKey("tx7"));
+	}
+
+	@Test
+	public void testCheckpointCompactsEachStripe() throws Exception {
+		open(2);
+		replay();
+		putCommitting(200);
+		for (int i = 0; i < 200; i++) {
+			String id = "tx" + i;
+			repository.put(id, new PendingTransactionRecord(id, TxState.TERMINATED, Long.MAX_VALUE, "domain"));
+		}
+		repository.startCheckpoint();
+		repository.writeCheckpoint(Collections.<PendingTransactionRecord>emptyList());
+		open(2);
+		assertEquals(0, pending(replay()));
+		for (int i = 0; i < 2; i++) {
+			String stripe = StripedRepository.stripeName(BASE_NAME, i, 2);
+			assertEquals(1, new LogSegments(BASE_DIR, stripe, SEGMENT_SIZE).list().size());
+		}
+	}
+
+	private static int pending(Map<String, PendingTransactionRecord> records) {
+		int ret = 0;
+		for (PendingTransactionRecord record : records.values()) {
+			if (!record.state.isFinalState()) ret++;
+		}
+		return ret;
+	}
+
+}
@@ -8,8 +8,13 @@
 
 package com.atomikos.publish;
 
-import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
 
 import com.atomikos.icatch.event.Event;
 import com.atomikos.icatch.event.EventListener;
@@ -17,27 +22,66 @@ import com.atomikos.icatch.event.transaction.ParticipantHeuristicEvent;
 import com.atomikos.icatch.event.transaction.TransactionHeuristicEvent;
 import com.atomikos.logging.Logger;
 import com.atomikos.logging.LoggerFactory;
+import com.atomikos.thread.InterruptedExceptionHelper;
+import com.atomikos.thread.TaskManager;
 
+/**
+ * Publishes events to all registered listeners. By default, listeners are
+ * notified in the publishing thread. If configured with a queue capacity then
+ * events are queued in a bounded ring buffer instead, and a single dispatcher
+ * thread notifies the listeners - so slow listeners don't slow down transactions.
+ */
 public enum EventPublisher {
 	INSTANCE;
-	
+
+	/**
+	 * What to do when publishing to a full queue.
+	 */
+	public static enum OverflowPolicy {
+		/** Wait in the publishing thread until there is room. */
+		BLOCK,
+		/** Discard the oldest queued event to make room. */
+		DROP_OLDEST,
+		/** Discard new events, except one in every SAMPLE_RATE that replaces the oldest queued event. */
+		SAMPLE;
+
+		public static OverflowPolicy parse(String value) {
+			return OverflowPolicy.valueOf(value.trim().toUpperCase());
+		}
+	}
+
+	static final int SAMPLE_RATE = 16;
+	private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+	private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+	private static final long STOP_TIMEOUT_MILLIS = 1000;
+
 	private static Logger LOGGER = LoggerFactory.createLogger(EventPublisher.class);
-	
-	private Set<EventListener> listeners = new HashSet<>();
-	
-	private boolean alreadyWarned = false;
-	
+
+	private final Set<EventListener> listeners = new CopyOnWriteArraySet<>();
+
+	private volatile boolean alreadyWarned = false;
+
+	// null if listeners are notified synchronously
+	private volatile Dispatcher dispatcher;
+
+	private final LongAdder queuedCount = new LongAdder();
+	private final LongAdder droppedCount = new LongAdder();
+	private final AtomicLong overflowCount = new AtomicLong();
+
 	private EventPublisher(){}
 
 	public void publish(Event event) {
 		if (event != null) {
-			notifyAllListeners(event);
+			Dispatcher d = dispatcher;
+			if (d == null || !d.enqueue(event)) {
+				notifyAllListeners(event);
+			}
 		}
 	}
 
 	private void notifyAllListeners(Event event) {
-	    warnIfNoListeners(event);				
-		for (EventListener listener : listeners) {				
+	    warnIfNoListeners(event);
+		for (EventListener listener : listeners) {
 			try {
 				listener.eventOccurred(event);
 			} catch (Exception e) {
@@ -64,7 +108,7 @@ public enum EventPublisher {
 
     /**
 	 * For internal use only - listeners should register via the ServiceLoader mechanism.
-	 * 
+	 *
 	 * @param listener
 	 */
 	public void registerEventListener(EventListener listener) {
@@ -72,4 +116,176 @@ public enum EventPublisher {
 		listeners.add(listener);
 	}
 
-}
\ No newline at end of file
+	/**
+	 * For testing only.
+	 *
+	 * @param listener
+	 */
+	void unregisterEventListener(EventListener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Switches between synchronous and asynchronous notification.
+	 * Any events still queued are delivered first.
+	 *
+	 * @param queueCapacity The maximum number of queued events, or 0 to notify listeners synchronously.
+	 * @param overflowPolicy What to do if the queue is full.
+	 */
+	public synchronized void configure(int queueCapacity, OverflowPolicy overflowPolicy) {
+		stopDispatcher();
+		if (queueCapacity > 0) {
+			Dispatcher d = new Dispatcher(queueCapacity, overflowPolicy);
+			d.thread.start();
+			dispatcher = d;
+			LOGGER.logInfo("Publishing events asynchronously, with queue capacity " + d.buffer.capacity() + " and overflow policy " + overflowPolicy);
+		}
+	}
+
+	/**
+	 * Delivers any queued events and reverts to synchronous notification.
+	 */
+	public synchronized void shutdown() {
+		stopDispatcher();
+	}
+
+	private void stopDispatcher() {
+		Dispatcher d = dispatcher;
+		if (d != null) {
+			dispatcher = null;
+			d.stop();
+		}
+	}
+
+	/**
+	 * @return The total number of events that were queued for asynchronous notification.
+	 */
+	public long getQueuedEventCount() {
+		return queuedCount.sum();
+	}
+
+	/**
+	 * @return The total number of events that were discarded because the queue was full.
+	 */
+	public long getDroppedEventCount() {
+		return droppedCount.sum();
+	}
+
+	/**
+	 * @return The number of events currently waiting to be dispatched.
+	 */
+	public int getPendingEventCount() {
+		Dispatcher d = dispatcher;
+		return d == null ? 0 : d.buffer.size();
+	}
+
+	private final class Dispatcher implements Runnable {
+
+		private final EventRingBuffer<Event> buffer;
+		private final OverflowPolicy overflowPolicy;
+		private final Thread thread;
+		private volatile boolean running = true;
+		private volatile boolean parked;
+		// publishers between their running check and their offer
+		private final AtomicInteger publishing = new AtomicInteger();
+
+		Dispatcher(int capacity, OverflowPolicy overflowPolicy) {
+			this.buffer = new EventRingBuffer<Event>(capacity);
+			this.overflowPolicy = overflowPolicy;
+			this.thread = TaskManager.SINGLETON.newThread(this, "Atomikos:EventDispatcher", true);
+		}
+
+		/**
+		 * @return False if the event should be delivered by the caller instead.
+		 */
+		boolean enqueue(Event event) {
+			if (Thread.currentThread() == thread) {
+				return false; // a listener publishing: don't risk waiting for ourselves
+			}
+			// announced BEFORE the running check, so the final drain waits for us
+			publishing.incrementAndGet();
+			try {
+				if (!running) return false;
+				if (!buffer.offer(event)) {
+					switch (overflowPolicy) {
+					case BLOCK:
+						while (!buffer.offer(event)) {
+							if (!running) return false;
+							wakeUp();
+							LockSupport.parkNanos(this, FULL_PARK_NANOS);
+						}
+						break;
+					case SAMPLE:
+						if (overflowCount.getAndIncrement() % SAMPLE_RATE != 0) {
+							droppedCount.increment();
+							return true;
+						}
+						replaceOldest(event); // keep this one instead of the oldest
+						break;
+					case DROP_OLDEST:
+						replaceOldest(event);
+						break;
+					}
+				}
+			} finally {
+				publishing.decrementAndGet();
+			}
+			queuedCount.increment();
+			wakeUp();
+			return true;
+		}
+
+		private void replaceOldest(Event event) {
+			do {
+				if (buffer.poll() != null) droppedCount.increment();
+			} while (!buffer.offer(event));
+		}
+
+		private void wakeUp() {
+			if (parked) LockSupport.unpark(thread);
+		}
+
+		@Override
+		public void run() {
+			while (running) {
+				Event event = buffer.poll();
+				if (event != null) {
+					notifyAllListeners(event);
+				} else {
+					parked = true;
+					// re-check after setting parked, or we might miss a wake-up
+					if (running && buffer.isEmpty()) LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+					parked = false;
+				}
+			}
+			// deliver the remaining events, including those of late publishers:
+			// any publisher that did not see running == false has announced itself by now
+			while (publishing.get() > 0) {
+				Thread.yield();
+			}
+			Event event;
+			while ((event = buffer.poll()) != null || !buffer.isEmpty()) {
+				if (event != null) notifyAllListeners(event);
+			}
+		}
+
+		/**
+		 * Lets the dispatcher deliver the remaining events and waits for it to end.
+		 * If a listener takes too long then the dispatcher finishes on its own:
+		 * listeners are never notified from two threads at once.
+		 */
+		void stop() {
+			running = false;
+			LockSupport.unpark(thread);
+			try {
+				thread.join(STOP_TIMEOUT_MILLIS);
+			} catch (InterruptedException e) {
+				InterruptedExceptionHelper.handleInterruptedException(e);
+			}
+			if (thread.isAlive()) {
+				LOGGER.logWarning("Event dispatcher is still busy - it will deliver the remaining " + buffer.size() + " event(s) in the background");
+			}
+		}
+	}
+
+}
@@ -0,0 +1,111 @@
+/**
+ * Copyright (C) 2000-2020 Atomikos <info@atomikos.com>
+ *
+ * LICENSE CONDITIONS
+ *
+ * See http://www.atomikos.com/Main/WhichLicenseApplies for details.
+ */
+
+package com.atomikos.publish;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bounded lock-free queue of events (after Dmitry Vyukov's bounded queue).
+ * Each slot has a sequence number that tells producers and consumers whose
+ * turn it is, so neither side ever blocks the other. Consumers are normally
+ * just the dispatcher thread, but producers may also poll to make room
+ * (drop oldest).
+ */
+
+final class EventRingBuffer<T> {
+
+	private final Object[] slots;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final AtomicLong enqueuePosition = new AtomicLong();
+	private final AtomicLong dequeuePosition = new AtomicLong();
+
+	/**
+	 * @param capacity Rounded up to the next power of two.
+	 */
+	EventRingBuffer(int capacity) {
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		slots = new Object[size];
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			sequences.set(i, i);
+		}
+		mask = size - 1;
+	}
+
+	/**
+	 * @return False if full.
+	 */
+	boolean offer(T element) {
+		long position = enqueuePosition.get();
+		int index;
+		for (;;) {
+			index = (int) (position & mask);
+			long diff = sequences.get(index) - position;
+			if (diff == 0) {
+				if (enqueuePosition.compareAndSet(position, position + 1)) {
+					break;
+				}
+				position = enqueuePosition.get();
+			} else if (diff < 0) {
+				return false;
+			} else {
+				position = enqueuePosition.get();
+			}
+		}
+		slots[index] = element;
+		sequences.set(index, position + 1); // publishes the element
+		return true;
+	}
+
+	/**
+	 * @return The oldest element, or null if none is available yet.
+	 */
+	@SuppressWarnings("unchecked")
+	T poll() {
+		long position = dequeuePosition.get();
+		int index;
+		for (;;) {
+			index = (int) (position & mask);
+			long diff = sequences.get(index) - (position + 1);
+			if (diff == 0) {
+				if (dequeuePosition.compareAndSet(position, position + 1)) {
+					break;
+				}
+				position = dequeuePosition.get();
+			} else if (diff < 0) {
+				return null;
+			} else {
+				position = dequeuePosition.get();
+			}
+		}
+		T ret = (T) slots[index];
+		slots[index] = null;
+		sequences.set(index, position + mask + 1); // frees the slot for the next round
+		return ret;
+	}
+
+	/**
+	 * @return The approximate number of queued elements.
+	 */
+	int size() {
+		long size = enqueuePosition.get() - dequeuePosition.get();
+		return (int) Math.max(0, Math.min(size, slots.length));
+	}
+
+	boolean isEmpty() {
+		return size() == 0;
+	}
+
+	int capacity() {
+		return slots.length;
+	}
+
+}
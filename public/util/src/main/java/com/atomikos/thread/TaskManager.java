@@ -8,36 +8,175 @@
 
 package com.atomikos.thread;
 
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
 import com.atomikos.logging.Logger;
 import com.atomikos.logging.LoggerFactory;
 
 /**
  * Scheduling logic for tasks/threads.
+ * <p>
+ * Tasks run on a bounded pool: threads are added up to the core size, then tasks are
+ * queued (if a queue capacity is set), then threads are added up to the max size.
+ * Beyond that, the rejection policy applies - by default the calling thread runs the
+ * task itself, which slows down producers instead of exhausting memory.
+ * Tasks are expected to terminate: recurring work belongs on the
+ * {@link com.atomikos.timing.TimingService}.
+ * <p>
+ * On JDK 21 or later, threads can optionally be virtual threads: blocking calls
+ * (like XA prepare or commit) then no longer tie up a platform thread.
+ * This is detected at runtime, so the same jar still works on JDK 8.
  */
 
 public enum TaskManager {
 	SINGLETON;
-	
+
 	private static final Logger LOGGER = LoggerFactory.createLogger(TaskManager.class);
-	
-	private ThreadPoolExecutor executor;
-	
 
-	private void init() {
-		SynchronousQueue<Runnable> synchronousQueue = new SynchronousQueue<Runnable>();
-		executor = new ThreadPoolExecutor(0, Integer.MAX_VALUE, new Long(60L),
-				TimeUnit.SECONDS, synchronousQueue, new AtomikosThreadFactory());
+	public static final int DEFAULT_CORE_POOL_SIZE = 0;
+	public static final int DEFAULT_MAX_POOL_SIZE = 256;
+	public static final int DEFAULT_QUEUE_CAPACITY = 0;
+	private static final long KEEP_ALIVE_SECONDS = 60L;
+
+	/**
+	 * What to do with tasks that find all threads busy and the queue full.
+	 */
+	public static enum RejectionPolicy {
+		/** Run the task in the submitting thread. */
+		CALLER_RUNS,
+		/** Throw a RejectedExecutionException to the submitter. */
+		ABORT,
+		/** Drop the task, with a warning. */
+		DISCARD;
+
+		public static RejectionPolicy parse(String value) {
+			return RejectionPolicy.valueOf(value.trim().toUpperCase());
+		}
+	}
+
+	private volatile ThreadPoolExecutor executor;
+
+	private int corePoolSize = DEFAULT_CORE_POOL_SIZE;
+	private int maxPoolSize = DEFAULT_MAX_POOL_SIZE;
+	private int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+	private volatile RejectionPolicy rejectionPolicy = RejectionPolicy.CALLER_RUNS;
+	private volatile boolean virtualThreads;
+
+	private final LongAdder rejectedCount = new LongAdder();
+	private final LongAdder completedCount = new LongAdder();
+	private final LongAdder totalLatencyNanos = new LongAdder();
+
+	private synchronized ThreadPoolExecutor init() {
+		if (executor == null) {
+			// happens on restart of TS within same VM
+			BlockingQueue<Runnable> queue;
+			if (queueCapacity > 0) {
+				queue = new ArrayBlockingQueue<Runnable>(queueCapacity);
+			} else {
+				queue = new SynchronousQueue<Runnable>();
+			}
+			ThreadPoolExecutor pool = new ThreadPoolExecutor(corePoolSize, maxPoolSize, KEEP_ALIVE_SECONDS,
+					TimeUnit.SECONDS, queue, createThreadFactory(), new ThreadPoolExecutor.AbortPolicy());
+			pool.allowCoreThreadTimeOut(true);
+			executor = pool;
+		}
+		return executor;
+	}
+
+	/**
+	 * Sets the limits of the pool. The queue capacity is applied on the next (re)start,
+	 * the other values right away.
+	 *
+	 * @param corePoolSize The number of threads to create before queueing tasks.
+	 * @param maxPoolSize The hard upper limit on the number of threads.
+	 * @param queueCapacity The number of tasks that can wait for a thread, 0 for direct hand-off.
+	 * @param rejectionPolicy What to do when all threads are busy and the queue is full.
+	 */
+	public synchronized void configure(int corePoolSize, int maxPoolSize, int queueCapacity, RejectionPolicy rejectionPolicy) {
+		if (maxPoolSize <= 0 || corePoolSize < 0 || corePoolSize > maxPoolSize || queueCapacity < 0) {
+			throw new IllegalArgumentException("Invalid thread pool limits: core=" + corePoolSize +
+					", max=" + maxPoolSize + ", queue=" + queueCapacity);
+		}
+		if (rejectionPolicy == null) throw new IllegalArgumentException("Rejection policy should not be null");
+		this.corePoolSize = corePoolSize;
+		this.maxPoolSize = maxPoolSize;
+		this.queueCapacity = queueCapacity;
+		this.rejectionPolicy = rejectionPolicy;
+		if (executor != null) {
+			// order matters: core can never exceed max
+			if (maxPoolSize >= executor.getCorePoolSize()) {
+				executor.setMaximumPoolSize(maxPoolSize);
+				executor.setCorePoolSize(corePoolSize);
+			} else {
+				executor.setCorePoolSize(corePoolSize);
+				executor.setMaximumPoolSize(maxPoolSize);
+			}
+		}
+	}
 
+	private ThreadFactory createThreadFactory() {
+		ThreadFactory ret;
+		if (virtualThreads) {
+			ret = VirtualThreads.newThreadFactory("Atomikos:virtual:");
+		} else {
+			ret = new AtomikosThreadFactory();
+		}
+		return ret;
+	}
+
+	/**
+	 * Switches between platform and virtual threads, for threads created from now on.
+	 * Virtual threads are ignored (with a warning) if the JVM does not support them.
+	 *
+	 * @param virtualThreads
+	 */
+	public synchronized void setVirtualThreads(boolean virtualThreads) {
+		if (virtualThreads && !VirtualThreads.isSupported()) {
+			LOGGER.logWarning("Virtual threads are not supported by this JVM - using platform threads instead");
+			virtualThreads = false;
+		}
+		if (this.virtualThreads != virtualThreads) {
+			this.virtualThreads = virtualThreads;
+			if (executor != null) executor.setThreadFactory(createThreadFactory());
+		}
+	}
+
+	public boolean isVirtualThreads() {
+		return virtualThreads;
+	}
+
+	/**
+	 * Creates (but does not start) a dedicated thread for long-running work that does not
+	 * belong in the pool. This is a virtual thread if enabled, otherwise a platform thread.
+	 *
+	 * @param task
+	 * @param name
+	 * @param daemon Only relevant for platform threads: virtual threads are always daemons.
+	 * @return The new thread.
+	 */
+	public Thread newThread(Runnable task, String name, boolean daemon) {
+		Thread ret;
+		if (virtualThreads) {
+			ret = VirtualThreads.newThread(task, name);
+		} else {
+			ret = new Thread(task, name);
+			ret.setDaemon(daemon);
+		}
+		return ret;
 	}
 
 	/**
 	 * Notification of shutdown to close all pooled threads.
-	 * 
+	 *
 	 */
 	public synchronized void shutdown() {
 		if (executor != null) {
@@ -47,16 +186,177 @@ public enum TaskManager {
 	}
 
 	/**
-	 * Schedules a task for execution by a thread.
-	 * 
+	 * Schedules a task for execution by a thread. If the pool is saturated then
+	 * the configured rejection policy applies.
+	 *
 	 * @param task
+	 * @throws RejectedExecutionException If saturated and the policy is to abort.
 	 */
 	public void executeTask(Runnable task) {
-		if (executor == null) {
-			// happens on restart of TS within same VM
-			init();
+		if (!tryExecuteTask(task)) {
+			switch (rejectionPolicy) {
+			case CALLER_RUNS:
+				task.run();
+				break;
+			case DISCARD:
+				LOGGER.logWarning("Thread pool saturated - discarding task: " + task);
+				break;
+			default:
+				throw new RejectedExecutionException("Thread pool saturated - rejecting task: " + task);
+			}
+		}
+	}
+
+	/**
+	 * Schedules a task for execution by a pooled thread, unless the pool is saturated.
+	 * Useful for callers that must not block, and can try again later.
+	 *
+	 * @param task
+	 * @return False if the task was not accepted (and not executed).
+	 */
+	public boolean tryExecuteTask(Runnable task) {
+		boolean ret = true;
+		ThreadPoolExecutor pool = executor;
+		if (pool == null) pool = init();
+		try {
+			pool.execute(new MeasuredTask(task));
+		} catch (RejectedExecutionException saturatedOrShutdown) {
+			if (pool.isShutdown()) {
+				// concurrent shutdown: the next submission will restart
+				pool = init();
+				return tryExecuteTask(task);
+			}
+			rejectedCount.increment();
+			if (LOGGER.isTraceEnabled()) LOGGER.logTrace("Thread pool saturated - task rejected: " + task);
+			ret = false;
+		}
+		return ret;
+	}
+
+	/**
+	 * @return The approximate number of threads currently executing tasks.
+	 */
+	public int getActiveThreadCount() {
+		ThreadPoolExecutor pool = executor;
+		return pool == null ? 0 : pool.getActiveCount();
+	}
+
+	/**
+	 * @return The current number of threads in the pool, busy or idle.
+	 */
+	public int getPoolSize() {
+		ThreadPoolExecutor pool = executor;
+		return pool == null ? 0 : pool.getPoolSize();
+	}
+
+	/**
+	 * @return The number of tasks waiting for a thread.
+	 */
+	public int getQueueDepth() {
+		ThreadPoolExecutor pool = executor;
+		return pool == null ? 0 : pool.getQueue().size();
+	}
+
+	/**
+	 * @return The number of tasks that found the pool saturated, since startup of the VM.
+	 */
+	public long getRejectedTaskCount() {
+		return rejectedCount.sum();
+	}
+
+	/**
+	 * @return The number of pooled tasks that have finished, since startup of the VM.
+	 */
+	public long getCompletedTaskCount() {
+		return completedCount.sum();
+	}
+
+	/**
+	 * @return The mean time between submission and completion of pooled tasks,
+	 * including time spent in the queue.
+	 */
+	public long getAverageTaskLatencyMicros() {
+		long count = completedCount.sum();
+		return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMicros(totalLatencyNanos.sum() / count);
+	}
+
+	private class MeasuredTask implements Runnable {
+
+		private final Runnable task;
+		private final long submitted;
+
+		MeasuredTask(Runnable task) {
+			this.task = task;
+			this.submitted = System.nanoTime();
+		}
+
+		@Override
+		public void run() {
+			try {
+				task.run();
+			} finally {
+				totalLatencyNanos.add(System.nanoTime() - submitted);
+				completedCount.increment();
+			}
+		}
+
+		@Override
+		public String toString() {
+			return task.toString();
+		}
+	}
+
+	/**
+	 * Access to the JDK 21 virtual thread builder, via reflection so we still compile and run on JDK 8.
+	 */
+	private static final class VirtualThreads {
+
+		private static final Method OF_VIRTUAL;
+		private static final Method NAME;
+		private static final Method NAME_WITH_COUNTER;
+		private static final Method FACTORY;
+		private static final Method UNSTARTED;
+
+		static {
+			Method ofVirtual = null, name = null, nameWithCounter = null, factory = null, unstarted = null;
+			try {
+				ofVirtual = Thread.class.getMethod("ofVirtual");
+				Class<?> builder = Class.forName("java.lang.Thread$Builder");
+				name = builder.getMethod("name", String.class);
+				nameWithCounter = builder.getMethod("name", String.class, long.class);
+				factory = builder.getMethod("factory");
+				unstarted = builder.getMethod("unstarted", Runnable.class);
+			} catch (Exception beforeJdk21) {
+				ofVirtual = null;
+			}
+			OF_VIRTUAL = ofVirtual;
+			NAME = name;
+			NAME_WITH_COUNTER = nameWithCounter;
+			FACTORY = factory;
+			UNSTARTED = unstarted;
+		}
+
+		static boolean isSupported() {
+			return OF_VIRTUAL != null;
+		}
+
+		static ThreadFactory newThreadFactory(String namePrefix) {
+			try {
+				Object builder = NAME_WITH_COUNTER.invoke(OF_VIRTUAL.invoke(null), namePrefix, 1L);
+				return (ThreadFactory) FACTORY.invoke(builder);
+			} catch (Exception e) {
+				throw new IllegalStateException("Failed to create virtual thread factory", e);
+			}
+		}
+
+		static Thread newThread(Runnable task, String name) {
+			try {
+				Object builder = NAME.invoke(OF_VIRTUAL.invoke(null), name);
+				return (Thread) UNSTARTED.invoke(builder, task);
+			} catch (Exception e) {
+				throw new IllegalStateException("Failed to create virtual thread", e);
+			}
 		}
-		executor.execute(task);
 	}
 
 	private static class AtomikosThreadFactory implements
@@ -0,0 +1,140 @@
+/**
+ * Copyright (C) 2000-2020 Atomikos <info@atomikos.com>
+ *
+ * LICENSE CONDITIONS
+ *
+ * See http://www.atomikos.com/Main/WhichLicenseApplies for details.
+ */
+
+package com.atomikos.timing;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Shared timeout service: all timers created here are served by one
+ * timing wheel (and hence one thread) instead of one thread per timer.
+ */
+
+public enum TimingService {
+	SINGLETON;
+
+	public static final long DEFAULT_PRECISION_MILLIS = 50;
+
+	private long precision = DEFAULT_PRECISION_MILLIS;
+
+	private volatile TimingWheel wheel;
+	// set by shutdown: no wheel is created again until the next start
+	private volatile boolean stopped;
+
+	// recurring timers, to re-arm on restart if they outlive a shutdown
+	private final Set<TimingWheelAlarmTimer> alarmTimers = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Sets the tick interval of the timing wheel. Takes effect on the next (re)start
+	 * of the service.
+	 *
+	 * @param millis
+	 */
+	public synchronized void setPrecision(long millis) {
+		if (millis <= 0) throw new IllegalArgumentException("Precision must be positive: " + millis);
+		precision = millis;
+	}
+
+	public synchronized long getPrecision() {
+		return precision;
+	}
+
+	/**
+	 * @return The wheel, or null if the service was shut down.
+	 */
+	private TimingWheel getWheel() {
+		TimingWheel ret = wheel;
+		if (ret == null) {
+			synchronized (this) {
+				// happens on restart of TS within same VM
+				if (wheel == null && !stopped) {
+					wheel = new TimingWheel(precision);
+					for (TimingWheelAlarmTimer timer : alarmTimers) {
+						timer.rearm();
+					}
+				}
+				ret = wheel;
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Schedules a one-off task.
+	 *
+	 * @param task Should not block, since it runs on the shared timer thread.
+	 * @param delayMillis
+	 * @return The handle to cancel with.
+	 * @throws IllegalStateException If the service was shut down.
+	 */
+	public TimingWheel.Timeout schedule(Runnable task, long delayMillis) {
+		while (true) {
+			TimingWheel current = getWheel();
+			if (current == null) throw new IllegalStateException("Timing service is shut down");
+			try {
+				return current.schedule(task, delayMillis);
+			} catch (IllegalStateException stoppedConcurrently) {
+				if (current.isRunning()) throw stoppedConcurrently;
+			}
+		}
+	}
+
+	/**
+	 * Creates and starts a recurring alarm timer.
+	 *
+	 * @param timeout The interval between alarms.
+	 * @param listener The listener to notify, on a pooled thread.
+	 * @return The timer, to be stopped by the caller when no longer needed.
+	 */
+	public AlarmTimer startAlarmTimer(long timeout, AlarmTimerListener listener) {
+		TimingWheelAlarmTimer ret = new TimingWheelAlarmTimer(timeout);
+		ret.addAlarmTimerListener(listener);
+		alarmTimers.add(ret);
+		start(); // a new timer is a new user, even after shutdown
+		ret.start();
+		return ret;
+	}
+
+	/**
+	 * (Re)starts the service after a shutdown, resuming any suspended alarm timers.
+	 */
+	public synchronized void start() {
+		stopped = false;
+		if (!alarmTimers.isEmpty()) {
+			getWheel();
+		}
+	}
+
+	void alarmTimerStopped(TimingWheelAlarmTimer timer) {
+		alarmTimers.remove(timer);
+	}
+
+	/**
+	 * Notification of shutdown to stop the timer thread. Pending one-off timeouts
+	 * are discarded. Alarm timers that are still active (like those of connection pools,
+	 * which can outlive the transaction service) are suspended: they are re-armed
+	 * on the next start. Until then, nothing is scheduled - not even by alarms that
+	 * were still running.
+	 */
+	public synchronized void shutdown() {
+		stopped = true;
+		if (wheel != null) {
+			wheel.stop();
+			wheel = null;
+		}
+	}
+
+	/**
+	 * @return The number of timeouts currently waiting to expire.
+	 */
+	public int getPendingCount() {
+		TimingWheel current = wheel;
+		return current == null ? 0 : current.getPendingCount();
+	}
+}
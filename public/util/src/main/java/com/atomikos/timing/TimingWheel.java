@@ -0,0 +1,289 @@
+/**
+ * Copyright (C) 2000-2020 Atomikos <info@atomikos.com>
+ *
+ * LICENSE CONDITIONS
+ *
+ * See http://www.atomikos.com/Main/WhichLicenseApplies for details.
+ */
+
+package com.atomikos.timing;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.atomikos.logging.Logger;
+import com.atomikos.logging.LoggerFactory;
+
+/**
+ * A hashed timing wheel: one worker thread serves any number of timeouts,
+ * with O(1) cost to schedule or cancel each of them.
+ * <p>
+ * Timeouts are hashed into a fixed number of buckets by their expiry tick;
+ * timeouts that are more than one wheel revolution away keep a count of
+ * remaining rounds instead of needing a coarser overflow wheel.
+ * The precision is the tick interval: a timeout never fires early,
+ * and at most one tick late.
+ * <p>
+ * Expired tasks are run on the worker thread, so they should be short
+ * and must not block - long work should be handed off to another thread.
+ */
+
+public final class TimingWheel {
+
+	private static final Logger LOGGER = LoggerFactory.createLogger(TimingWheel.class);
+
+	private static final int DEFAULT_WHEEL_SIZE = 512;
+
+	private final long tickNanos;
+	private final Bucket[] wheel;
+	private final int mask;
+	private final Queue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<Timeout>();
+	private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+	private final AtomicInteger pendingCount = new AtomicInteger();
+	private final Thread worker;
+	private final long startTime;
+	private volatile boolean running = true;
+	private long tick;
+
+	public TimingWheel(long tickMillis) {
+		this(tickMillis, DEFAULT_WHEEL_SIZE);
+	}
+
+	/**
+	 * @param tickMillis The precision of the wheel.
+	 * @param wheelSize The number of buckets, rounded up to a power of two.
+	 */
+	public TimingWheel(long tickMillis, int wheelSize) {
+		if (tickMillis <= 0) throw new IllegalArgumentException("Tick interval must be positive: " + tickMillis);
+		if (wheelSize <= 0) throw new IllegalArgumentException("Wheel size must be positive: " + wheelSize);
+		this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		int size = Integer.highestOneBit(wheelSize);
+		if (size < wheelSize) size = size << 1;
+		this.wheel = new Bucket[size];
+		for (int i = 0; i < size; i++) {
+			wheel[i] = new Bucket();
+		}
+		this.mask = size - 1;
+		this.startTime = System.nanoTime();
+		this.worker = new Thread(new Worker(), "Atomikos:TimingWheel");
+		this.worker.setDaemon(true);
+		this.worker.start();
+	}
+
+	/**
+	 * Schedules a task for execution (on the worker thread) after the given delay.
+	 *
+	 * @param task
+	 * @param delayMillis
+	 * @return The handle to cancel the timeout with.
+	 * @throws IllegalStateException If the wheel was stopped.
+	 */
+	public Timeout schedule(Runnable task, long delayMillis) {
+		if (!running) throw new IllegalStateException("Timing wheel was stopped");
+		long deadline = System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(Math.max(0, delayMillis));
+		Timeout ret = new Timeout(this, task, deadline);
+		pendingCount.incrementAndGet();
+		pendingTimeouts.add(ret);
+		return ret;
+	}
+
+	/**
+	 * Stops the worker thread. Pending timeouts are discarded without running them.
+	 */
+	public void stop() {
+		running = false;
+		worker.interrupt();
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * @return The number of timeouts that were scheduled but not yet expired or cancelled.
+	 */
+	public int getPendingCount() {
+		return pendingCount.get();
+	}
+
+	private void transferPendingTimeouts() {
+		Timeout timeout = pendingTimeouts.poll();
+		while (timeout != null) {
+			if (!timeout.isCancelled()) {
+				long expiryTick = timeout.deadline / tickNanos;
+				timeout.remainingRounds = (expiryTick - tick) / wheel.length;
+				// expired already: put in the current bucket so it fires on this tick
+				long ticks = Math.max(expiryTick, tick);
+				wheel[(int) (ticks & mask)].add(timeout);
+			}
+			timeout = pendingTimeouts.poll();
+		}
+	}
+
+	private void removeCancelledTimeouts() {
+		Timeout timeout = cancelledTimeouts.poll();
+		while (timeout != null) {
+			if (timeout.bucket != null) {
+				timeout.bucket.remove(timeout);
+			}
+			timeout = cancelledTimeouts.poll();
+		}
+	}
+
+	private void expire(Bucket bucket, long deadline) {
+		Timeout timeout = bucket.head;
+		while (timeout != null) {
+			Timeout next = timeout.next;
+			if (timeout.remainingRounds <= 0) {
+				bucket.remove(timeout);
+				if (timeout.deadline <= deadline) {
+					timeout.expire();
+				} else {
+					// can only happen with a bad nanoTime clock - should not fire early
+					timeout.remainingRounds = 0;
+					pendingTimeouts.add(timeout);
+				}
+			} else if (timeout.isCancelled()) {
+				bucket.remove(timeout);
+			} else {
+				timeout.remainingRounds--;
+			}
+			timeout = next;
+		}
+	}
+
+	private long waitForNextTick() throws InterruptedException {
+		long deadline = tickNanos * (tick + 1);
+		long now = System.nanoTime() - startTime;
+		while (now < deadline) {
+			long sleepMillis = TimeUnit.NANOSECONDS.toMillis(deadline - now + 999999);
+			Thread.sleep(sleepMillis);
+			now = System.nanoTime() - startTime;
+		}
+		return now;
+	}
+
+	private class Worker implements Runnable {
+
+		@Override
+		public void run() {
+			while (running) {
+				try {
+					long now = waitForNextTick();
+					removeCancelledTimeouts();
+					transferPendingTimeouts();
+					expire(wheel[(int) (tick & mask)], now);
+					tick++;
+				} catch (InterruptedException e) {
+					// stop was called - running flag tells us what to do
+				} catch (Throwable e) {
+					LOGGER.logWarning("Unexpected error in timing wheel", e);
+				}
+			}
+			pendingTimeouts.clear();
+			cancelledTimeouts.clear();
+		}
+	}
+
+	/**
+	 * A doubly linked list of timeouts, only accessed by the worker thread.
+	 */
+	private static final class Bucket {
+		private Timeout head;
+		private Timeout tail;
+
+		void add(Timeout timeout) {
+			timeout.bucket = this;
+			if (head == null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+
+		void remove(Timeout timeout) {
+			if (timeout.prev != null) {
+				timeout.prev.next = timeout.next;
+			} else {
+				head = timeout.next;
+			}
+			if (timeout.next != null) {
+				timeout.next.prev = timeout.prev;
+			} else {
+				tail = timeout.prev;
+			}
+			timeout.prev = null;
+			timeout.next = null;
+			timeout.bucket = null;
+		}
+	}
+
+	/**
+	 * A handle to a scheduled task.
+	 */
+	public static final class Timeout {
+
+		private static final int SCHEDULED = 0, CANCELLED = 1, EXPIRED = 2;
+
+		private final TimingWheel wheel;
+		private final Runnable task;
+		private final long deadline;
+		private final AtomicInteger state = new AtomicInteger(SCHEDULED);
+
+		// only accessed by the worker thread
+		private long remainingRounds;
+		private Bucket bucket;
+		private Timeout next;
+		private Timeout prev;
+
+		private Timeout(TimingWheel wheel, Runnable task, long deadline) {
+			this.wheel = wheel;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels the timeout, if not expired yet.
+		 *
+		 * @return False if the task has already run or was cancelled before.
+		 */
+		public boolean cancel() {
+			boolean ret = state.compareAndSet(SCHEDULED, CANCELLED);
+			if (ret) {
+				wheel.pendingCount.decrementAndGet();
+				wheel.cancelledTimeouts.add(this);
+			}
+			return ret;
+		}
+
+		public boolean isCancelled() {
+			return state.get() == CANCELLED;
+		}
+
+		public boolean isExpired() {
+			return state.get() == EXPIRED;
+		}
+
+		/**
+		 * @return True if the wheel was stopped before this timeout expired or was cancelled.
+		 */
+		boolean isDiscarded() {
+			return state.get() == SCHEDULED && !wheel.isRunning();
+		}
+
+		private void expire() {
+			if (state.compareAndSet(SCHEDULED, EXPIRED)) {
+				wheel.pendingCount.decrementAndGet();
+				try {
+					task.run();
+				} catch (Throwable e) {
+					LOGGER.logWarning("Unexpected error in timeout task " + task, e);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,119 @@
+/**
+ * Copyright (C) 2000-2020 Atomikos <info@atomikos.com>
+ *
+ * LICENSE CONDITIONS
+ *
+ * See http://www.atomikos.com/Main/WhichLicenseApplies for details.
+ */
+
+package com.atomikos.timing;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.atomikos.thread.TaskManager;
+
+/**
+ * A recurring alarm timer that re-arms itself on the shared {@link TimingService}
+ * instead of occupying a thread of its own.
+ * <p>
+ * Listeners are notified on a pooled thread, so they may block. Like for
+ * {@link PooledAlarmTimer}, the next alarm is only scheduled after all listeners
+ * returned, so alarms of the same timer never overlap. If the thread pool is
+ * saturated then the alarm is not lost but counted, and delivered along with
+ * the next one - so listeners that count alarms (like coordinator timeouts)
+ * see every one of them, if late.
+ */
+
+public final class TimingWheelAlarmTimer implements AlarmTimer {
+
+	private final List<AlarmTimerListener> listeners = new CopyOnWriteArrayList<AlarmTimerListener>();
+	private final long timeout;
+
+	private volatile boolean active = true;
+	private volatile TimingWheel.Timeout next;
+	// true if the service was shut down when the next alarm was due to be scheduled
+	private volatile boolean suspended;
+	// alarms that could not be dispatched because the pool was saturated
+	private final AtomicInteger missedAlarms = new AtomicInteger();
+
+	public TimingWheelAlarmTimer(long timeout) {
+		this.timeout = timeout;
+	}
+
+	void start() {
+		scheduleNext();
+	}
+
+	private void scheduleNext() {
+		if (active) {
+			try {
+				next = TimingService.SINGLETON.schedule(this::dispatch, timeout);
+			} catch (IllegalStateException shutdown) {
+				suspended = true; // until rearm
+				return;
+			}
+			if (!active) next.cancel(); // concurrent stop
+		}
+	}
+
+	/**
+	 * Schedules the next alarm again if the wheel was stopped while it was pending.
+	 */
+	void rearm() {
+		TimingWheel.Timeout current = next;
+		if (suspended || (current != null && current.isDiscarded())) {
+			suspended = false;
+			scheduleNext();
+		}
+	}
+
+	private void dispatch() {
+		if (!active) return;
+		if (!TaskManager.SINGLETON.tryExecuteTask(this)) {
+			missedAlarms.incrementAndGet(); // delivered with the next alarm
+			scheduleNext();
+		}
+	}
+
+	public void addAlarmTimerListener(AlarmTimerListener lstnr) {
+		listeners.add(lstnr);
+	}
+
+	public void removeAlarmTimerListener(AlarmTimerListener lstnr) {
+		listeners.remove(lstnr);
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	public boolean isActive() {
+		return active;
+	}
+
+	public void stopTimer() {
+		active = false;
+		TimingService.SINGLETON.alarmTimerStopped(this);
+		TimingWheel.Timeout current = next;
+		if (current != null) current.cancel();
+	}
+
+	/**
+	 * Notifies the listeners - called on a pooled thread after expiry.
+	 */
+	public void run() {
+		try {
+			int alarms = 1 + missedAlarms.getAndSet(0);
+			for (int i = 0; i < alarms && active; i++) {
+				for (AlarmTimerListener l : listeners) {
+					if (!active) break;
+					l.alarm(this);
+				}
+			}
+		} finally {
+			scheduleNext();
+		}
+	}
+}
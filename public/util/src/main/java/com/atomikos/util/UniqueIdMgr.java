@@ -9,12 +9,20 @@
 
 package com.atomikos.util;
 
-
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  *
  *
- *For managing a set of unique IDs on behalf of a given server
+ *For managing a set of unique IDs on behalf of a given server.
+ *<p>
+ *An id is the server name followed by a numeric suffix of the current time 
+ *in millis and a sequence within that millisecond. Suffixes come from one 
+ *atomic counter that never goes back, so generation is lock-free and ids 
+ *stay unique even beyond the sequence capacity of one millisecond.
+ *Each thread reserves a small block of suffixes at a time, so busy threads
+ *don't all compete for the counter; a block is dropped once the clock 
+ *has moved past it, so ids still follow the time.
  *
  */
 
@@ -26,10 +34,18 @@ public class UniqueIdMgr
 	private final static int MAX_COUNTER_WITHIN_SAME_MILLIS = 32000;
 	private final static int MAX_LENGTH_OF_NUMERIC_SUFFIX = String.valueOf(Long.MAX_VALUE).length() + String.valueOf(MAX_COUNTER_WITHIN_SAME_MILLIS).length();
 
+	// room for the sequence: as many (decimal) digits as the legacy counter had
+	private final static long SEQUENCE_RANGE = 100000;
+
+	// even if every block held only one id, this leaves room for SEQUENCE_RANGE / BLOCK_SIZE blocks per millis
+	private final static int BLOCK_SIZE = 16;
+
 
   
     private final String commonPartOfId; //name of server
-    private int lastcounter;
+    private final char[] commonPartOfIdChars;
+    private final AtomicLong endOfReservedSuffixes;
+    private final ThreadLocal<Block> blocks = ThreadLocal.withInitial ( Block::new );
   
 
     /**
@@ -41,24 +57,35 @@ public class UniqueIdMgr
     public UniqueIdMgr ( String server ) {
         super();
         commonPartOfId=getCommonPartOfId(server);
-        lastcounter = 0;
+        commonPartOfIdChars = commonPartOfId.toCharArray();
+        endOfReservedSuffixes = new AtomicLong();
     }
  
 
-    //FIX FOR BUG 10104
-    private String getCountWithLeadingZeroes (int number)
+    //FIX FOR BUG 10104: the sequence is zero-padded because the suffix is fixed-width
+    private long nextSuffix()
     {
-    		String ret = Long.toString ( number );
-    		int max = Long.toString(MAX_COUNTER_WITHIN_SAME_MILLIS).length();
-    		int len = ret.length();
-    		StringBuffer zeroes = new StringBuffer();
-    		
-    		while ( len < max ) {
-    			zeroes.append ( "0" );
-    			len++;
+    		long floor = System.currentTimeMillis() * SEQUENCE_RANGE;
+    		Block block = blocks.get();
+    		if ( block.next >= block.end || block.next < floor ) {
+    			// used up, or behind the clock: reserve a new block
+    			long prev, start;
+    			do {
+    				prev = endOfReservedSuffixes.get();
+    				start = Math.max ( prev , floor );
+    			} while ( !endOfReservedSuffixes.compareAndSet ( prev, start + BLOCK_SIZE ) );
+    			block.next = start;
+    			block.end = start + BLOCK_SIZE;
     		}
-    		ret = zeroes.append ( ret ).toString();
-    		return ret;
+    		return block.next++;
+    }
+
+    /**
+     * The suffixes reserved by one thread: from next (inclusive) to end (exclusive).
+     */
+    private static final class Block
+    {
+    		long next, end;
     }
 
 
@@ -69,20 +96,25 @@ public class UniqueIdMgr
 
     public String get()
     {
-        StringBuffer buffer = new StringBuffer();
-        String id = buffer.append(commonPartOfId).
-        			  append(System.currentTimeMillis()).
-        			  append(getCountWithLeadingZeroes ( incrementAndGet() )).
-        			  toString();
-        return id;
+        long suffix = nextSuffix();
+        int digits = numberOfDigits ( suffix );
+        char[] id = new char[commonPartOfIdChars.length + digits];
+        System.arraycopy ( commonPartOfIdChars, 0, id, 0, commonPartOfIdChars.length );
+        for ( int i = id.length - 1 ; i >= commonPartOfIdChars.length ; i-- ) {
+        	id[i] = (char) ( '0' + suffix % 10 );
+        	suffix = suffix / 10;
+        }
+        return new String ( id );
     }
 
-
-	private synchronized int incrementAndGet() {
-		lastcounter++;
-        if (lastcounter == MAX_COUNTER_WITHIN_SAME_MILLIS) lastcounter = 0;
-        return lastcounter;
-	}
+    private static int numberOfDigits ( long positive ) {
+    	int ret = 1;
+    	while ( positive >= 10 ) {
+    		positive = positive / 10;
+    		ret++;
+    	}
+    	return ret;
+    }
 
     private static String getCommonPartOfId(String server) {
     	StringBuffer ret = new StringBuffer(64);
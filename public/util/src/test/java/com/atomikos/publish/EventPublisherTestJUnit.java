@@ -8,6 +8,15 @@
 
 package com.atomikos.publish;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.mockito.Mockito;
@@ -28,6 +37,12 @@ public class EventPublisherTestJUnit {
 		EventPublisher.INSTANCE.registerEventListener(mock);
 	}
 
+	@After
+	public void tearDown() throws Exception {
+		EventPublisher.INSTANCE.shutdown();
+		EventPublisher.INSTANCE.unregisterEventListener(mock);
+	}
+
 	@Test
 	public void testPublishNullEventDoesNotThrow() {
 		EventPublisher.INSTANCE.publish(null);
@@ -52,5 +67,84 @@ public class EventPublisherTestJUnit {
 		Mockito.verify(mock,Mockito.times(1)).eventOccurred(event);
 	}
 
-	
+	@Test
+	public void testAsyncPublishNotifiesListenerInOtherThread() {
+		EventPublisher.INSTANCE.configure(16, EventPublisher.OverflowPolicy.BLOCK);
+		EventPublisher.INSTANCE.publish(event);
+		Mockito.verify(mock,Mockito.timeout(1000).times(1)).eventOccurred(event);
+	}
+
+	@Test
+	public void testShutdownDeliversQueuedEvents() {
+		EventPublisher.INSTANCE.configure(16, EventPublisher.OverflowPolicy.BLOCK);
+		for (int i = 0; i < 10; i++) {
+			EventPublisher.INSTANCE.publish(event);
+		}
+		EventPublisher.INSTANCE.shutdown();
+		Mockito.verify(mock,Mockito.times(10)).eventOccurred(event);
+		assertEquals(0, EventPublisher.INSTANCE.getPendingEventCount());
+	}
+
+	@Test
+	public void testShutdownLeavesRemainingEventsToBusyDispatcher() throws Exception {
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch delivered = new CountDownLatch(3);
+		List<Thread> threads = new CopyOnWriteArrayList<Thread>();
+		EventListener blocking = e -> {
+			threads.add(Thread.currentThread());
+			try {
+				release.await();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+			delivered.countDown();
+		};
+		EventPublisher.INSTANCE.registerEventListener(blocking);
+		try {
+			EventPublisher.INSTANCE.configure(16, EventPublisher.OverflowPolicy.BLOCK);
+			for (int i = 0; i < 3; i++) {
+				EventPublisher.INSTANCE.publish(event);
+			}
+			EventPublisher.INSTANCE.shutdown();
+			// not delivered by the caller of shutdown while the dispatcher is busy
+			assertEquals(1, threads.size());
+			release.countDown();
+			assertTrue(delivered.await(1, TimeUnit.SECONDS));
+			assertEquals(3, threads.size());
+			assertTrue(threads.get(0) == threads.get(1) && threads.get(1) == threads.get(2));
+		} finally {
+			release.countDown();
+			EventPublisher.INSTANCE.unregisterEventListener(blocking);
+		}
+	}
+
+	@Test
+	public void testDropOldestCountsDroppedEvents() throws Exception {
+		CountDownLatch blocked = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		EventListener blocking = e -> {
+			blocked.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException ie) {
+				Thread.currentThread().interrupt();
+			}
+		};
+		EventPublisher.INSTANCE.registerEventListener(blocking);
+		EventPublisher.INSTANCE.configure(2, EventPublisher.OverflowPolicy.DROP_OLDEST);
+		long droppedBefore = EventPublisher.INSTANCE.getDroppedEventCount();
+		try {
+			EventPublisher.INSTANCE.publish(event);
+			blocked.await();
+			for (int i = 0; i < 5; i++) {
+				EventPublisher.INSTANCE.publish(event);
+			}
+			assertEquals(3, EventPublisher.INSTANCE.getDroppedEventCount() - droppedBefore);
+			assertTrue(EventPublisher.INSTANCE.getPendingEventCount() <= 2);
+		} finally {
+			release.countDown();
+			EventPublisher.INSTANCE.unregisterEventListener(blocking);
+		}
+	}
+
 }
@@ -0,0 +1,61 @@
+/**
+ * Copyright (C) 2000-2020 Atomikos <info@atomikos.com>
+ *
+ * LICENSE CONDITIONS
+ *
+ * See http://www.atomikos.com/Main/WhichLicenseApplies for details.
+ */
+
+package com.atomikos.publish;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class EventRingBufferTestJUnit {
+
+	private EventRingBuffer<Integer> buffer;
+
+	@Before
+	public void setUp() throws Exception {
+		buffer = new EventRingBuffer<Integer>(3);
+	}
+
+	@Test
+	public void testCapacityIsRoundedUpToPowerOfTwo() {
+		assertEquals(4, buffer.capacity());
+	}
+
+	@Test
+	public void testPollOnEmptyReturnsNull() {
+		assertNull(buffer.poll());
+		assertTrue(buffer.isEmpty());
+	}
+
+	@Test
+	public void testOfferOnFullReturnsFalse() {
+		for (int i = 0; i < 4; i++) {
+			assertTrue(buffer.offer(i));
+		}
+		assertFalse(buffer.offer(4));
+		assertEquals(4, buffer.size());
+	}
+
+	@Test
+	public void testFifoOrderAcrossWrapAround() {
+		int next = 0;
+		for (int i = 0; i < 10; i++) {
+			buffer.offer(i);
+			if (i % 2 == 1) {
+				assertEquals(Integer.valueOf(next++), buffer.poll());
+				assertEquals(Integer.valueOf(next++), buffer.poll());
+			}
+		}
+		assertTrue(buffer.isEmpty());
+	}
+
+}
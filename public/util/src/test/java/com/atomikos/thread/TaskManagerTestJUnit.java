@@ -0,0 +1,125 @@
+/**
+ * Copyright (C) 2000-2020 Atomikos <info@atomikos.com>
+ *
+ * LICENSE CONDITIONS
+ *
+ * See http://www.atomikos.com/Main/WhichLicenseApplies for details.
+ */
+
+package com.atomikos.thread;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class TaskManagerTestJUnit {
+
+	private CountDownLatch release;
+
+	@Before
+	public void setUp() {
+		release = new CountDownLatch(1);
+		TaskManager.SINGLETON.shutdown();
+		TaskManager.SINGLETON.configure(0, 1, 0, TaskManager.RejectionPolicy.CALLER_RUNS);
+	}
+
+	@After
+	public void tearDown() {
+		release.countDown();
+		TaskManager.SINGLETON.shutdown();
+		TaskManager.SINGLETON.configure(TaskManager.DEFAULT_CORE_POOL_SIZE, TaskManager.DEFAULT_MAX_POOL_SIZE,
+				TaskManager.DEFAULT_QUEUE_CAPACITY, TaskManager.RejectionPolicy.CALLER_RUNS);
+	}
+
+	private void saturate() throws InterruptedException {
+		final CountDownLatch started = new CountDownLatch(1);
+		TaskManager.SINGLETON.executeTask(new Runnable() {
+			public void run() {
+				started.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		assertTrue(started.await(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testCallerRunsWhenSaturated() throws Exception {
+		saturate();
+		final AtomicReference<Thread> runner = new AtomicReference<Thread>();
+		long rejected = TaskManager.SINGLETON.getRejectedTaskCount();
+		TaskManager.SINGLETON.executeTask(new Runnable() {
+			public void run() {
+				runner.set(Thread.currentThread());
+			}
+		});
+		assertSame(Thread.currentThread(), runner.get());
+		assertEquals(rejected + 1, TaskManager.SINGLETON.getRejectedTaskCount());
+		assertEquals(1, TaskManager.SINGLETON.getActiveThreadCount());
+	}
+
+	@Test
+	public void testTryExecuteDoesNotRunWhenSaturated() throws Exception {
+		saturate();
+		final AtomicReference<Thread> runner = new AtomicReference<Thread>();
+		assertFalse(TaskManager.SINGLETON.tryExecuteTask(new Runnable() {
+			public void run() {
+				runner.set(Thread.currentThread());
+			}
+		}));
+		assertEquals(null, runner.get());
+	}
+
+	@Test
+	public void testAbortPolicyThrowsWhenSaturated() throws Exception {
+		TaskManager.SINGLETON.configure(0, 1, 0, TaskManager.RejectionPolicy.ABORT);
+		saturate();
+		try {
+			TaskManager.SINGLETON.executeTask(new Runnable() {
+				public void run() {
+				}
+			});
+			fail("Saturated pool should reject");
+		} catch (RejectedExecutionException ok) {
+		}
+	}
+
+	@Test
+	public void testQueuedTasksRunWhenThreadBecomesAvailable() throws Exception {
+		TaskManager.SINGLETON.shutdown();
+		TaskManager.SINGLETON.configure(1, 1, 1, TaskManager.RejectionPolicy.ABORT);
+		saturate();
+		final CountDownLatch done = new CountDownLatch(1);
+		long completed = TaskManager.SINGLETON.getCompletedTaskCount();
+		TaskManager.SINGLETON.executeTask(done::countDown);
+		assertEquals(1, TaskManager.SINGLETON.getQueueDepth());
+		release.countDown();
+		assertTrue(done.await(1, TimeUnit.SECONDS));
+		Thread.sleep(50);
+		assertTrue(TaskManager.SINGLETON.getCompletedTaskCount() >= completed + 2);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCoreSizeCannotExceedMaxSize() {
+		TaskManager.SINGLETON.configure(2, 1, 0, TaskManager.RejectionPolicy.CALLER_RUNS);
+	}
+
+	@Test
+	public void testRejectionPolicyIsParsedCaseInsensitive() {
+		assertEquals(TaskManager.RejectionPolicy.CALLER_RUNS, TaskManager.RejectionPolicy.parse(" caller_runs "));
+	}
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright (C) 2000-2020 Atomikos <info@atomikos.com>
+ *
+ * LICENSE CONDITIONS
+ *
+ * See http://www.atomikos.com/Main/WhichLicenseApplies for details.
+ */
+
+package com.atomikos.timing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.atomikos.thread.TaskManager;
+
+public class TimingWheelTestJUnit {
+
+	private TimingWheel wheel;
+
+	@Before
+	public void setUp() {
+		wheel = new TimingWheel(10, 8);
+	}
+
+	@After
+	public void tearDown() {
+		wheel.stop();
+	}
+
+	@Test
+	public void testTimeoutFiresNotBeforeDelay() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(1);
+		long start = System.nanoTime();
+		wheel.schedule(latch::countDown, 50);
+		assertTrue(latch.await(1, TimeUnit.SECONDS));
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 50);
+	}
+
+	@Test
+	public void testTimeoutBeyondOneRevolutionFires() throws Exception {
+		final CountDownLatch latch = new CountDownLatch(1);
+		long start = System.nanoTime();
+		wheel.schedule(latch::countDown, 250);
+		assertTrue(latch.await(2, TimeUnit.SECONDS));
+		assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 250);
+	}
+
+	@Test
+	public void testCancelledTimeoutDoesNotFire() throws Exception {
+		final AtomicInteger count = new AtomicInteger();
+		TimingWheel.Timeout timeout = wheel.schedule(count::incrementAndGet, 50);
+		assertTrue(timeout.cancel());
+		assertFalse(timeout.cancel());
+		Thread.sleep(200);
+		assertEquals(0, count.get());
+		assertEquals(0, wheel.getPendingCount());
+	}
+
+	@Test
+	public void testAlarmTimerIsRecurringUntilStopped() throws Exception {
+		final AtomicInteger count = new AtomicInteger();
+		AlarmTimer timer = TimingService.SINGLETON.startAlarmTimer(20, new AlarmTimerListener() {
+			public void alarm(AlarmTimer timer) {
+				count.incrementAndGet();
+			}
+		});
+		Thread.sleep(300);
+		timer.stopTimer();
+		int alarms = count.get();
+		assertTrue(alarms > 1);
+		Thread.sleep(200);
+		assertEquals(alarms, count.get());
+		TimingService.SINGLETON.shutdown();
+	}
+
+	@Test
+	public void testShutdownStopsWheelWithPendingTimeoutsAndSuspendsAlarmTimers() throws Exception {
+		final AtomicInteger oneOff = new AtomicInteger();
+		final AtomicInteger alarms = new AtomicInteger();
+		TimingService.SINGLETON.start();
+		TimingService.SINGLETON.schedule(oneOff::incrementAndGet, 100);
+		AlarmTimer timer = TimingService.SINGLETON.startAlarmTimer(100, new AlarmTimerListener() {
+			public void alarm(AlarmTimer timer) {
+				alarms.incrementAndGet();
+			}
+		});
+		TimingService.SINGLETON.shutdown();
+		assertEquals(0, TimingService.SINGLETON.getPendingCount());
+		Thread.sleep(300);
+		assertEquals(0, oneOff.get());
+		assertEquals(0, alarms.get());
+		// restart: the alarm timer resumes, the one-off task stays discarded
+		TimingService.SINGLETON.start();
+		Thread.sleep(300);
+		assertTrue(alarms.get() > 0);
+		assertEquals(0, oneOff.get());
+		timer.stopTimer();
+		TimingService.SINGLETON.shutdown();
+	}
+
+	@Test
+	public void testAlarmRunningAtShutdownDoesNotRestartTheService() throws Exception {
+		final AtomicInteger alarms = new AtomicInteger();
+		final CountDownLatch running = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		AlarmTimer timer = TimingService.SINGLETON.startAlarmTimer(20, new AlarmTimerListener() {
+			public void alarm(AlarmTimer timer) {
+				alarms.incrementAndGet();
+				running.countDown();
+				try {
+					release.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		assertTrue(running.await(1, TimeUnit.SECONDS));
+		TimingService.SINGLETON.shutdown();
+		release.countDown();
+		Thread.sleep(200);
+		assertEquals(1, alarms.get());
+		assertEquals(0, TimingService.SINGLETON.getPendingCount());
+		TimingService.SINGLETON.start();
+		Thread.sleep(200);
+		assertTrue(alarms.get() > 1);
+		timer.stopTimer();
+		TimingService.SINGLETON.shutdown();
+	}
+
+	@Test
+	public void testAlarmsMissedWhileThePoolIsSaturatedAreDeliveredLater() throws Exception {
+		final AtomicInteger alarms = new AtomicInteger();
+		final CountDownLatch release = new CountDownLatch(1);
+		TaskManager.SINGLETON.configure(1, 1, 0, TaskManager.RejectionPolicy.ABORT);
+		try {
+			TaskManager.SINGLETON.executeTask(new Runnable() {
+				public void run() {
+					try {
+						release.await();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+			long rejectedBefore = TaskManager.SINGLETON.getRejectedTaskCount();
+			AlarmTimer timer = TimingService.SINGLETON.startAlarmTimer(20, new AlarmTimerListener() {
+				public void alarm(AlarmTimer timer) {
+					alarms.incrementAndGet();
+				}
+			});
+			Thread.sleep(300);
+			long missed = TaskManager.SINGLETON.getRejectedTaskCount() - rejectedBefore;
+			assertTrue(missed > 1);
+			assertEquals(0, alarms.get());
+			release.countDown();
+			Thread.sleep(200);
+			timer.stopTimer();
+			assertTrue(alarms.get() > missed);
+		} finally {
+			release.countDown();
+			TaskManager.SINGLETON.configure(TaskManager.DEFAULT_CORE_POOL_SIZE, TaskManager.DEFAULT_MAX_POOL_SIZE,
+					TaskManager.DEFAULT_QUEUE_CAPACITY, TaskManager.RejectionPolicy.CALLER_RUNS);
+			TimingService.SINGLETON.shutdown();
+		}
+	}
+}
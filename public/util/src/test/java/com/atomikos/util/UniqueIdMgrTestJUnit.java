@@ -8,6 +8,9 @@
 
 package com.atomikos.util;
 
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
 import junit.framework.TestCase;
 
 public class UniqueIdMgrTestJUnit extends TestCase {
@@ -23,5 +26,38 @@ public class UniqueIdMgrTestJUnit extends TestCase {
 	public void testGetReturnsUniqueId() {
 		assertFalse(idmgr.get().equals(idmgr.get()));
 	}
+	
+	public void testIdsHaveFixedWidthAndIncrease() {
+		String previous = idmgr.get();
+		for (int i = 0; i < 100000; i++) {
+			String next = idmgr.get();
+			assertTrue(next.startsWith("./testserver"));
+			assertEquals(previous.length(), next.length());
+			assertTrue(next.compareTo(previous) > 0);
+			previous = next;
+		}
+	}
+	
+	public void testIdsFollowTheClock() throws Exception {
+		idmgr.get(); // reserves more than one
+		Thread.sleep(5);
+		long now = System.currentTimeMillis();
+		String id = idmgr.get();
+		long suffix = Long.parseLong(id.substring("./testserver".length()));
+		assertTrue(suffix / 100000 >= now);
+	}
+	
+	public void testConcurrentIdsAreUnique() throws Exception {
+		final Set<String> ids = ConcurrentHashMap.newKeySet();
+		Thread[] threads = new Thread[8];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(() -> {
+				for (int j = 0; j < 10000; j++) ids.add(idmgr.get());
+			});
+			threads[i].start();
+		}
+		for (Thread t : threads) t.join();
+		assertEquals(80000, ids.size());
+	}
 
 }